@@ -0,0 +1,67 @@
+package org.bonitasoft.command.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommandApiAccessorCache;
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.connector.ConnectorAPIAccessorImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * APIAccessor of a call, on the real path: a new ConnectorAPIAccessorImpl per call (it opens its own engine session at the first API, and builds a
+ * new proxy per getXxxAPI()), against the accessor shared by BonitaCommandApiAccessorCache (session and proxies created one time per tenant).
+ * Each operation gets the ProcessAPI and the IdentityAPI, as a verb does.
+ * The session is opened by the engine services of the JVM (TenantServiceSingleton): the benchmark runs only in a JVM where a Bonita engine is started
+ * on the tenant. Without an engine, the setup fails: there is no number to report.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class ApiAccessorBenchmark {
+
+    @Param({ "1" })
+    public long tenantId;
+
+    private final static long CST_MAXAGEMS = 10 * 60 * 1000L;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.silenceLogs();
+        try {
+            new ConnectorAPIAccessorImpl(tenantId).getProcessAPI();
+            BonitaCommandApiAccessorCache.getApiAccessor(tenantId, CST_MAXAGEMS).getProcessAPI();
+        } catch (Throwable e) {
+            throw new IllegalStateException("ApiAccessorBenchmark needs a Bonita engine started in this JVM on tenant[" + tenantId + "]: " + e.toString(), e);
+        }
+    }
+
+    @Benchmark
+    public void perCall(Blackhole blackhole) {
+        APIAccessor accessor = new ConnectorAPIAccessorImpl(tenantId);
+        blackhole.consume(accessor.getProcessAPI());
+        blackhole.consume(accessor.getIdentityAPI());
+    }
+
+    @Benchmark
+    public void cached(Blackhole blackhole) {
+        APIAccessor accessor = BonitaCommandApiAccessorCache.getApiAccessor(tenantId, CST_MAXAGEMS);
+        blackhole.consume(accessor.getProcessAPI());
+        blackhole.consume(accessor.getIdentityAPI());
+    }
+}
@@ -0,0 +1,59 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.bonitasoft.command.BonitaCommandApiAccessor;
+import org.bonitasoft.command.Verb;
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.service.TenantServiceAccessor;
+
+/**
+ * Command used by the call path load test: verbs run in the pool of BonitaCommandApiAccessor, and do not call the engine.
+ */
+public class BenchmarkApiAccessorCommand extends BonitaCommandApiAccessor {
+
+    public final static String CST_COMMANDNAME = "benchmarkApiAccessorCommand";
+
+    public final static String CST_VERB_ECHO = "ECHO";
+    public final static String CST_VERB_SLEEP = "SLEEP";
+
+    public final static String CST_PARAM_VALUE = "value";
+    public final static String CST_PARAM_SLEEPMS = "sleepMs";
+
+    @Override
+    public String getName() {
+        return CST_COMMANDNAME;
+    }
+
+    /**
+     * the engine creates one object per call: the managed instance is the one running the verbs
+     */
+    @Override
+    public boolean useManagedInstance() {
+        return true;
+    }
+
+    @Verb(value = CST_VERB_ECHO, help = "return the parameter value")
+    public ExecuteAnswer echo(@Verb.Param(CST_PARAM_VALUE) Serializable value, APIAccessor apiAccessor) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        executeAnswer.result.put(CST_PARAM_VALUE, value);
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_SLEEP, help = "wait, as a verb calling a slow API")
+    public ExecuteAnswer sleep(@Verb.Param(CST_PARAM_SLEEPMS) Long sleepMs) throws InterruptedException {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        if (sleepMs != null && sleepMs > 0)
+            Thread.sleep(sleepMs);
+        return executeAnswer;
+    }
+
+    @Override
+    public String getHelp(Map<String, Serializable> parameters, long tenantId, TenantServiceAccessor serviceAccessor) {
+        return "Benchmark command, " + BonitaCommand.CST_VERB_PING + " " + CST_VERB_ECHO + " " + CST_VERB_SLEEP;
+    }
+}
@@ -0,0 +1,54 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.Serializable;
+import java.util.Map;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.bonitasoft.command.Verb;
+import org.bonitasoft.engine.service.TenantServiceAccessor;
+
+/**
+ * Command used by the benchmarks: verbs doing nothing, so the benchmark measures the framework.
+ */
+public class BenchmarkCommand extends BonitaCommand {
+
+    public final static String CST_VERB_ECHO = "ECHO";
+    public final static String CST_VERB_NOTHING = "NOTHING";
+
+    public final static String CST_PARAM_VALUE = "value";
+
+    @Override
+    public String getName() {
+        return "benchmarkCommand";
+    }
+
+    /**
+     * one instance for all calls, as a real command using useManagedInstance() or a static singleton
+     */
+    private final static BenchmarkCommand instance = new BenchmarkCommand();
+
+    @Override
+    public BonitaCommand getInstance() {
+        return instance;
+    }
+
+    @Verb(value = CST_VERB_ECHO, help = "return the parameter value")
+    public ExecuteAnswer echo(@Verb.Param(CST_PARAM_VALUE) Serializable value) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        executeAnswer.result.put(CST_PARAM_VALUE, value);
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_NOTHING, help = "do nothing")
+    public ExecuteAnswer nothing() {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        return executeAnswer;
+    }
+
+    @Override
+    public String getHelp(Map<String, Serializable> parameters, long tenantId, TenantServiceAccessor serviceAccessor) {
+        return "Benchmark command";
+    }
+}
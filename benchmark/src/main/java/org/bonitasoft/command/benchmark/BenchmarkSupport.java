@@ -0,0 +1,107 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.bonitasoft.command.BonitaCommandDeployment;
+
+/**
+ * Tools shared by the benchmarks: access to the private methods measured, test JAR files, logs, options of the load tests.
+ */
+public class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * the framework logs each call at INFO: keep only the warnings, else the benchmark measures the console
+     */
+    public static void silenceLogs() {
+        setLogLevel(Level.WARNING);
+    }
+
+    public static void setLogLevel(Level level) {
+        Logger.getLogger("org.bonitasoft.command").setLevel(level);
+    }
+
+    /**
+     * options of a load test, given as name=value on the command line
+     */
+    public static Map<String, String> getOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int posEqual = arg.indexOf('=');
+            if (posEqual == -1)
+                throw new IllegalArgumentException("Option [" + arg + "] must be name=value");
+            options.put(arg.substring(0, posEqual).trim(), arg.substring(posEqual + 1).trim());
+        }
+        return options;
+    }
+
+    public static long getOptionLong(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * a list of integers, "1,2,4"
+     */
+    public static int[] getOptionInts(Map<String, String> options, String name, String defaultValue) {
+        String value = options.getOrDefault(name, defaultValue);
+        String[] split = value.split(",");
+        int[] values = new int[split.length];
+        for (int i = 0; i < split.length; i++)
+            values[i] = Integer.parseInt(split[i].trim());
+        return values;
+    }
+
+    /**
+     * a new BonitaCommandDeployment, not registered in the cache of getInstance()
+     */
+    public static BonitaCommandDeployment newDeployment(String commandName) throws Exception {
+        Constructor<BonitaCommandDeployment> constructor = BonitaCommandDeployment.class.getDeclaredConstructor(String.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(commandName);
+    }
+
+    /**
+     * a private method of the framework, callable by the benchmark
+     */
+    public static Method getPrivateMethod(Class<?> declaringClass, String name, Class<?>... parameterTypes) throws Exception {
+        Method method = declaringClass.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method;
+    }
+
+    /**
+     * create a JAR file of about sizeKb kilobytes. The content is random, so the size on disk is the requested size (no compression gain).
+     */
+    public static File createJar(int sizeKb) throws IOException {
+        File jarFile = File.createTempFile("benchmark-" + sizeKb + "kb-", ".jar");
+        jarFile.deleteOnExit();
+        Random random = new Random(sizeKb);
+        byte[] content = new byte[1024];
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(jarFile))) {
+            int entrySizeKb = 64;
+            for (int entry = 0; entry * entrySizeKb < sizeKb; entry++) {
+                zip.putNextEntry(new ZipEntry("org/bonitasoft/benchmark/Resource" + entry + ".bin"));
+                for (int kb = 0; kb < entrySizeKb && entry * entrySizeKb + kb < sizeKb; kb++) {
+                    random.nextBytes(content);
+                    zip.write(content);
+                }
+                zip.closeEntry();
+            }
+        }
+        return jarFile;
+    }
+}
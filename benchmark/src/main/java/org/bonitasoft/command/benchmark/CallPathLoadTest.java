@@ -0,0 +1,405 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.bonitasoft.command.BonitaCommandDeployment;
+import org.bonitasoft.command.benchmark.engine.EmbeddedDatabase;
+import org.bonitasoft.command.benchmark.engine.SimulatedEngine;
+import org.bonitasoft.engine.api.CommandAPI;
+import org.bonitasoft.log.event.BEventFactory;
+
+/**
+ * Load test of the call path callCommand() -> BonitaCommand.execute() -> BonitaCommandApiAccessor.callThread() -> verb, on a SimulatedEngine.
+ * The BenchmarkApiAccessorCommand is registered in the engine, then, for each concurrency and each payload size, the callers call
+ * callCommand() in a loop during a warm up, then during the measure. Each call picks a verb in the mix.
+ * PING is a built-in verb: it is executed in the engine thread, and gives the cost of the path without the pool of BonitaCommandApiAccessor.
+ * Measures the throughput, the latency percentiles (overall and per verb), the allocation (all live threads: callers, engine, pool) and the
+ * number of threads. Allocation is read by com.sun.management.ThreadMXBean, -1 on a JVM without it.
+ * Run:
+ * java -cp target/benchmarks.jar org.bonitasoft.command.benchmark.CallPathLoadTest callers=1,8,64 mix=ECHO:80,SLEEP:10,PING:10 payloads=100,10000 output=callpath.json
+ * Options: callers, mix (verb:weight), payloads (size in bytes of the value parameter), warmupMs, durationMs, sleepMs (SLEEP verb),
+ * executeMs (latency of the engine), serialize (copy parameters and result, as the engine, true by default), url (JDBC URL of the database),
+ * output (JSON file), logs (log level of the framework, OFF by default)
+ */
+public class CallPathLoadTest {
+
+    private final static long CST_TENANTID = 1L;
+
+    private final static double[] CST_PERCENTILES = { 50, 90, 99, 99.9 };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = BenchmarkSupport.getOptions(args);
+        int[] listCallers = BenchmarkSupport.getOptionInts(options, "callers", "1,4,16,64");
+        int[] listPayloads = BenchmarkSupport.getOptionInts(options, "payloads", "100,10000,100000");
+        VerbMix verbMix = new VerbMix(options.getOrDefault("mix", "ECHO:80,SLEEP:10,PING:10"));
+        long warmupMs = BenchmarkSupport.getOptionLong(options, "warmupMs", 2000);
+        long durationMs = BenchmarkSupport.getOptionLong(options, "durationMs", 10000);
+        long sleepMs = BenchmarkSupport.getOptionLong(options, "sleepMs", 5);
+        String output = options.getOrDefault("output", "callpath.json");
+        BenchmarkSupport.setLogLevel(Level.parse(options.getOrDefault("logs", "OFF")));
+
+        SimulatedEngine engine = new SimulatedEngine(CST_TENANTID, new EmbeddedDatabase(options.getOrDefault("url", EmbeddedDatabase.CST_DEFAULT_URL)),
+                new SimulatedEngine.Latency(0, 0, 0, BenchmarkSupport.getOptionLong(options, "executeMs", 0)));
+        engine.setSerializeCalls(Boolean.parseBoolean(options.getOrDefault("serialize", "true")));
+        CommandAPI commandAPI = engine.getCommandAPI();
+        // no deployment: the test is about the call, the command class is already in the class path
+        commandAPI.register(BenchmarkApiAccessorCommand.CST_COMMANDNAME, "Call path load test", BenchmarkApiAccessorCommand.class.getName());
+        BonitaCommandDeployment deployment = BenchmarkSupport.newDeployment(BenchmarkApiAccessorCommand.CST_COMMANDNAME);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        System.out.println("Mix: " + verbMix + " SleepMs: " + sleepMs + " Serialize: " + options.getOrDefault("serialize", "true"));
+        System.out.println(String.format("%8s %10s %10s %12s %10s %10s %10s %10s %14s %8s", "callers", "payload", "calls", "calls/s", "p50 us", "p99 us", "max us", "errors", "alloc MB/s", "threads"));
+        for (int nbCallers : listCallers) {
+            for (int payload : listPayloads) {
+                Load load = new Load(deployment, commandAPI, verbMix, nbCallers, payload, sleepMs);
+                load.run(warmupMs);
+                Map<String, Object> result = load.run(durationMs).getResult();
+                results.add(result);
+                @SuppressWarnings("unchecked")
+                Map<String, Object> latency = (Map<String, Object>) result.get("latencyUs");
+                @SuppressWarnings("unchecked")
+                Map<String, Object> threads = (Map<String, Object>) result.get("threads");
+                System.out.println(String.format("%8d %10d %10d %12.0f %10d %10d %10d %10d %14.1f %8d", nbCallers, payload, result.get("calls"), result.get("throughput"),
+                        latency.get("p50"), latency.get("p99"), latency.get("max"), result.get("errors"),
+                        ((Number) result.get("allocatedBytesPerSecond")).doubleValue() / (1024 * 1024), threads.get("peak")));
+            }
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("test", CallPathLoadTest.class.getSimpleName());
+        report.put("date", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+        report.put("jvm", System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("options", new LinkedHashMap<String, Object>(options));
+        report.put("results", results);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(output))) {
+            writer.println(toJson(report, ""));
+        }
+        System.out.println("Result in " + new File(output).getAbsolutePath());
+        System.exit(0);
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Verb mix */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * verbs with a weight, "ECHO:80,SLEEP:10,PING:10"
+     */
+    private static class VerbMix {
+
+        private final String[] verbs;
+        /**
+         * cumulated weights: verbs[i] is picked when the random value is below cumulatedWeights[i]
+         */
+        private final int[] cumulatedWeights;
+
+        private VerbMix(String mix) {
+            String[] items = mix.split(",");
+            verbs = new String[items.length];
+            cumulatedWeights = new int[items.length];
+            int total = 0;
+            for (int i = 0; i < items.length; i++) {
+                String[] verbWeight = items[i].trim().split(":");
+                verbs[i] = verbWeight[0].trim();
+                total += verbWeight.length > 1 ? Integer.parseInt(verbWeight[1].trim()) : 1;
+                cumulatedWeights[i] = total;
+            }
+        }
+
+        private int pick() {
+            int value = ThreadLocalRandom.current().nextInt(cumulatedWeights[cumulatedWeights.length - 1]);
+            for (int i = 0; i < cumulatedWeights.length; i++)
+                if (value < cumulatedWeights[i])
+                    return i;
+            return verbs.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder mix = new StringBuilder();
+            for (int i = 0; i < verbs.length; i++)
+                mix.append(i == 0 ? "" : ",").append(verbs[i]).append(":").append(cumulatedWeights[i] - (i == 0 ? 0 : cumulatedWeights[i - 1]));
+            return mix.toString();
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Load */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * latencies of one caller, one array per verb
+     */
+    private static class Latencies {
+
+        private final long[][] latencyNano;
+        private final int[] count;
+        private long errors = 0;
+
+        private Latencies(int nbVerbs) {
+            latencyNano = new long[nbVerbs][1024];
+            count = new int[nbVerbs];
+        }
+
+        private void add(int verb, long nano) {
+            if (count[verb] == latencyNano[verb].length)
+                latencyNano[verb] = Arrays.copyOf(latencyNano[verb], count[verb] * 2);
+            latencyNano[verb][count[verb]++] = nano;
+        }
+    }
+
+    /**
+     * one run: nbCallers callers call the command during a time
+     */
+    private static class Load {
+
+        private final BonitaCommandDeployment deployment;
+        private final CommandAPI commandAPI;
+        private final VerbMix verbMix;
+        private final int nbCallers;
+        private final int payload;
+        private final long sleepMs;
+
+        private final List<Latencies> listLatencies = new ArrayList<>();
+        private long timeNano;
+        private long allocatedBytes;
+        private int threadsStart;
+        private int threadsPeak;
+        private int threadsEnd;
+
+        private volatile boolean stop;
+
+        private Load(BonitaCommandDeployment deployment, CommandAPI commandAPI, VerbMix verbMix, int nbCallers, int payload, long sleepMs) {
+            this.deployment = deployment;
+            this.commandAPI = commandAPI;
+            this.verbMix = verbMix;
+            this.nbCallers = nbCallers;
+            this.payload = payload;
+            this.sleepMs = sleepMs;
+        }
+
+        private Load run(long durationMs) throws Exception {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            String value = getPayload(payload);
+            listLatencies.clear();
+            stop = false;
+            CountDownLatch ready = new CountDownLatch(nbCallers);
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch finished = new CountDownLatch(nbCallers);
+            // the callers wait until the allocation is read: a dead thread does not give its allocation
+            CountDownLatch release = new CountDownLatch(1);
+            List<Thread> callers = new ArrayList<>();
+            for (int i = 0; i < nbCallers; i++) {
+                Latencies latencies = new Latencies(verbMix.verbs.length);
+                listLatencies.add(latencies);
+                Thread caller = new Thread(() -> {
+                    try {
+                        ready.countDown();
+                        start.await();
+                        while (!stop)
+                            call(latencies, value);
+                        finished.countDown();
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "CallPathLoadTest-" + i);
+                caller.setDaemon(true);
+                callers.add(caller);
+                caller.start();
+            }
+            ready.await();
+
+            threadMXBean.resetPeakThreadCount();
+            threadsStart = threadMXBean.getThreadCount();
+            long allocatedStart = getAllocatedBytes(threadMXBean);
+            long startNano = System.nanoTime();
+            start.countDown();
+            Thread.sleep(durationMs);
+            stop = true;
+            finished.await();
+            timeNano = System.nanoTime() - startNano;
+            long allocatedEnd = getAllocatedBytes(threadMXBean);
+            allocatedBytes = allocatedStart < 0 || allocatedEnd < 0 ? -1 : allocatedEnd - allocatedStart;
+            threadsPeak = threadMXBean.getPeakThreadCount();
+            threadsEnd = threadMXBean.getThreadCount();
+
+            release.countDown();
+            for (Thread caller : callers)
+                caller.join();
+            return this;
+        }
+
+        private void call(Latencies latencies, String value) {
+            int verb = verbMix.pick();
+            HashMap<String, Serializable> parameters = new HashMap<>();
+            parameters.put(BenchmarkApiAccessorCommand.CST_PARAM_VALUE, value);
+            parameters.put(BenchmarkApiAccessorCommand.CST_PARAM_SLEEPMS, sleepMs);
+            long startNano = System.nanoTime();
+            Map<String, Object> result = deployment.callCommand(verbMix.verbs[verb], parameters, CST_TENANTID, commandAPI);
+            latencies.add(verb, System.nanoTime() - startNano);
+            if (result == null || BEventFactory.isError(BonitaCommand.getListEvents(result)))
+                latencies.errors++;
+        }
+
+        private Map<String, Object> getResult() {
+            long errors = 0;
+            List<long[]> allVerbs = new ArrayList<>();
+            Map<String, Object> verbs = new LinkedHashMap<>();
+            for (int verb = 0; verb < verbMix.verbs.length; verb++) {
+                List<long[]> oneVerb = new ArrayList<>();
+                for (Latencies latencies : listLatencies)
+                    oneVerb.add(Arrays.copyOf(latencies.latencyNano[verb], latencies.count[verb]));
+                long[] sorted = merge(oneVerb);
+                allVerbs.add(sorted);
+                Map<String, Object> verbResult = new LinkedHashMap<>();
+                verbResult.put("calls", sorted.length);
+                verbResult.put("latencyUs", getLatency(sorted));
+                verbs.put(verbMix.verbs[verb], verbResult);
+            }
+            for (Latencies latencies : listLatencies)
+                errors += latencies.errors;
+            long[] sorted = merge(allVerbs);
+            double seconds = timeNano / 1e9;
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("callers", nbCallers);
+            result.put("payloadBytes", payload);
+            result.put("durationMs", timeNano / 1000000);
+            result.put("calls", sorted.length);
+            result.put("errors", errors);
+            result.put("throughput", sorted.length / seconds);
+            result.put("latencyUs", getLatency(sorted));
+            result.put("allocatedBytes", allocatedBytes);
+            result.put("allocatedBytesPerCall", allocatedBytes < 0 || sorted.length == 0 ? -1 : allocatedBytes / sorted.length);
+            result.put("allocatedBytesPerSecond", allocatedBytes < 0 ? -1 : (long) (allocatedBytes / seconds));
+            Map<String, Object> threads = new LinkedHashMap<>();
+            threads.put("start", threadsStart);
+            threads.put("peak", threadsPeak);
+            threads.put("end", threadsEnd);
+            result.put("threads", threads);
+            result.put("verbs", verbs);
+            return result;
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Toolbox */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static String getPayload(int size) {
+        char[] value = new char[size];
+        Arrays.fill(value, 'x');
+        return new String(value);
+    }
+
+    /**
+     * sum of the bytes allocated by all live threads, -1 if the JVM does not measure it
+     */
+    private static long getAllocatedBytes(ThreadMXBean threadMXBean) {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!allocationMXBean.isThreadAllocatedMemorySupported())
+            return -1;
+        allocationMXBean.setThreadAllocatedMemoryEnabled(true);
+        long total = 0;
+        for (long allocated : allocationMXBean.getThreadAllocatedBytes(threadMXBean.getAllThreadIds()))
+            if (allocated > 0)
+                total += allocated;
+        return total;
+    }
+
+    private static long[] merge(List<long[]> arrays) {
+        int size = 0;
+        for (long[] array : arrays)
+            size += array.length;
+        long[] merged = new long[size];
+        int position = 0;
+        for (long[] array : arrays) {
+            System.arraycopy(array, 0, merged, position, array.length);
+            position += array.length;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private static Map<String, Object> getLatency(long[] sortedNano) {
+        Map<String, Object> latency = new LinkedHashMap<>();
+        if (sortedNano.length == 0)
+            return latency;
+        long total = 0;
+        for (long nano : sortedNano)
+            total += nano;
+        latency.put("mean", total / sortedNano.length / 1000);
+        for (double percentile : CST_PERCENTILES) {
+            int index = (int) Math.ceil(percentile / 100 * sortedNano.length) - 1;
+            latency.put("p" + (percentile == Math.floor(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile).replace(".", "")),
+                    sortedNano[Math.max(0, index)] / 1000);
+        }
+        latency.put("max", sortedNano[sortedNano.length - 1] / 1000);
+        return latency;
+    }
+
+    /**
+     * maps, lists, numbers and strings only
+     */
+    private static String toJson(Object value, String indent) {
+        if (value == null)
+            return "null";
+        if (value instanceof Number || value instanceof Boolean)
+            return value.toString();
+        if (value instanceof Map) {
+            StringBuilder json = new StringBuilder("{");
+            String separator = "\n";
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                json.append(separator).append(indent).append("  ").append(toJson(String.valueOf(entry.getKey()), "")).append(": ").append(toJson(entry.getValue(), indent + "  "));
+                separator = ",\n";
+            }
+            return json.append("\n").append(indent).append("}").toString();
+        }
+        if (value instanceof List) {
+            StringBuilder json = new StringBuilder("[");
+            String separator = "\n";
+            for (Object item : (List<?>) value) {
+                json.append(separator).append(indent).append("  ").append(toJson(item, indent + "  "));
+                separator = ",\n";
+            }
+            return json.append("\n").append(indent).append("]").toString();
+        }
+        StringBuilder json = new StringBuilder("\"");
+        for (char c : value.toString().toCharArray()) {
+            if (c == '"' || c == '\\')
+                json.append('\\').append(c);
+            else if (c < 0x20)
+                json.append(String.format("\\u%04x", (int) c));
+            else
+                json.append(c);
+        }
+        return json.append("\"").toString();
+    }
+}
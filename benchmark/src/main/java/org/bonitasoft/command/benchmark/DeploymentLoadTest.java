@@ -0,0 +1,198 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import org.bonitasoft.command.BonitaCommandDeployment;
+import org.bonitasoft.command.BonitaCommandDeployment.DeployStatus;
+import org.bonitasoft.command.BonitaCommandDescription;
+import org.bonitasoft.command.benchmark.engine.EmbeddedDatabase;
+import org.bonitasoft.command.benchmark.engine.SimulatedEngine;
+import org.bonitasoft.engine.api.CommandAPI;
+import org.bonitasoft.engine.api.PlatformAPI;
+import org.bonitasoft.log.event.BEventFactory;
+
+/**
+ * Load test of BonitaCommandDeployment.checkAndDeployCommand() on a SimulatedEngine: several nodes (one BonitaCommandDeployment and one
+ * PlatformAPI per node, one shared engine database) and 1 to 64 callers starting at the same time.
+ * For each configuration:
+ * - deployment: the command is not deployed, all callers call checkAndDeployCommand(). Measures the time, and the redundant work: each
+ * register() and addDependency() after the first one is a redundant deployment (or a deployment in error because the other node was faster).
+ * - check: the command is deployed, each caller calls checkAndDeployCommand() "checks" times. Measures the throughput of the check.
+ * Run:
+ * java -cp target/benchmarks.jar org.bonitasoft.command.benchmark.DeploymentLoadTest callers=1,8,64 nodes=1,4 registerMs=50 output=deployment.csv
+ * Options: callers, nodes, rounds, checks, registerMs, addDependencyMs, stopNodeMs, executeMs, url (JDBC URL of the database), output (CSV file),
+ * contentAddressed (deploy with the content addressed dependency store), logs (log level of the framework, OFF by default)
+ */
+public class DeploymentLoadTest {
+
+    private final static long CST_TENANTID = 1L;
+    private final static String CST_COMMANDNAME = "benchmarkCommand";
+
+    private final static String CST_CSV_HEADER = "nodes,callers,round,deployTimeMs,newDeployments,failedDeployments,registers,redundantRegisters,addDependencies,redundantAddDependencies,stopNodes,checkCalls,checkTimeMs,checkThroughput";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = BenchmarkSupport.getOptions(args);
+        int[] listCallers = BenchmarkSupport.getOptionInts(options, "callers", "1,2,4,8,16,32,64");
+        int[] listNodes = BenchmarkSupport.getOptionInts(options, "nodes", "1,2,4");
+        int rounds = (int) BenchmarkSupport.getOptionLong(options, "rounds", 3);
+        int checks = (int) BenchmarkSupport.getOptionLong(options, "checks", 20);
+        SimulatedEngine.Latency latency = new SimulatedEngine.Latency(
+                BenchmarkSupport.getOptionLong(options, "registerMs", 50),
+                BenchmarkSupport.getOptionLong(options, "addDependencyMs", 20),
+                BenchmarkSupport.getOptionLong(options, "stopNodeMs", 100),
+                BenchmarkSupport.getOptionLong(options, "executeMs", 0));
+        // errors of the concurrent deployments are counted, not logged
+        BenchmarkSupport.setLogLevel(Level.parse(options.getOrDefault("logs", "OFF")));
+
+        SimulatedEngine engine = new SimulatedEngine(CST_TENANTID, new EmbeddedDatabase(options.getOrDefault("url", EmbeddedDatabase.CST_DEFAULT_URL)), latency);
+        BonitaCommandDescription commandDescription = getCommandDescription(Files.createTempDirectory("benchmarkDeployment").toFile());
+        commandDescription.contentAddressedDependencies = Boolean.parseBoolean(options.getOrDefault("contentAddressed", "false"));
+
+        List<String> lines = new ArrayList<>();
+        System.out.println("Latency: " + latency);
+        System.out.println(CST_CSV_HEADER);
+        for (int nbNodes : listNodes) {
+            for (int nbCallers : listCallers) {
+                for (int round = 1; round <= rounds; round++) {
+                    String line = nbNodes + "," + nbCallers + "," + round + "," + runRound(engine, commandDescription, nbNodes, nbCallers, checks);
+                    System.out.println(line);
+                    lines.add(line);
+                }
+            }
+        }
+
+        String output = options.get("output");
+        if (output != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(output))) {
+                writer.println(CST_CSV_HEADER);
+                for (String line : lines)
+                    writer.println(line);
+            }
+            System.out.println("Result in " + new File(output).getAbsolutePath());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * the command, with a dependency checked by version, and the bonita-commanddeployment dependency added by the framework
+     */
+    private static BonitaCommandDescription getCommandDescription(File pageDirectory) throws Exception {
+        File libDirectory = new File(pageDirectory, "lib");
+        libDirectory.mkdirs();
+        BonitaCommandDescription commandDescription = new BonitaCommandDescription(CST_COMMANDNAME, pageDirectory);
+        commandDescription.mainCommandClassName = BenchmarkCommand.class.getName();
+        commandDescription.mainJarFile = "benchmarkCommand-1.0.0.jar";
+        commandDescription.mainVersion = "1.0.0";
+        commandDescription.commandDescription = "Deployment load test";
+        commandDescription.addJarDependencyLastVersion("bonita-event", "1.9.0", "bonita-event-1.9.0.jar");
+
+        copyJar(BenchmarkSupport.createJar(100), new File(libDirectory, commandDescription.mainJarFile));
+        copyJar(BenchmarkSupport.createJar(60), new File(libDirectory, "bonita-event-1.9.0.jar"));
+        copyJar(BenchmarkSupport.createJar(200), new File(libDirectory, BonitaCommandDeployment.JAR_NAME));
+        return commandDescription;
+    }
+
+    private static void copyJar(File jarFile, File destination) throws Exception {
+        Files.copy(jarFile.toPath(), destination.toPath());
+        destination.deleteOnExit();
+        jarFile.delete();
+    }
+
+    /**
+     * @return the CSV values after nodes,callers,round
+     */
+    private static String runRound(SimulatedEngine engine, BonitaCommandDescription commandDescription, int nbNodes, int nbCallers, int checks) throws Exception {
+        engine.reset();
+        // one node = one JVM: its own BonitaCommandDeployment (the one of getInstance() is per JVM) and its own PlatformAPI
+        List<BonitaCommandDeployment> deployments = new ArrayList<>();
+        List<PlatformAPI> platformAPIs = new ArrayList<>();
+        for (int node = 0; node < nbNodes; node++) {
+            deployments.add(BenchmarkSupport.newDeployment(CST_COMMANDNAME));
+            platformAPIs.add(engine.getPlatformAPI());
+        }
+        CommandAPI commandAPI = engine.getCommandAPI();
+
+        ExecutorService callers = Executors.newFixedThreadPool(nbCallers);
+        try {
+            // ------------ deployment: all callers at the same time, the command is not deployed
+            CallersResult deployment = runCallers(callers, nbCallers, 1, caller -> deployments.get(caller % nbNodes)
+                    .checkAndDeployCommand(commandDescription, false, CST_TENANTID, commandAPI, platformAPIs.get(caller % nbNodes)));
+            int newDeployments = 0;
+            int failedDeployments = 0;
+            for (DeployStatus deployStatus : deployment.listDeployStatus) {
+                if (deployStatus.newDeployment)
+                    newDeployments++;
+                if (BEventFactory.isError(deployStatus.listEvents))
+                    failedDeployments++;
+            }
+            long registers = engine.getCounter(SimulatedEngine.CST_COUNTER_REGISTER);
+            long addDependencies = engine.getCounter(SimulatedEngine.CST_COUNTER_ADDDEPENDENCY);
+            long nbDependencies = commandDescription.getListDependenciesToDeploy().size();
+            long stopNodes = engine.getCounter(SimulatedEngine.CST_COUNTER_STOPNODE);
+
+            // ------------ check: the command is deployed
+            CallersResult check = runCallers(callers, nbCallers, checks, caller -> deployments.get(caller % nbNodes)
+                    .checkAndDeployCommand(commandDescription, false, CST_TENANTID, commandAPI, platformAPIs.get(caller % nbNodes)));
+            long checkCalls = (long) nbCallers * checks;
+
+            return deployment.timeMs + "," + newDeployments + "," + failedDeployments + "," + registers + "," + Math.max(0, registers - 1) + ","
+                    + addDependencies + "," + Math.max(0, addDependencies - nbDependencies) + "," + stopNodes + ","
+                    + checkCalls + "," + check.timeMs + "," + (check.timeMs == 0 ? checkCalls * 1000 : checkCalls * 1000 / check.timeMs);
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private interface Call {
+
+        DeployStatus call(int caller) throws Exception;
+    }
+
+    private static class CallersResult {
+
+        /**
+         * the last DeployStatus of each caller
+         */
+        private final List<DeployStatus> listDeployStatus = new ArrayList<>();
+        private long timeMs;
+    }
+
+    /**
+     * start all callers at the same time, each one executes the call nbCalls times
+     */
+    private static CallersResult runCallers(ExecutorService callers, int nbCallers, int nbCalls, Call call) throws Exception {
+        CountDownLatch ready = new CountDownLatch(nbCallers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<DeployStatus>> futures = new ArrayList<>();
+        for (int i = 0; i < nbCallers; i++) {
+            final int caller = i;
+            futures.add(callers.submit(() -> {
+                ready.countDown();
+                start.await();
+                DeployStatus deployStatus = null;
+                for (int c = 0; c < nbCalls; c++)
+                    deployStatus = call.call(caller);
+                return deployStatus;
+            }));
+        }
+        ready.await();
+        long startTime = System.currentTimeMillis();
+        start.countDown();
+        CallersResult callersResult = new CallersResult();
+        for (Future<DeployStatus> future : futures)
+            callersResult.listDeployStatus.add(future.get());
+        callersResult.timeMs = System.currentTimeMillis() - startTime;
+        return callersResult;
+    }
+}
@@ -0,0 +1,59 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the framework for one call: BonitaCommand.execute() then executeSingleton() (parameters, context, verb resolution, metrics, events),
+ * with a verb doing nothing. No engine: the TenantServiceAccessor is null.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /**
+     * a @Verb method without parameter, a @Verb method with a bound parameter, a built-in verb, an unknown verb
+     */
+    @Param({ BenchmarkCommand.CST_VERB_NOTHING, BenchmarkCommand.CST_VERB_ECHO, BonitaCommand.CST_VERB_PING, "UNKNOWN" })
+    public String verb;
+
+    private BonitaCommand command;
+    private HashMap<String, Serializable> parameters;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.silenceLogs();
+        command = new BenchmarkCommand();
+        parameters = new HashMap<>();
+        parameters.put(BonitaCommand.CST_VERB, verb);
+        parameters.put(BonitaCommand.CST_TENANTID, 1L);
+        HashMap<String, Serializable> parametersCommand = new HashMap<>();
+        parametersCommand.put(BenchmarkCommand.CST_PARAM_VALUE, "hello");
+        parameters.put(BonitaCommand.CST_PARAMETER_COMMAND, parametersCommand);
+        // the first call runs afterRestart(): not measured
+        command.execute(parameters, null);
+    }
+
+    @Benchmark
+    public Serializable execute() throws Exception {
+        return command.execute(parameters, null);
+    }
+}
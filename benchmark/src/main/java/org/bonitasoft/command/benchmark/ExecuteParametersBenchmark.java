@@ -0,0 +1,85 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteParameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ExecuteParameters typed getters: direct type, conversion from a String, missing parameter (default value).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteParametersBenchmark {
+
+    private ExecuteParameters executeParameters;
+
+    @Setup
+    public void setup() {
+        executeParameters = new ExecuteParameters("BENCHMARK");
+        HashMap<String, Serializable> parametersCommand = new HashMap<>();
+        parametersCommand.put("string", "value");
+        parametersCommand.put("long", 42L);
+        parametersCommand.put("longAsString", "42");
+        parametersCommand.put("int", 42);
+        parametersCommand.put("intAsString", "42");
+        parametersCommand.put("boolean", Boolean.TRUE);
+        parametersCommand.put("map", new HashMap<String, Serializable>());
+        executeParameters.parametersCommand = parametersCommand;
+    }
+
+    @Benchmark
+    public String getString() {
+        return executeParameters.getParametersString("string");
+    }
+
+    @Benchmark
+    public Long getLong() {
+        return executeParameters.getParametersLong("long");
+    }
+
+    @Benchmark
+    public Long getLongFromString() {
+        return executeParameters.getParametersLong("longAsString");
+    }
+
+    @Benchmark
+    public Long getLongMissing() {
+        return executeParameters.getParametersLong("missing", 0L);
+    }
+
+    @Benchmark
+    public Integer getInt() {
+        return executeParameters.getParametersInt("int", 0);
+    }
+
+    @Benchmark
+    public Integer getIntFromString() {
+        return executeParameters.getParametersInt("intAsString", 0);
+    }
+
+    @Benchmark
+    public Boolean getBoolean() {
+        return executeParameters.getParametersBoolean("boolean");
+    }
+
+    @Benchmark
+    public Object getMap() {
+        return executeParameters.getParametersMap("map");
+    }
+}
@@ -0,0 +1,149 @@
+package org.bonitasoft.command.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommandExecutor;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BonitaCommandExecutor: a few thousand calls submitted at the same time, each one blocked on I/O (simulated by a sleep), as calls waiting for
+ * the engine database. Compare the cached thread pool (the baseline: one thread per call in flight), the bounded platform pool and virtual
+ * threads (JDK 21+; on an older JVM the "virtual" pool falls back to the platform pool).
+ * One operation is the full batch. The memory is reported beside the time, as secondary results of each iteration: heap used and committed when
+ * all the calls are in flight, and the peak of platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    public final static String CST_POOL_CACHED = "cached";
+    public final static String CST_POOL_PLATFORM = "platform";
+    public final static String CST_POOL_VIRTUAL = "virtual";
+
+    @Param({ CST_POOL_CACHED, CST_POOL_PLATFORM, CST_POOL_VIRTUAL })
+    public String pool;
+
+    /**
+     * calls submitted at the same time
+     */
+    @Param({ "1000", "4000" })
+    public int nbCalls;
+
+    /**
+     * time each call is blocked
+     */
+    @Param({ "10" })
+    public int blockMs;
+
+    /**
+     * threads of the platform pool: the usual size of a dedicated pool
+     */
+    private final static int CST_PLATFORM_THREADS = 200;
+
+    /**
+     * memory of the iteration. The values are maximums over the batches of the iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class MemoryCounters {
+
+        public long heapUsedMb;
+        public long heapCommittedMb;
+        public long peakPlatformThreads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            heapUsedMb = 0;
+            heapCommittedMb = 0;
+            peakPlatformThreads = 0;
+            ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        }
+
+        private void recordHeap() {
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            heapUsedMb = Math.max(heapUsedMb, heap.getUsed() / (1024 * 1024));
+            heapCommittedMb = Math.max(heapCommittedMb, heap.getCommitted() / (1024 * 1024));
+        }
+
+        private void recordThreads() {
+            peakPlatformThreads = Math.max(peakPlatformThreads, ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        }
+    }
+
+    /**
+     * cached pool: the executor of the calls before BonitaCommandExecutor
+     */
+    private ExecutorService cachedPool;
+    private BonitaCommandExecutor executor;
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.silenceLogs();
+        if (CST_POOL_CACHED.equals(pool)) {
+            cachedPool = Executors.newCachedThreadPool();
+            return;
+        }
+        BonitaCommandExecutor.Policy policy;
+        if (CST_POOL_VIRTUAL.equals(pool))
+            policy = new BonitaCommandExecutor.Policy(false, 0, nbCalls, 0, true);
+        else
+            policy = new BonitaCommandExecutor.Policy(false, CST_PLATFORM_THREADS, CST_PLATFORM_THREADS, nbCalls);
+        // one pool per trial: the name is unique
+        executor = BonitaCommandExecutor.getInstance("benchmarkExecutor-" + pool + "-" + nbCalls + "-" + System.nanoTime(), policy);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        if (cachedPool != null) {
+            cachedPool.shutdown();
+            cachedPool.awaitTermination(10, TimeUnit.SECONDS);
+        } else
+            BonitaCommandExecutor.shutdown(executor.getPoolName(), 10000);
+    }
+
+    @Benchmark
+    public void concurrentCalls(MemoryCounters counters) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(nbCalls);
+        Runnable call = () -> {
+            try {
+                Thread.sleep(blockMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < nbCalls; i++) {
+            if (cachedPool != null)
+                cachedPool.execute(call);
+            else
+                executor.execute(call);
+        }
+        // all the calls are in flight
+        counters.recordHeap();
+        latch.await();
+        counters.recordThreads();
+    }
+}
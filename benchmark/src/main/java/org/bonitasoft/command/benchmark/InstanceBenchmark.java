@@ -0,0 +1,69 @@
+package org.bonitasoft.command.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.bonitasoft.command.BonitaCommandDeployment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getInstance() under contention: all the callers of a command go through BonitaCommandDeployment.getInstance(), and each engine call through
+ * BonitaCommand.getInstance(). Run with 8 threads; change it with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class InstanceBenchmark {
+
+    /**
+     * number of different commands asked by the callers
+     */
+    @Param({ "1", "16" })
+    public int nbCommands;
+
+    private String[] commandNames;
+    private BonitaCommand command;
+
+    @State(Scope.Thread)
+    public static class ThreadIndex {
+
+        public int index = 0;
+    }
+
+    @Setup
+    public void setup() {
+        BenchmarkSupport.silenceLogs();
+        commandNames = new String[nbCommands];
+        for (int i = 0; i < nbCommands; i++) {
+            commandNames[i] = "benchmarkInstance" + i;
+            BonitaCommandDeployment.getInstance(commandNames[i]);
+        }
+        command = new BenchmarkCommand();
+    }
+
+    @Benchmark
+    public BonitaCommandDeployment deploymentGetInstance(ThreadIndex threadIndex) {
+        threadIndex.index = (threadIndex.index + 1) % nbCommands;
+        return BonitaCommandDeployment.getInstance(commandNames[threadIndex.index]);
+    }
+
+    @Benchmark
+    public BonitaCommand commandGetInstance() {
+        return command.getInstance();
+    }
+}
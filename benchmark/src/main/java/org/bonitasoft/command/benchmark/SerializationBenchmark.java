@@ -0,0 +1,112 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Java serialization of the parameters and of the result of a call: the CommandAPI serializes both between the client and the engine.
+ * The result contains the structured events, as returned by the framework.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    /**
+     * number of records in the parameters and in the result
+     */
+    @Param({ "1", "100", "10000" })
+    public int nbRecords;
+
+    private HashMap<String, Serializable> parameters;
+    private HashMap<String, Object> result;
+    private byte[] parametersBytes;
+    private byte[] resultBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        parameters = new HashMap<>();
+        parameters.put(BonitaCommand.CST_VERB, BenchmarkCommand.CST_VERB_ECHO);
+        parameters.put(BonitaCommand.CST_TENANTID, 1L);
+        HashMap<String, Serializable> parametersCommand = new HashMap<>();
+        parametersCommand.put(BenchmarkCommand.CST_PARAM_VALUE, getRecords(nbRecords));
+        parameters.put(BonitaCommand.CST_PARAMETER_COMMAND, parametersCommand);
+
+        BenchmarkCommand.ExecuteAnswer executeAnswer = new BenchmarkCommand.ExecuteAnswer();
+        executeAnswer.result.put(BenchmarkCommand.CST_PARAM_VALUE, getRecords(nbRecords));
+        executeAnswer.result.put(BonitaCommand.CST_RESULT_TIMEINMS, 12L);
+        BonitaCommand.putEvents(executeAnswer.result, executeAnswer.listEvents, false);
+        result = executeAnswer.result;
+
+        parametersBytes = serialize(parameters);
+        resultBytes = serialize(result);
+    }
+
+    private static ArrayList<HashMap<String, Serializable>> getRecords(int nbRecords) {
+        ArrayList<HashMap<String, Serializable>> records = new ArrayList<>();
+        for (int i = 0; i < nbRecords; i++) {
+            HashMap<String, Serializable> record = new HashMap<>();
+            record.put("id", (long) i);
+            record.put("name", "Record " + i);
+            record.put("active", i % 2 == 0);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return input.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeParameters() throws Exception {
+        return serialize(parameters);
+    }
+
+    @Benchmark
+    public Object deserializeParameters() throws Exception {
+        return deserialize(parametersBytes);
+    }
+
+    @Benchmark
+    public byte[] serializeResult() throws Exception {
+        return serialize(result);
+    }
+
+    @Benchmark
+    public Object deserializeResult() throws Exception {
+        return deserialize(resultBytes);
+    }
+}
@@ -0,0 +1,59 @@
+package org.bonitasoft.command.benchmark;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommandDeployment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BonitaCommandDeployment.getSignature(File): checksum of the command JAR, computed at each checkAndDeployCommand().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    /**
+     * size of the JAR, in Kb: a small command, a command with its libraries, a large dependency
+     */
+    @Param({ "10", "1024", "10240" })
+    public int jarSizeKb;
+
+    private BonitaCommandDeployment deployment;
+    private Method getSignature;
+    private File jarFile;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.silenceLogs();
+        deployment = BenchmarkSupport.newDeployment("benchmarkSignature");
+        getSignature = BenchmarkSupport.getPrivateMethod(BonitaCommandDeployment.class, "getSignature", File.class);
+        jarFile = BenchmarkSupport.createJar(jarSizeKb);
+    }
+
+    @TearDown
+    public void tearDown() {
+        jarFile.delete();
+    }
+
+    @Benchmark
+    public Object getSignature() throws Exception {
+        return getSignature.invoke(deployment, jarFile);
+    }
+}
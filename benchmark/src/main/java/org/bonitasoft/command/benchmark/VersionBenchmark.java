@@ -0,0 +1,55 @@
+package org.bonitasoft.command.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.bonitasoft.command.BonitaCommandDeployment;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BonitaCommandDeployment.isUpperVersion(): called for each dependency deployed with addJarDependencyLastVersion().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionBenchmark {
+
+    /**
+     * newVersion:existingVersion. Same version, upper on the last digit, lower on the first, different lengths
+     */
+    @Param({ "1.9.0:1.9.0", "2.1.3:2.1.2", "1.5.0:2.0", "2.1:2.1.0.1" })
+    public String versions;
+
+    private BonitaCommandDeployment deployment;
+    private Method isUpperVersion;
+    private String newVersion;
+    private String existingVersion;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSupport.silenceLogs();
+        deployment = BenchmarkSupport.newDeployment("benchmarkVersion");
+        isUpperVersion = BenchmarkSupport.getPrivateMethod(BonitaCommandDeployment.class, "isUpperVersion", String.class, String.class);
+        String[] split = versions.split(":");
+        newVersion = split[0];
+        existingVersion = split[1];
+    }
+
+    @Benchmark
+    public Object isUpperVersion() throws Exception {
+        return isUpperVersion.invoke(deployment, newVersion, existingVersion);
+    }
+}
@@ -0,0 +1,117 @@
+package org.bonitasoft.command.benchmark.engine;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.bonitasoft.command.BonitaCommandDependencyStore;
+
+/**
+ * Embedded database (H2 in memory by default) holding the Bonita "dependency" table: BonitaCommandDeployment reads it directly to find the
+ * versions of a dependency. Any JDBC URL works, as long as its driver is in the classpath.
+ * It is published in JNDI by SimulatedInitialContextFactory: BonitaCommandDeployment calls getConnection() on the object it looks up.
+ */
+public class EmbeddedDatabase {
+
+    public final static String CST_DEFAULT_URL = "jdbc:h2:mem:bonita;DB_CLOSE_DELAY=-1";
+
+    private final String url;
+
+    public EmbeddedDatabase() {
+        this(CST_DEFAULT_URL);
+    }
+
+    public EmbeddedDatabase(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * called by BonitaCommandDeployment (by reflection), as on a javax.sql.DataSource
+     */
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url);
+    }
+
+    /**
+     * create the dependency table, as in the Bonita schema (only the columns used by the framework)
+     */
+    public void createSchema() throws SQLException {
+        try (Connection con = getConnection(); Statement statement = con.createStatement()) {
+            statement.execute("create table if not exists dependency ("
+                    + "tenantid bigint not null, "
+                    + "id bigint auto_increment primary key, "
+                    + "name varchar(150) not null, "
+                    + "description varchar(1024), "
+                    + "filename varchar(255) not null, "
+                    + "value_ blob not null, "
+                    + "constraint uk_dependency unique (tenantid, name))");
+        }
+    }
+
+    /**
+     * remove all dependencies, and the references of the content addressed store
+     */
+    public void clear() throws SQLException {
+        try (Connection con = getConnection(); Statement statement = con.createStatement()) {
+            statement.execute("delete from dependency");
+            statement.execute("drop table if exists " + BonitaCommandDependencyStore.CST_TABLE);
+            statement.execute("drop table if exists " + BonitaCommandDependencyStore.CST_LOCKTABLE);
+        }
+    }
+
+    /**
+     * @return false if a dependency with this name already exists on the tenant
+     */
+    public boolean insertDependency(long tenantId, String name, byte[] content) throws SQLException {
+        try (Connection con = getConnection();
+                PreparedStatement pstmt = con.prepareStatement("insert into dependency (tenantid, name, filename, value_) values (?,?,?,?)")) {
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, name);
+            pstmt.setString(3, name + ".jar");
+            pstmt.setBytes(4, content);
+            pstmt.executeUpdate();
+            return true;
+        } catch (SQLException e) {
+            // 23xxx: integrity constraint violation
+            if (e.getSQLState() != null && e.getSQLState().startsWith("23"))
+                return false;
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if the dependency does not exist
+     */
+    public boolean deleteDependency(long tenantId, String name) throws SQLException {
+        try (Connection con = getConnection();
+                PreparedStatement pstmt = con.prepareStatement("delete from dependency where tenantid = ? and name = ?")) {
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, name);
+            return pstmt.executeUpdate() > 0;
+        }
+    }
+
+    public long getNbDependencies() throws SQLException {
+        return queryLong("select count(*) from dependency");
+    }
+
+    /**
+     * total size of the dependencies, in bytes
+     */
+    public long getDependenciesSize() throws SQLException {
+        return queryLong("select coalesce(sum(length(value_)), 0) from dependency");
+    }
+
+    private long queryLong(String sqlRequest) throws SQLException {
+        try (Connection con = getConnection(); Statement statement = con.createStatement(); ResultSet rs = statement.executeQuery(sqlRequest)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+}
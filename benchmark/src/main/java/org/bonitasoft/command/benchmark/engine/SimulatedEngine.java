@@ -0,0 +1,366 @@
+package org.bonitasoft.command.benchmark.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bonitasoft.engine.api.CommandAPI;
+import org.bonitasoft.engine.api.PlatformAPI;
+import org.bonitasoft.engine.command.CommandDescriptor;
+import org.bonitasoft.engine.command.CommandDescriptorImpl;
+import org.bonitasoft.engine.command.CommandExecutionException;
+import org.bonitasoft.engine.command.CommandNotFoundException;
+import org.bonitasoft.engine.command.DependencyNotFoundException;
+import org.bonitasoft.engine.command.TenantCommand;
+import org.bonitasoft.engine.exception.AlreadyExistsException;
+import org.bonitasoft.engine.exception.CreationException;
+import org.bonitasoft.engine.exception.DeletionException;
+
+/**
+ * In-process stand-in of a Bonita engine, for load tests of BonitaCommandDeployment and of the call path, without a server.
+ * - getCommandAPI() and getPlatformAPI() return java.lang.reflect.Proxy implementations of the Bonita interfaces. Only the methods used by the
+ * framework are implemented, the others throw an UnsupportedOperationException.
+ * - the registered commands are kept in memory, the dependencies in the "dependency" table of an EmbeddedDatabase, published in JNDI under the
+ * first datasource name searched by BonitaCommandDeployment.
+ * - execute() creates a new object of the command class for each call, as the engine does, and calls it without a TenantServiceAccessor.
+ * The parameters and the result are copied by Java serialization, as between a client and a remote engine (see setSerializeCalls()).
+ * - register, addDependency, stopNode (and execute) wait a configurable latency.
+ * All the nodes of a cluster share the same engine: create one PlatformAPI per node.
+ */
+public class SimulatedEngine {
+
+    public final static String CST_DATASOURCE = "java:/comp/env/RawBonitaDS";
+
+    public final static String CST_COUNTER_REGISTER = "register";
+    public final static String CST_COUNTER_UNREGISTER = "unregister";
+    public final static String CST_COUNTER_ADDDEPENDENCY = "addDependency";
+    public final static String CST_COUNTER_REMOVEDEPENDENCY = "removeDependency";
+    public final static String CST_COUNTER_STOPNODE = "stopNode";
+    public final static String CST_COUNTER_STARTNODE = "startNode";
+    public final static String CST_COUNTER_EXECUTE = "execute";
+    public final static String CST_COUNTER_GETALLCOMMANDS = "getAllCommands";
+    public final static String CST_COUNTER_SERIALIZEDBYTES = "serializedBytes";
+
+    /**
+     * time spent by the engine in each operation, in ms
+     */
+    public static class Latency {
+
+        public final long registerMs;
+        public final long addDependencyMs;
+        public final long stopNodeMs;
+        public final long executeMs;
+
+        public Latency(long registerMs, long addDependencyMs, long stopNodeMs, long executeMs) {
+            this.registerMs = registerMs;
+            this.addDependencyMs = addDependencyMs;
+            this.stopNodeMs = stopNodeMs;
+            this.executeMs = executeMs;
+        }
+
+        public static Latency none() {
+            return new Latency(0, 0, 0, 0);
+        }
+
+        @Override
+        public String toString() {
+            return "register[" + registerMs + "] addDependency[" + addDependencyMs + "] stopNode[" + stopNodeMs + "] execute[" + executeMs + "]";
+        }
+    }
+
+    private final long tenantId;
+    private final EmbeddedDatabase database;
+    private volatile Latency latency;
+    private volatile boolean serializeCalls = true;
+
+    private final Map<Long, CommandDescriptor> commands = new ConcurrentHashMap<>();
+    private final AtomicLong commandIdSequence = new AtomicLong();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * @param tenantId the tenant of the CommandAPI
+     * @param database holds the dependencies. The schema is created, and the database is published in JNDI
+     * @param latency time of the engine operations
+     */
+    public SimulatedEngine(long tenantId, EmbeddedDatabase database, Latency latency) throws SQLException {
+        this.tenantId = tenantId;
+        this.database = database;
+        this.latency = latency;
+        database.createSchema();
+        SimulatedInitialContextFactory.install();
+        SimulatedInitialContextFactory.bind(CST_DATASOURCE, database);
+    }
+
+    public void setLatency(Latency latency) {
+        this.latency = latency;
+    }
+
+    public Latency getLatency() {
+        return latency;
+    }
+
+    /**
+     * if true (default), parameters and results of execute() are copied by Java serialization
+     */
+    public void setSerializeCalls(boolean serializeCalls) {
+        this.serializeCalls = serializeCalls;
+    }
+
+    public EmbeddedDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * remove all commands and dependencies, and reset the counters
+     */
+    public void reset() throws SQLException {
+        commands.clear();
+        database.clear();
+        counters.clear();
+    }
+
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet())
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        return snapshot;
+    }
+
+    private void count(String name, long value) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(value);
+    }
+
+    private static void sleep(long timeMs) {
+        if (timeMs <= 0)
+            return;
+        try {
+            Thread.sleep(timeMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* CommandAPI */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * a CommandAPI on this engine. It is thread safe: share it between callers, or create one per caller
+     */
+    public CommandAPI getCommandAPI() {
+        return newProxy(CommandAPI.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getAllCommands":
+                    return getAllCommands((Integer) args[0], (Integer) args[1]);
+                case "register":
+                    return register((String) args[0], (String) args[1], (String) args[2]);
+                case "unregister":
+                    if (args[0] instanceof Long)
+                        unregister((Long) args[0]);
+                    else
+                        unregister(getCommandByName((String) args[0]).getId());
+                    return null;
+                case "addDependency":
+                    addDependency((String) args[0], (byte[]) args[1]);
+                    return null;
+                case "removeDependency":
+                    removeDependency((String) args[0]);
+                    return null;
+                case "get":
+                    return getCommand((Long) args[0]);
+                case "getCommand":
+                    return getCommandByName((String) args[0]);
+                case "execute":
+                case "executeWithUserTransactions":
+                    CommandDescriptor command = args[0] instanceof Long ? getCommand((Long) args[0]) : getCommandByName((String) args[0]);
+                    return execute(command, castParameters(args[1]));
+                default:
+                    return unsupported(proxy, method, args);
+            }
+        });
+    }
+
+    private List<CommandDescriptor> getAllCommands(int startIndex, int maxResults) {
+        count(CST_COUNTER_GETALLCOMMANDS, 1);
+        List<CommandDescriptor> listCommands = new ArrayList<>(commands.values());
+        listCommands.sort(Comparator.comparing(CommandDescriptor::getName));
+        if (startIndex >= listCommands.size())
+            return new ArrayList<>();
+        return new ArrayList<>(listCommands.subList(startIndex, Math.min(listCommands.size(), startIndex + maxResults)));
+    }
+
+    private CommandDescriptor register(String name, String description, String implementation) throws AlreadyExistsException {
+        count(CST_COUNTER_REGISTER, 1);
+        sleep(latency.registerMs);
+        // the name is unique, as in the engine database
+        synchronized (commands) {
+            for (CommandDescriptor command : commands.values())
+                if (command.getName().equals(name))
+                    throw new AlreadyExistsException("Command[" + name + "] already exists", name);
+            CommandDescriptorImpl command = new CommandDescriptorImpl(name, description, implementation);
+            command.setId(commandIdSequence.incrementAndGet());
+            commands.put(command.getId(), command);
+            return command;
+        }
+    }
+
+    private void unregister(long commandId) throws CommandNotFoundException {
+        count(CST_COUNTER_UNREGISTER, 1);
+        if (commands.remove(commandId) == null)
+            throw new CommandNotFoundException(new Exception("Command[" + commandId + "] not found"));
+    }
+
+    private CommandDescriptor getCommand(long commandId) throws CommandNotFoundException {
+        CommandDescriptor command = commands.get(commandId);
+        if (command == null)
+            throw new CommandNotFoundException(new Exception("Command[" + commandId + "] not found"));
+        return command;
+    }
+
+    private CommandDescriptor getCommandByName(String name) throws CommandNotFoundException {
+        for (CommandDescriptor command : commands.values())
+            if (command.getName().equals(name))
+                return command;
+        throw new CommandNotFoundException(new Exception("Command[" + name + "] not found"));
+    }
+
+    private void addDependency(String name, byte[] content) throws CreationException {
+        count(CST_COUNTER_ADDDEPENDENCY, 1);
+        sleep(latency.addDependencyMs);
+        try {
+            if (!database.insertDependency(tenantId, name, content))
+                throw new AlreadyExistsException("Dependency[" + name + "] already exists", name);
+        } catch (SQLException e) {
+            throw new CreationException(e);
+        }
+    }
+
+    private void removeDependency(String name) throws DependencyNotFoundException, DeletionException {
+        count(CST_COUNTER_REMOVEDEPENDENCY, 1);
+        try {
+            if (!database.deleteDependency(tenantId, name))
+                throw new DependencyNotFoundException(new Exception("Dependency[" + name + "] not found"));
+        } catch (SQLException e) {
+            throw new DeletionException(e);
+        }
+    }
+
+    /**
+     * one new object per call, as the engine
+     */
+    private Serializable execute(CommandDescriptor command, Map<String, Serializable> parameters) throws CommandExecutionException {
+        count(CST_COUNTER_EXECUTE, 1);
+        sleep(latency.executeMs);
+        try {
+            Class<?> commandClass = Class.forName(command.getImplementation(), true, Thread.currentThread().getContextClassLoader());
+            TenantCommand tenantCommand = (TenantCommand) commandClass.getDeclaredConstructor().newInstance();
+            Map<String, Serializable> callParameters = serializeCalls ? copy(parameters) : parameters;
+            Serializable result = tenantCommand.execute(callParameters, null);
+            return serializeCalls ? copy(result) : result;
+        } catch (Exception e) {
+            throw new CommandExecutionException(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Serializable> castParameters(Object parameters) {
+        return (Map<String, Serializable>) parameters;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T copy(T value) throws Exception {
+        if (value == null)
+            return null;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(value);
+        }
+        count(CST_COUNTER_SERIALIZEDBYTES, bytes.size());
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) input.readObject();
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* PlatformAPI */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * the PlatformAPI of one node of the cluster
+     */
+    public PlatformAPI getPlatformAPI() {
+        final boolean[] nodeStarted = new boolean[] { true };
+        return newProxy(PlatformAPI.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "stopNode":
+                    count(CST_COUNTER_STOPNODE, 1);
+                    sleep(latency.stopNodeMs);
+                    synchronized (nodeStarted) {
+                        nodeStarted[0] = false;
+                    }
+                    return null;
+                case "startNode":
+                    count(CST_COUNTER_STARTNODE, 1);
+                    synchronized (nodeStarted) {
+                        nodeStarted[0] = true;
+                    }
+                    return null;
+                case "isNodeStarted":
+                    synchronized (nodeStarted) {
+                        return nodeStarted[0];
+                    }
+                default:
+                    return unsupported(proxy, method, args);
+            }
+        });
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Proxy */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static <T> T newProxy(Class<T> apiClass, InvocationHandler handler) {
+        return apiClass.cast(Proxy.newProxyInstance(SimulatedEngine.class.getClassLoader(), new Class<?>[] { apiClass }, handler));
+    }
+
+    /**
+     * methods of Object, else UnsupportedOperationException
+     */
+    private static Object unsupported(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "toString":
+                return "Simulated" + method.getDeclaringClass().getSimpleName();
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException("SimulatedEngine does not implement " + method.getDeclaringClass().getSimpleName() + "." + method.getName());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.bonitasoft.command.benchmark.engine;
+
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * JNDI without an application server: new InitialContext() returns a read-only context giving the objects bound with bind().
+ * Install it with install(): it sets the system property java.naming.factory.initial.
+ */
+public class SimulatedInitialContextFactory implements InitialContextFactory {
+
+    private final static Map<String, Object> allBindings = new ConcurrentHashMap<>();
+
+    public static void install() {
+        System.setProperty(Context.INITIAL_CONTEXT_FACTORY, SimulatedInitialContextFactory.class.getName());
+    }
+
+    public static void bind(String name, Object value) {
+        allBindings.put(name, value);
+    }
+
+    public static void unbind(String name) {
+        allBindings.remove(name);
+    }
+
+    @Override
+    public Context getInitialContext(Hashtable<?, ?> environment) {
+        return (Context) Proxy.newProxyInstance(SimulatedInitialContextFactory.class.getClassLoader(), new Class<?>[] { Context.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "lookup":
+                            String name = String.valueOf(args[0]);
+                            Object value = allBindings.get(name);
+                            if (value == null)
+                                throw new NameNotFoundException(name);
+                            return value;
+                        case "close":
+                            return null;
+                        case "getEnvironment":
+                            return new Hashtable<>(environment == null ? new Hashtable<>() : environment);
+                        case "toString":
+                            return "SimulatedContext" + allBindings.keySet();
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new OperationNotSupportedException(method.getName());
+                    }
+                });
+    }
+}
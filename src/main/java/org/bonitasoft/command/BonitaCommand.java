@@ -5,12 +5,17 @@ import java.io.Serializable;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
+import org.bonitasoft.engine.api.APIAccessor;
 import org.bonitasoft.engine.command.SCommandExecutionException;
 import org.bonitasoft.engine.command.SCommandParameterizationException;
 import org.bonitasoft.engine.command.TenantCommand;
@@ -43,7 +48,7 @@ import org.bonitasoft.log.event.BEventFactory;
  * BonitaCommand.execute()
  * find the singleton
  * check PING / HELP / afterRestart ==> Extend afterRestart, call afterRestart(APIAccessor)
- * else call executeCommand()
+ * else call executeCommand(), which calls by default the method annotated with @Verb
  * BONITACommandAPIAccessor.executeCommand():
  * t = new Thread()
  * t.start()
@@ -64,6 +69,22 @@ public abstract class BonitaCommand extends TenantCommand {
     private final static BEvent eventInternalError = new BEvent(BonitaCommand.class.getName(), 1, Level.ERROR,
             "Internal error", "Internal error, check the log");
 
+    protected final static BEvent eventDeadlineExceeded = new BEvent(BonitaCommand.class.getName(), 2, Level.APPLICATIONERROR,
+            "Deadline exceeded", "The deadline given by the caller is already passed, the call is not executed", "No result", "Give a larger deadline, or check the server load");
+
+    private final static BEvent eventInitializationNotReady = new BEvent(BonitaCommand.class.getName(), 4, Level.APPLICATIONERROR,
+            "Command not initialized", "The afterRestart() initialization of the command is not finished, or failed", "The call is not executed", "Retry later, check the log");
+
+    private final static BEvent eventTooManyCalls = new BEvent(BonitaCommand.class.getName(), 3, Level.APPLICATIONERROR,
+            "Too many calls", "The maximum number of calls running in parallel for this verb is reached", "The call is not executed", "Retry later");
+
+    private final static BEvent eventUnknownJob = new BEvent(BonitaCommand.class.getName(), 5, Level.APPLICATIONERROR,
+            "Unknown job", "No job with this id: it was never submitted, or it was evicted after its retention time", "No status, no result", "Check the job id");
+
+    private final static BEvent eventScheduleNotAllowed = new BEvent(BonitaCommand.class.getName(), 6, Level.APPLICATIONERROR,
+            "Schedule not allowed", "A scheduled verb runs outside any engine call and transaction: it is allowed only on a BonitaCommandApiAccessor, or a command with useManagedInstance()",
+            "The verb is not scheduled", "Extend BonitaCommandApiAccessor, or return true in useManagedInstance()");
+
     /* ******************************************************************************** */
     /*                                                                                  */
     /* the companion MilkCmdControlAPI call this API */
@@ -77,15 +98,74 @@ public abstract class BonitaCommand extends TenantCommand {
     public final static String CST_VERB_AFTERDEPLOIMENT = "AFTERDEPLOYMENT";
     public final static String CST_VERB_PING = "PING";
     public final static String CST_VERBE_HELP = "HELP";
+    /**
+     * return the latency metrics of the command (see BonitaCommandMetrics)
+     */
+    public final static String CST_VERB_METRICS = "METRICS";
+    /**
+     * run the afterRestart() now, if it was not done, instead of waiting for the first call
+     */
+    public final static String CST_VERB_WARMUP = "WARMUP";
+    /**
+     * called by BonitaCommandDeployment before the command is unregistered: release the resources (pools...)
+     */
+    public final static String CST_VERB_BEFOREUNDEPLOYMENT = "BEFOREUNDEPLOYMENT";
+    /**
+     * status of an asynchronous call (parameter CST_JOBID), or list of the jobs if no job id is given
+     */
+    public final static String CST_VERB_JOBSTATUS = "JOBSTATUS";
+    /**
+     * status and result of an asynchronous call (parameter CST_JOBID)
+     */
+    public final static String CST_VERB_JOBRESULT = "JOBRESULT";
+    /**
+     * cancel an asynchronous call (parameter CST_JOBID)
+     */
+    public final static String CST_VERB_JOBCANCEL = "JOBCANCEL";
 
     /**
      * this constant is defined too in MilkQuartzJob to have an independent JAR
      */
     public final static String CST_TENANTID = "tenantId";
     public final static String CST_PARAMETER_COMMAND = "parametersCmd";
+    /**
+     * absolute time (System.currentTimeMillis()) after which the caller does not wait the answer anymore. Optional.
+     */
+    public final static String CST_DEADLINE = "deadline";
+    /**
+     * parameter: set it to Boolean.TRUE to execute the call in background. The answer contains the job id (see BonitaCommandJobs)
+     */
+    public final static String CST_ASYNC = "async";
+    public final static String CST_JOBID = "jobId";
 
     public final static String CST_RESULT_TIMEINMS = "timeinms";
+    public final static String CST_RESULT_METRICS = "metrics";
+    public final static String CST_RESULT_HELP = "help";
+    public final static String CST_RESULT_VERBS = "verbs";
+    public final static String CST_RESULT_BULKHEADS = "bulkheads";
+    public final static String CST_RESULT_CACHE = "cache";
+    public final static String CST_RESULT_EXECUTOR = "executor";
+    public final static String CST_RESULT_APIACCESSOR = "apiaccessor";
+    public final static String CST_RESULT_JOBS = "jobs";
+    public final static String CST_RESULT_SINGLEFLIGHT = "singleflight";
+    public final static String CST_RESULT_SCHEDULES = "schedules";
+    public final static String CST_RESULT_JOBSTATUS = "jobstatus";
+    /**
+     * result of the job, when the command returns a resultSerializable
+     */
+    public final static String CST_RESULT_JOBRESULT = "jobresult";
+    /**
+     * legacy: the list of events, rendered in HTML. Populated only if the caller set CST_HTMLEVENTS to true
+     */
     public final static String CST_RESULT_LISTEVENTS = "listevents";
+    /**
+     * the list of events, in a structured form (see toStructuredEvents()). Populated only if there are events
+     */
+    public final static String CST_RESULT_EVENTS = "events";
+    /**
+     * parameter: set it to Boolean.TRUE to get the CST_RESULT_LISTEVENTS in the answer
+     */
+    public final static String CST_HTMLEVENTS = "htmlevents";
 
     /* ******************************************************************************** */
     /*                                                                                  */
@@ -103,6 +183,25 @@ public abstract class BonitaCommand extends TenantCommand {
         return this;
     }
 
+    /**
+     * Return true to let the framework manage the instance: one object per command class and per tenant, kept between calls.
+     * The first object created by the engine for a tenant is kept, initInstance() is called on it one time, then all calls go to this object.
+     * Then caches, connections... stay warm between calls. getInstance() is not used in that case.
+     * The object is shared by concurrent calls: its members must be thread safe.
+     */
+    public boolean useManagedInstance() {
+        return false;
+    }
+
+    /**
+     * Lifecycle: called one time on the managed instance, before its first call. See useManagedInstance().
+     * If this method throws an exception, the instance is not kept, and the next call creates a new one.
+     * 
+     * @param tenantId tenant of this instance
+     */
+    public void initInstance(long tenantId) throws Exception {
+    }
+
     /**
      * return the name
      */
@@ -204,6 +303,39 @@ public abstract class BonitaCommand extends TenantCommand {
         public void setTenantId(Long tenantId) {
             this.tenantId = tenantId == null ? 1 : tenantId.longValue();
         }
+
+        /**
+         * the caller wants the events rendered in HTML (legacy CST_RESULT_LISTEVENTS)
+         */
+        public boolean htmlEvents = false;
+
+        /**
+         * the caller does not wait: the call is executed in background, and the answer is the job id
+         */
+        public boolean async = false;
+
+        /**
+         * deadline given by the caller (absolute time in ms), null if the caller waits as long as needed
+         */
+        public Long deadline;
+
+        public void setDeadline(Long deadline) {
+            this.deadline = deadline == null || deadline.longValue() <= 0 ? null : deadline;
+        }
+
+        /** return true if the caller gave a deadline, and this deadline is passed */
+        public boolean isDeadlineExpired() {
+            return deadline != null && System.currentTimeMillis() >= deadline;
+        }
+
+        /**
+         * return the time left before the deadline, in ms. Return null if there is no deadline
+         */
+        public Long getRemainingTimeMs() {
+            if (deadline == null)
+                return null;
+            return Math.max(0, deadline - System.currentTimeMillis());
+        }
     }
 
     public static class ExecuteAnswer {
@@ -220,6 +352,7 @@ public abstract class BonitaCommand extends TenantCommand {
 
     /**
      * execute the command.
+     * The default implementation calls the method annotated with @Verb for the verb (see BonitaCommandVerbs), and return an error if the verb is unknown.
      * 
      * @param verb : if the command respect the Verb / Parameter, then the verb of the command
      * @param parametersCommand : if the command respect the Verb / Parameter, then the parameter of the command
@@ -228,7 +361,38 @@ public abstract class BonitaCommand extends TenantCommand {
      * @param serviceAccessor
      * @return
      */
-    public abstract ExecuteAnswer executeCommand(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor);
+    public ExecuteAnswer executeCommand(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        return executeVerb(executeParameters, serviceAccessor, null);
+    }
+
+    /**
+     * the dispatch table of this command: all methods annotated with @Verb
+     */
+    public BonitaCommandVerbs getVerbs() {
+        return BonitaCommandVerbs.getInstance(getClass());
+    }
+
+    /**
+     * call the method annotated with @Verb for the verb
+     * 
+     * @param apiAccessor given only by a BonitaCommandApiAccessor
+     * @return the answer, with an error if the verb is unknown
+     */
+    protected ExecuteAnswer executeVerb(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor, APIAccessor apiAccessor) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(executeParameters.verb);
+        if (handler == null)
+            return getVerbs().getUnknownVerbAnswer(executeParameters.verb);
+        try {
+            return handler.invoke(this, executeParameters, serviceAccessor, apiAccessor);
+        } catch (Exception e) {
+            StringWriter sw = new StringWriter();
+            e.printStackTrace(new PrintWriter(sw));
+            logger.severe(logHeader + "Verb[" + executeParameters.verb + "] ERROR " + e + " at " + sw.toString());
+            ExecuteAnswer executeAnswer = new ExecuteAnswer();
+            executeAnswer.listEvents.add(new BEvent(eventInternalError, e, "Verb[" + executeParameters.verb + "]"));
+            return executeAnswer;
+        }
+    }
 
     /**
      * this method is called one time, just after the deployment. So, command is free to finish all initialisation
@@ -257,12 +421,32 @@ public abstract class BonitaCommand extends TenantCommand {
         return executeAnswer;
     }
 
+    /**
+     * this method is called just before the command is undeployed (or redeployed). The command must release its resources.
+     * The default implementation cancels the scheduled verbs, forgets the managed instances and the cache. Call it if you override it.
+     * 
+     * @param executeParameters
+     * @param serviceAccessor
+     * @return
+     */
+    public ExecuteAnswer beforeUndeployment(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        BonitaCommandScheduler.cancel(getMetrics().getCommandName());
+        releaseManagedInstances(getClass());
+        invalidateCache();
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.result.put(CSTANSWER_STATUS, CSTANSWER_STATUS_V_OK);
+        return executeAnswer;
+    }
+
     @SuppressWarnings("unchecked")
     public ExecuteAnswer executeCommandVerbe( String verb, Map<String, Serializable> parameters, TenantServiceAccessor serviceAccessor) {
         ExecuteParameters executeParameters = new ExecuteParameters(verb);
         executeParameters.parameters = parameters;
         executeParameters.verb = (String) parameters.get(CST_VERB);
         executeParameters.setTenantId((Long) parameters.get(CST_TENANTID));
+        executeParameters.setDeadline(getDeadline(parameters));
+        executeParameters.htmlEvents = Boolean.TRUE.equals(parameters.get(CST_HTMLEVENTS));
+        executeParameters.async = Boolean.TRUE.equals(parameters.get(CST_ASYNC));
 
         executeParameters.parametersCommand = (Map<String, Serializable>) parameters.get(BonitaCommand.CST_PARAMETER_COMMAND);
 
@@ -278,9 +462,120 @@ public abstract class BonitaCommand extends TenantCommand {
      * @return
      */
     public String getHelp(Map<String, Serializable> parameters, long tenantId, TenantServiceAccessor serviceAccessor) {
+        if (getVerbs().hasCommandVerbs())
+            return getVerbs().getHelpText();
         return "No help available";
     }
 
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Built-in verbs */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    @Verb(value = CST_VERB_PING, help = "check the command is alive")
+    private ExecuteAnswer verbPing() {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.result.put("ping", "hello world");
+        executeAnswer.result.put(CSTANSWER_STATUS, CSTANSWER_STATUS_V_OK);
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_AFTERDEPLOIMENT, help = "called by BonitaCommandDeployment after the deployment", initialization = false)
+    private ExecuteAnswer verbAfterDeployment(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        ExecuteAnswer executeAnswer = afterDeployment(executeParameters, serviceAccessor);
+        BEvent eventInitialization = checkExecuteAfterRestart(executeParameters.parameters, serviceAccessor);
+        if (eventInitialization != null)
+            executeAnswer.listEvents.add(eventInitialization);
+        return executeAnswer;
+    }
+
+    /**
+     * the initialization (afterRestart) is done by the BonitaCommand before calling this verb
+     */
+    @Verb(value = CST_VERB_WARMUP, help = "execute the afterRestart() initialization now")
+    private ExecuteAnswer verbWarmUp() {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.result.put(CSTANSWER_STATUS, CSTANSWER_STATUS_V_OK);
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_METRICS, help = "latency metrics per verb", initialization = false)
+    private ExecuteAnswer verbMetrics() {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        addMetrics(executeAnswer);
+        return executeAnswer;
+    }
+
+    /**
+     * complete the answer of the METRICS verb
+     */
+    protected void addMetrics(ExecuteAnswer executeAnswer) {
+        executeAnswer.result.put(CST_RESULT_METRICS, getMetrics().getMetrics());
+        executeAnswer.result.put(CST_RESULT_BULKHEADS, BonitaCommandBulkhead.getSnapshot(getMetrics().getCommandName()));
+        executeAnswer.result.put(CST_RESULT_CACHE, getCache().getSnapshot());
+        executeAnswer.result.put(CST_RESULT_JOBS, getJobs().getSnapshot());
+        executeAnswer.result.put(CST_RESULT_SINGLEFLIGHT, getSingleFlight().getSnapshot());
+        executeAnswer.result.put(CST_RESULT_SCHEDULES, BonitaCommandScheduler.getInstance(getMetrics().getCommandName()).getSnapshot());
+    }
+
+    @Verb(value = CST_VERB_JOBSTATUS, help = "status of a background job, or list of the jobs", initialization = false)
+    private ExecuteAnswer verbJobStatus(ExecuteParameters executeParameters, @Verb.Param(CST_JOBID) String jobId) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.logAnswer = false;
+        if (jobId == null) {
+            executeAnswer.result.put(CST_RESULT_JOBS, getJobs().getListJobs(executeParameters.tenantId));
+            return executeAnswer;
+        }
+        BonitaCommandJobs.Job job = getJobs().getJob(jobId, executeParameters.tenantId);
+        if (job == null)
+            executeAnswer.listEvents.add(new BEvent(eventUnknownJob, "JobId[" + jobId + "]"));
+        else
+            executeAnswer.result.putAll(job.getDescription());
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_JOBRESULT, help = "status and result of a background job", initialization = false)
+    private ExecuteAnswer verbJobResult(ExecuteParameters executeParameters, @Verb.Param(value = CST_JOBID, mandatory = true) String jobId) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        BonitaCommandJobs.Job job = getJobs().getJob(jobId, executeParameters.tenantId);
+        if (job == null) {
+            executeAnswer.listEvents.add(new BEvent(eventUnknownJob, "JobId[" + jobId + "]"));
+            return executeAnswer;
+        }
+        if (job.isCompleted())
+            BonitaCommandJobs.copyAnswer(job, executeAnswer);
+        executeAnswer.result.putAll(job.getDescription());
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_JOBCANCEL, help = "cancel a background job", initialization = false)
+    private ExecuteAnswer verbJobCancel(ExecuteParameters executeParameters, @Verb.Param(value = CST_JOBID, mandatory = true) String jobId) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        BonitaCommandJobs.Job job = getJobs().getJob(jobId, executeParameters.tenantId);
+        if (job == null) {
+            executeAnswer.listEvents.add(new BEvent(eventUnknownJob, "JobId[" + jobId + "]"));
+            return executeAnswer;
+        }
+        getJobs().cancel(job);
+        executeAnswer.result.putAll(job.getDescription());
+        return executeAnswer;
+    }
+
+    @Verb(value = CST_VERB_BEFOREUNDEPLOYMENT, help = "called by BonitaCommandDeployment before the undeployment", initialization = false)
+    private ExecuteAnswer verbBeforeUndeployment(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        return beforeUndeployment(executeParameters, serviceAccessor);
+    }
+
+    @Verb(value = CST_VERBE_HELP, help = "this help")
+    private ExecuteAnswer verbHelp(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.result.put(CST_RESULT_HELP, getHelp(executeParameters.parameters, executeParameters.tenantId, serviceAccessor));
+        executeAnswer.result.put(CST_RESULT_VERBS, getVerbs().getHelpDescription());
+        return executeAnswer;
+    }
+
     /* ******************************************************************************** */
     /*                                                                                  */
     /* the BonitaEngine Command API call this API */
@@ -295,10 +590,85 @@ public abstract class BonitaCommand extends TenantCommand {
     public Serializable execute(Map<String, Serializable> parameters, TenantServiceAccessor serviceAccessor)
             throws SCommandParameterizationException, SCommandExecutionException {
 
-        BonitaCommand executableCmdControl = getInstance();
+        BonitaCommand executableCmdControl;
+        if (useManagedInstance()) {
+            Long tenantId = (Long) parameters.get(CST_TENANTID);
+            executableCmdControl = getManagedInstance(tenantId == null ? 1 : tenantId.longValue());
+        } else
+            executableCmdControl = getInstance();
         return executableCmdControl.executeSingleton(parameters, serviceAccessor);
     }
 
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Managed instances */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static class InstanceKey {
+
+        private final Class<?> commandClass;
+        private final long tenantId;
+
+        private InstanceKey(Class<?> commandClass, long tenantId) {
+            this.commandClass = commandClass;
+            this.tenantId = tenantId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof InstanceKey))
+                return false;
+            return commandClass == ((InstanceKey) o).commandClass && tenantId == ((InstanceKey) o).tenantId;
+        }
+
+        @Override
+        public int hashCode() {
+            return commandClass.hashCode() * 31 + Long.hashCode(tenantId);
+        }
+    }
+
+    /**
+     * the FutureTask is published by the ConcurrentHashMap: the instance is visible only once initInstance() is finished
+     */
+    private static Map<InstanceKey, FutureTask<BonitaCommand>> managedInstances = new ConcurrentHashMap<>();
+
+    private BonitaCommand getManagedInstance(long tenantId) throws SCommandExecutionException {
+        InstanceKey key = new InstanceKey(getClass(), tenantId);
+        FutureTask<BonitaCommand> instanceTask = managedInstances.get(key);
+        if (instanceTask == null) {
+            final BonitaCommand candidate = this;
+            FutureTask<BonitaCommand> newTask = new FutureTask<>(() -> {
+                candidate.initInstance(tenantId);
+                return candidate;
+            });
+            instanceTask = managedInstances.putIfAbsent(key, newTask);
+            if (instanceTask == null) {
+                // this thread won: it initializes the instance
+                instanceTask = newTask;
+                instanceTask.run();
+            }
+        }
+        try {
+            return instanceTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SCommandExecutionException(e);
+        } catch (ExecutionException e) {
+            // the next call will try again
+            managedInstances.remove(key, instanceTask);
+            logger.severe(logHeader + "Command[" + getName() + "] Tenant[" + tenantId + "] initInstance failed: " + e.getCause());
+            throw new SCommandExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Forget the managed instances of a command class (all tenants). The next call creates a new instance.
+     */
+    public static void releaseManagedInstances(Class<?> commandClass) {
+        managedInstances.keySet().removeIf(key -> key.commandClass == commandClass);
+    }
+
     /**
      * Singleton object. All privates members are safe
      * 
@@ -314,8 +684,11 @@ public abstract class BonitaCommand extends TenantCommand {
 
         long currentTime = System.currentTimeMillis();
         long startTime = System.currentTimeMillis();
+        long startTimeNano = System.nanoTime();
         ExecuteAnswer executeAnswer = null;
         ExecuteParameters executeParameters = null;
+        BonitaCommandContext previousContext = null;
+        boolean contextAttached = false;
         try {
 
             String verb = (String) parameters.get(CST_VERB);
@@ -323,32 +696,52 @@ public abstract class BonitaCommand extends TenantCommand {
 
             executeParameters.parameters = parameters;
             executeParameters.setTenantId((Long) parameters.get(CST_TENANTID));
+            executeParameters.setDeadline(getDeadline(parameters));
+            executeParameters.htmlEvents = Boolean.TRUE.equals(parameters.get(CST_HTMLEVENTS));
+            executeParameters.async = Boolean.TRUE.equals(parameters.get(CST_ASYNC));
             executeParameters.parametersCommand = (Map<String, Serializable>) parameters.get(BonitaCommand.CST_PARAMETER_COMMAND);
 
-            logger.fine(logHeader + "BonitaCommand Verb[" + (executeParameters.verb == null ? null : executeParameters.verb.toString()) + "] Tenant[" + executeParameters.tenantId + "]");
-
-            // ------------------- ping ?
-            if (CST_VERB_PING.equals(executeParameters.verb)) {
-                checkExecuteAfterRestart( parameters, serviceAccessor);
+            previousContext = BonitaCommandContext.attach(BonitaCommandContext.newCall(executeParameters, serviceAccessor));
+            contextAttached = true;
 
-                // logger.info("CmdCreateMilk: ping");
-                executeAnswer = new ExecuteAnswer();
-                executeAnswer.result.put("ping", "hello world");
-                executeAnswer.result.put("status", "OK");
-            } else if (CST_VERB_AFTERDEPLOIMENT.equals(executeParameters.verb)) {
-                executeAnswer = afterDeployment(executeParameters, serviceAccessor);
-
-                checkExecuteAfterRestart( parameters, serviceAccessor);
+            logger.fine(logHeader + "BonitaCommand Verb[" + (executeParameters.verb == null ? null : executeParameters.verb.toString()) + "] Tenant[" + executeParameters.tenantId + "]");
 
-            } else if (CST_VERBE_HELP.equals(executeParameters.verb)) {
-                checkExecuteAfterRestart( parameters, serviceAccessor);
+            BEvent eventSchedule = null;
+            if (!CST_VERB_BEFOREUNDEPLOYMENT.equals(executeParameters.verb))
+                eventSchedule = startSchedules(executeParameters.tenantId, serviceAccessor);
 
+            // ------------------- the caller does not wait anymore: no need to work for nothing
+            if (executeParameters.isDeadlineExpired()) {
                 executeAnswer = new ExecuteAnswer();
-                executeAnswer.result.put("help", getHelp(parameters, executeParameters.tenantId, serviceAccessor));
+                executeAnswer.listEvents.add(new BEvent(eventDeadlineExceeded, "Verb[" + executeParameters.verb + "] Deadline[" + executeParameters.deadline + "]"));
             } else {
-                checkExecuteAfterRestart( parameters, serviceAccessor);
+                BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(executeParameters.verb);
+                BEvent eventInitialization = null;
+                if (handler == null || handler.getVerb().initialization())
+                    eventInitialization = checkExecuteAfterRestart( parameters, serviceAccessor);
 
-                executeAnswer = executeCommand(executeParameters, serviceAccessor);
+                if (eventInitialization != null) {
+                    executeAnswer = new ExecuteAnswer();
+                    executeAnswer.listEvents.add(eventInitialization);
+                } else {
+                    // a cached answer is returned immediately. A call not waiting for its answer gets a job id: never cached
+                    String cacheKey = null;
+                    long cacheTtlMs = (handler != null && handler.isBuiltIn()) || !isAnswerAwaited(executeParameters) ? 0 : getCacheTtlMs(executeParameters.verb);
+                    if (cacheTtlMs > 0) {
+                        cacheKey = BonitaCommandCache.getKey(executeParameters.verb, executeParameters.tenantId, executeParameters.parametersCommand);
+                        executeAnswer = getCache().get(cacheKey);
+                    }
+                    if (executeAnswer == null) {
+                        executeAnswer = executeVerbCoalesced(handler, executeParameters, serviceAccessor, cacheKey);
+                        if (cacheKey != null && executeAnswer != null && !BEventFactory.isError(executeAnswer.listEvents))
+                            getCache().put(cacheKey, executeParameters.verb, executeParameters.tenantId, cacheTtlMs, executeAnswer);
+                    }
+                }
+            }
+            if (eventSchedule != null) {
+                if (executeAnswer == null)
+                    executeAnswer = new ExecuteAnswer();
+                executeAnswer.listEvents.add(eventSchedule);
             }
 
         } catch (Exception e) {
@@ -361,13 +754,19 @@ public abstract class BonitaCommand extends TenantCommand {
 
             executeAnswer.listEvents.add(new BEvent(eventInternalError, e.getMessage()));
         } finally {
+            if (contextAttached)
+                BonitaCommandContext.restore(previousContext);
             if (executeAnswer == null)
                 executeAnswer = new ExecuteAnswer();
             executeAnswer.result.put(CST_RESULT_TIMEINMS, System.currentTimeMillis() - currentTime);
-            executeAnswer.result.put(CST_RESULT_LISTEVENTS, BEventFactory.getHtml(executeAnswer.listEvents));
-            if (executeAnswer.logAnswer)
+            getMetrics().record(executeParameters == null ? null : executeParameters.verb, System.nanoTime() - startTimeNano, BEventFactory.isError(executeAnswer.listEvents));
+            // the MBean of the metrics keeps this class: release it with the command
+            if (executeParameters != null && CST_VERB_BEFOREUNDEPLOYMENT.equals(executeParameters.verb))
+                BonitaCommandMetrics.release(BonitaCommandMetrics.CST_SIDE_SERVER, getMetrics().getCommandName());
+            putEvents(executeAnswer.result, executeAnswer.listEvents, executeParameters != null && executeParameters.htmlEvents);
+            if (executeAnswer.logAnswer && logger.isLoggable(java.util.logging.Level.INFO))
                 logger.info(logHeader + "Verb[" + (executeParameters.verb == null ? "null" : executeParameters.verb.toString()) + "] Tenant["
-                        + executeParameters.tenantId + "] Result:" + BEventFactory.getSyntheticErrorLog(executeAnswer.listEvents) + " in "
+                        + executeParameters.tenantId + "] Result:" + (executeAnswer.listEvents.isEmpty() ? "" : BEventFactory.getSyntheticErrorLog(executeAnswer.listEvents)) + " in "
                         + (System.currentTimeMillis() - startTime) + " ms");
 
         }
@@ -382,26 +781,356 @@ public abstract class BonitaCommand extends TenantCommand {
         return executeAnswer.result;
     }
 
-    private static Set<String> lockBasedOnCommand = new HashSet<>();
+    /**
+     * Limit of concurrent calls for a verb. By default, the limit declared in the @Verb annotation.
+     * Override it to declare limits for verbs managed in executeCommand().
+     * 
+     * @param verb
+     * @return null if there is no limit
+     */
+    public BonitaCommandBulkhead.Policy getBulkheadPolicy(String verb) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(verb);
+        if (handler == null || handler.getVerb().maxConcurrent() <= 0)
+            return null;
+        return new BonitaCommandBulkhead.Policy(handler.getVerb().maxConcurrent(), handler.getVerb().maxQueue(), handler.getVerb().queueTimeoutMs());
+    }
 
-    private void checkExecuteAfterRestart( Map<String, Serializable> parameters, TenantServiceAccessor serviceAccessor) {
-        if (getName() == null)
-            return;
-        // check before the synchronize to limit the synchronize call
-        if (lockBasedOnCommand.contains(getName()))
-            return;
-        synchronized (lockBasedOnCommand) {
-            if (lockBasedOnCommand.contains(getName()))
-                return;
+    /**
+     * true if the caller waits for the answer of the call. False for an asynchronous call (parameter CST_ASYNC): the answer is a job id, and the
+     * call is not cached nor coalesced.
+     */
+    protected boolean isAnswerAwaited(ExecuteParameters executeParameters) {
+        return !executeParameters.async;
+    }
+
+    /**
+     * Time to live of the result of a verb in the server cache. By default, the TTL declared in the @Verb annotation.
+     * Override it to cache verbs managed in executeCommand(). Only answers without error are cached.
+     * 
+     * @param verb
+     * @return 0 if the verb is not cached
+     */
+    public long getCacheTtlMs(String verb) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(verb);
+        return handler == null ? 0 : handler.getVerb().cacheTtlMs();
+    }
+
+    /**
+     * Identical calls of a verb running at the same time share one execution. By default, the coalesce flag declared in the @Verb annotation.
+     * Override it to coalesce verbs managed in executeCommand(). Only for verbs returning the same answer to all callers.
+     * 
+     * @param verb
+     * @return true if the calls are coalesced
+     */
+    public boolean isCoalesced(String verb) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(verb);
+        return handler != null && handler.getVerb().coalesce();
+    }
+
+    public BonitaCommandSingleFlight getSingleFlight() {
+        return BonitaCommandSingleFlight.getInstance(getMetrics().getCommandName());
+    }
+
+    /**
+     * Verbs executed periodically on each tenant: verb -> period in ms. By default, the verbs declared with @Verb(scheduleMs).
+     * The verb is called without parameters, like a call from a client: metrics, cache, bulkhead apply.
+     * Allowed only on a BonitaCommandApiAccessor or a command with useManagedInstance(), else the verbs are not scheduled.
+     */
+    public Map<String, Long> getScheduledVerbs() {
+        return getVerbs().getScheduledVerbs();
+    }
+
+    /**
+     * the first call on a tenant starts the schedules of this tenant.
+     * A run happens outside the engine call which gave the TenantServiceAccessor, so without transaction: only a BonitaCommandApiAccessor (the verb
+     * runs in its own thread, with the API) or a managed instance (built to live between calls) can schedule verbs.
+     *
+     * @return an event the first time the schedules are refused on the tenant, else null
+     */
+    private BEvent startSchedules(long tenantId, TenantServiceAccessor serviceAccessor) {
+        Map<String, Long> scheduledVerbs = getScheduledVerbs();
+        if (scheduledVerbs.isEmpty())
+            return null;
+        BonitaCommandScheduler scheduler = BonitaCommandScheduler.getInstance(getMetrics().getCommandName());
+        if (!(this instanceof BonitaCommandApiAccessor) && !useManagedInstance()) {
+            BEvent eventSchedule = null;
+            for (String verb : scheduledVerbs.keySet()) {
+                if (scheduler.reject(verb, tenantId)) {
+                    logger.severe(logHeader + "Scheduled Verb[" + verb + "] Tenant[" + tenantId + "] not allowed: extend BonitaCommandApiAccessor or use a managed instance");
+                    eventSchedule = new BEvent(eventScheduleNotAllowed, "Verbs " + scheduledVerbs.keySet() + " Tenant[" + tenantId + "]");
+                }
+            }
+            return eventSchedule;
+        }
+        for (Map.Entry<String, Long> scheduledVerb : scheduledVerbs.entrySet()) {
+            if (scheduler.isScheduled(scheduledVerb.getKey(), tenantId))
+                continue;
+            final String verb = scheduledVerb.getKey();
+            scheduler.schedule(verb, tenantId, scheduledVerb.getValue(), () -> executeScheduledVerb(verb, tenantId, serviceAccessor));
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the verb succeeded
+     */
+    @SuppressWarnings("unchecked")
+    private boolean executeScheduledVerb(String verb, long tenantId, TenantServiceAccessor serviceAccessor) {
+        HashMap<String, Serializable> parameters = new HashMap<>();
+        parameters.put(CST_VERB, verb);
+        parameters.put(CST_TENANTID, tenantId);
+        parameters.put(CST_PARAMETER_COMMAND, new HashMap<String, Serializable>());
+        try {
+            Serializable result = executeSingleton(parameters, serviceAccessor);
+            return !(result instanceof Map) || !BEventFactory.isError(getListEvents((Map<String, Object>) result));
+        } catch (Exception e) {
+            logger.severe(logHeader + "Scheduled Verb[" + verb + "] Tenant[" + tenantId + "] " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * maximum number of answers kept in the cache of this command. The least recently used answer is evicted first.
+     */
+    public int getCacheMaxEntries() {
+        return 1000;
+    }
+
+    public BonitaCommandCache getCache() {
+        return BonitaCommandCache.getInstance(getMetrics().getCommandName(), getCacheMaxEntries());
+    }
+
+    /**
+     * maximum number of completed background jobs kept with their result. The oldest completed is evicted first.
+     */
+    public int getJobsMaxCompleted() {
+        return 1000;
+    }
+
+    /**
+     * time a completed background job is kept with its result
+     */
+    public long getJobsRetentionMs() {
+        return 60 * 60 * 1000L;
+    }
+
+    public BonitaCommandJobs getJobs() {
+        return BonitaCommandJobs.getInstance(getMetrics().getCommandName(), getJobsMaxCompleted(), getJobsRetentionMs());
+    }
+
+    /**
+     * the data behind the cached verbs changed: remove all answers in the cache
+     */
+    public void invalidateCache() {
+        getCache().invalidate(null, null);
+    }
+
+    /**
+     * remove the cached answers of a verb, for all tenants
+     */
+    public void invalidateCache(String verb) {
+        getCache().invalidate(verb, null);
+    }
+
+    /**
+     * remove the cached answers of a verb for a tenant
+     */
+    public void invalidateCache(String verb, long tenantId) {
+        getCache().invalidate(verb, tenantId);
+    }
+
+    /**
+     * server metrics for this command
+     */
+    protected BonitaCommandMetrics getMetrics() {
+        return BonitaCommandMetrics.getInstance(BonitaCommandMetrics.CST_SIDE_SERVER, getName() == null ? getClass().getName() : getName());
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Events in the answer */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private final static String CST_EVENT_PACKAGE = "package";
+    private final static String CST_EVENT_NUMBER = "number";
+    private final static String CST_EVENT_LEVEL = "level";
+    private final static String CST_EVENT_TITLE = "title";
+    private final static String CST_EVENT_PARAMETERS = "parameters";
+
+    /**
+     * Put the events in the result. Nothing is calculated when there is no event, and the HTML is rendered only on demand.
+     * 
+     * @param result the result to complete
+     * @param listEvents events to add
+     * @param htmlEvents if true, the legacy CST_RESULT_LISTEVENTS is populated too
+     */
+    public static void putEvents(Map<String, Object> result, List<BEvent> listEvents, boolean htmlEvents) {
+        if (!listEvents.isEmpty())
+            result.put(CST_RESULT_EVENTS, toStructuredEvents(listEvents));
+        if (htmlEvents)
+            result.put(CST_RESULT_LISTEVENTS, BEventFactory.getHtml(listEvents));
+    }
 
-            lockBasedOnCommand.add(getName());
+    /**
+     * Compact, serializable form of a list of events: one map per event (package, number, level, title, parameters)
+     */
+    public static ArrayList<HashMap<String, Serializable>> toStructuredEvents(List<BEvent> listEvents) {
+        ArrayList<HashMap<String, Serializable>> listStructured = new ArrayList<>(listEvents.size());
+        for (BEvent event : listEvents) {
+            HashMap<String, Serializable> eventMap = new HashMap<>();
+            eventMap.put(CST_EVENT_PACKAGE, event.getPackageName());
+            eventMap.put(CST_EVENT_NUMBER, event.getNumber());
+            eventMap.put(CST_EVENT_LEVEL, event.getLevel() == null ? null : event.getLevel().toString());
+            eventMap.put(CST_EVENT_TITLE, event.getTitle());
+            eventMap.put(CST_EVENT_PARAMETERS, event.getParameters());
+            listStructured.add(eventMap);
         }
-        // multiple thread can arrive here. Only let one go to the next part*
+        return listStructured;
+    }
 
-        ExecuteParameters executeParametersRestart = new ExecuteParameters( null);
-        executeParametersRestart.setTenantId((Long) parameters.get(CST_TENANTID));
+    /**
+     * deadline given by the caller (CST_DEADLINE), whatever the Number type after serialization. Null if there is no deadline
+     */
+    public static Long getDeadline(Map<String, Serializable> parameters) {
+        Object deadline = parameters == null ? null : parameters.get(CST_DEADLINE);
+        return deadline instanceof Number ? Long.valueOf(((Number) deadline).longValue()) : null;
+    }
 
-        afterRestart(executeParametersRestart, serviceAccessor);
+    /**
+     * Rebuild the list of events from a result. Return an empty list if the result does not contains any events.
+     */
+    @SuppressWarnings("unchecked")
+    public static List<BEvent> getListEvents(Map<String, Object> result) {
+        List<BEvent> listEvents = new ArrayList<>();
+        if (result == null || !(result.get(CST_RESULT_EVENTS) instanceof List))
+            return listEvents;
+        for (Map<String, Serializable> eventMap : (List<Map<String, Serializable>>) result.get(CST_RESULT_EVENTS)) {
+            Level level = eventMap.get(CST_EVENT_LEVEL) == null ? Level.INFO : Level.valueOf((String) eventMap.get(CST_EVENT_LEVEL));
+            Number number = (Number) eventMap.get(CST_EVENT_NUMBER);
+            BEvent eventReference = new BEvent((String) eventMap.get(CST_EVENT_PACKAGE), number == null ? 0 : number.longValue(), level,
+                    (String) eventMap.get(CST_EVENT_TITLE), "");
+            listEvents.add(new BEvent(eventReference, (String) eventMap.get(CST_EVENT_PARAMETERS)));
+        }
+        return listEvents;
+    }
 
+    /**
+     * Return the events of a result in HTML: the legacy CST_RESULT_LISTEVENTS if the command populated it, else the structured events are rendered now.
+     */
+    public static String getHtmlEvents(Map<String, Object> result) {
+        if (result != null && result.get(CST_RESULT_LISTEVENTS) instanceof String)
+            return (String) result.get(CST_RESULT_LISTEVENTS);
+        return BEventFactory.getHtml(getListEvents(result));
+    }
+
+    /**
+     * execute the verb, or wait for the same call already running if the verb is coalesced
+     */
+    private ExecuteAnswer executeVerbCoalesced(BonitaCommandVerbs.VerbHandler handler, ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor, String cacheKey) throws Exception {
+        // a background job has its own job id: never shared
+        if ((handler != null && handler.isBuiltIn()) || !isAnswerAwaited(executeParameters) || !isCoalesced(executeParameters.verb))
+            return executeVerbBulkhead(handler, executeParameters, serviceAccessor);
+        String key = cacheKey != null ? cacheKey : BonitaCommandCache.getKey(executeParameters.verb, executeParameters.tenantId, executeParameters.parametersCommand);
+        try {
+            return getSingleFlight().execute(key, executeParameters.getRemainingTimeMs(), () -> executeVerbBulkhead(handler, executeParameters, serviceAccessor));
+        } catch (TimeoutException e) {
+            ExecuteAnswer executeAnswer = new ExecuteAnswer();
+            executeAnswer.listEvents.add(new BEvent(eventDeadlineExceeded, "Verb[" + executeParameters.verb + "] Deadline[" + executeParameters.deadline + "] waiting for the same call"));
+            return executeAnswer;
+        }
+    }
+
+    /**
+     * execute the verb, respecting the limit of concurrent calls for this verb
+     */
+    private ExecuteAnswer executeVerbBulkhead(BonitaCommandVerbs.VerbHandler handler, ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) throws Exception {
+        BonitaCommandBulkhead bulkhead = null;
+        BonitaCommandBulkhead.Policy bulkheadPolicy = getBulkheadPolicy(executeParameters.verb);
+        if (bulkheadPolicy != null && bulkheadPolicy.maxConcurrent > 0)
+            bulkhead = BonitaCommandBulkhead.getInstance(getMetrics().getCommandName(), executeParameters.verb, bulkheadPolicy);
+
+        if (bulkhead != null && !bulkhead.acquire(executeParameters.getRemainingTimeMs())) {
+            ExecuteAnswer executeAnswer = new ExecuteAnswer();
+            executeAnswer.listEvents.add(new BEvent(eventTooManyCalls, "Verb[" + executeParameters.verb + "] " + bulkheadPolicy.toString()));
+            return executeAnswer;
+        }
+        try {
+            // built-in verbs (PING, HELP...) are executed here, the command verbs are dispatched by executeCommand()
+            if (handler != null && handler.isBuiltIn())
+                return handler.invoke(this, executeParameters, serviceAccessor, null);
+            return executeCommand(executeParameters, serviceAccessor);
+        } finally {
+            if (bulkhead != null)
+                bulkhead.release();
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* afterRestart */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * one initialization per (command, tenant). The future is completed when afterRestart() is finished
+     */
+    private static Map<String, CompletableFuture<Void>> initializations = new ConcurrentHashMap<>();
+
+    /**
+     * maximum time a call waits for the afterRestart() running in an another thread
+     */
+    public long getAfterRestartTimeoutMs() {
+        return 60000;
+    }
+
+    /**
+     * The first call after a restart executes afterRestart(). Concurrent calls wait until it is finished, then calls pay only a map read.
+     * 
+     * @return null if the command is initialized, else an event explaining why the call must not continue
+     */
+    private BEvent checkExecuteAfterRestart( Map<String, Serializable> parameters, TenantServiceAccessor serviceAccessor) {
+        if (getName() == null)
+            return null;
+        Long tenantId = (Long) parameters.get(CST_TENANTID);
+        String key = getName() + "~" + (tenantId == null ? 1 : tenantId);
+        CompletableFuture<Void> initialization = initializations.get(key);
+        if (initialization != null && initialization.isDone() && !initialization.isCompletedExceptionally())
+            return null;
+
+        if (initialization == null) {
+            CompletableFuture<Void> newInitialization = new CompletableFuture<>();
+            initialization = initializations.putIfAbsent(key, newInitialization);
+            if (initialization == null) {
+                // this thread runs the initialization
+                try {
+                    ExecuteParameters executeParametersRestart = new ExecuteParameters( null);
+                    executeParametersRestart.setTenantId(tenantId);
+                    afterRestart(executeParametersRestart, serviceAccessor);
+                    newInitialization.complete(null);
+                    return null;
+                } catch (Throwable e) {
+                    // next call will try again. An Error (NoClassDefFoundError...) too: the waiting calls must not wait forever
+                    initializations.remove(key, newInitialization);
+                    newInitialization.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        // an another thread runs the initialization: wait for it
+        try {
+            Long deadline = getDeadline(parameters);
+            Long remainingTimeMs = deadline != null ? Math.max(0, deadline - System.currentTimeMillis()) : null;
+            long timeoutMs = remainingTimeMs == null ? getAfterRestartTimeoutMs() : Math.min(remainingTimeMs, getAfterRestartTimeoutMs());
+            initialization.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return null;
+        } catch (TimeoutException e) {
+            return new BEvent(eventInitializationNotReady, "Command[" + getName() + "] Tenant[" + tenantId + "] afterRestart still running");
+        } catch (ExecutionException e) {
+            return new BEvent(eventInitializationNotReady, "Command[" + getName() + "] Tenant[" + tenantId + "] afterRestart failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new BEvent(eventInitializationNotReady, "Command[" + getName() + "] Tenant[" + tenantId + "] interrupted");
+        }
     }
 }
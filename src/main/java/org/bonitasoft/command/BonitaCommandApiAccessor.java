@@ -1,16 +1,23 @@
 package org.bonitasoft.command;
 
 import java.io.PrintWriter;
+import java.io.Serializable;
 import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import org.bonitasoft.engine.api.APIAccessor;
-import org.bonitasoft.engine.connector.ConnectorAPIAccessorImpl;
 import org.bonitasoft.engine.service.TenantServiceAccessor;
+import org.bonitasoft.log.event.BEvent;
+import org.bonitasoft.log.event.BEvent.Level;
+import org.bonitasoft.log.event.BEventFactory;
 
 /* ******************************************************************************** */
 /*                                                                                  */
@@ -25,11 +32,155 @@ import org.bonitasoft.engine.service.TenantServiceAccessor;
 
 public abstract class BonitaCommandApiAccessor extends BonitaCommand {
 
-    // This class generate one thread, and keep it. So, it's important to generate this only one to keep the number of thread generated under control. 
-    private final static ExecutorService executor =   Executors.newCachedThreadPool(r -> new Thread(r, "BonitaCommandAPI"));
-    
+    private final static BEvent eventExecutorFull = new BEvent(BonitaCommandApiAccessor.class.getName(), 1, Level.APPLICATIONERROR,
+            "Too many calls", "All threads of the pool are busy, and the queue is full", "The call is not executed", "Retry later, or increase the pool (getExecutorPolicy())");
+
+    private final static BEvent eventCallTimeout = new BEvent(BonitaCommandApiAccessor.class.getName(), 2, Level.APPLICATIONERROR,
+            "Call timeout", "The call did not finish in the time given to the verb", "The work is cancelled, no result", "Check the engine, or increase the timeout (@Verb(timeoutMs), getCallTimeoutMs())");
+
+    /**
+     * Pool used to execute the calls outside the engine transaction. By default, the pool shared by all commands.
+     * Override it to give a dedicated pool to the command, or to change the sizes of the pool.
+     * 
+     * @return
+     */
+    public BonitaCommandExecutor.Policy getExecutorPolicy() {
+        return BonitaCommandExecutor.getDefaultPolicy();
+    }
+
+    /**
+     * Pool of a lane. By default, getExecutorPolicy() for the interactive lane, and a smaller shared pool for the background lane.
+     * 
+     * @param lane BonitaCommandExecutor.CST_LANE_INTERACTIVE or CST_LANE_BACKGROUND
+     */
+    public BonitaCommandExecutor.Policy getExecutorPolicy(String lane) {
+        if (BonitaCommandExecutor.CST_LANE_BACKGROUND.equals(lane))
+            return BonitaCommandExecutor.getDefaultBackgroundPolicy();
+        return getExecutorPolicy();
+    }
+
+    /**
+     * Lane of a verb. By default, the lane declared in the @Verb annotation, else the interactive lane.
+     * Override it to give a lane to verbs managed in executeCommandApiAccessor().
+     */
+    public String getLane(String verb) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(verb);
+        return handler == null ? BonitaCommandExecutor.CST_LANE_INTERACTIVE : handler.getVerb().lane();
+    }
+
+    /**
+     * pool of the interactive lane
+     */
+    public BonitaCommandExecutor getExecutor() {
+        return getExecutor(BonitaCommandExecutor.CST_LANE_INTERACTIVE);
+    }
+
+    public BonitaCommandExecutor getExecutor(String lane) {
+        return BonitaCommandExecutor.getInstance(getMetrics().getCommandName(), lane, getExecutorPolicy(lane));
+    }
+
+    /**
+     * The APIAccessor of a tenant is shared by the calls (see BonitaCommandApiAccessorCache), and renewed after this time.
+     * Keep it under the engine session duration. Return 0 to create a new APIAccessor per call.
+     */
+    public long getApiAccessorMaxAgeMs() {
+        return 10 * 60 * 1000L;
+    }
+
     /**
-     * implement this Method
+     * Maximum time the caller waits for a verb. By default, the timeout declared in the @Verb annotation, else getDefaultCallTimeoutMs().
+     * Override it to give a timeout to verbs managed in executeCommandApiAccessor().
+     * 
+     * @param verb
+     * @return 0 if the caller waits until the end (or until its deadline)
+     */
+    public long getCallTimeoutMs(String verb) {
+        BonitaCommandVerbs.VerbHandler handler = getVerbs().getHandler(verb);
+        if (handler != null && handler.getVerb().timeoutMs() > 0)
+            return handler.getVerb().timeoutMs();
+        return getDefaultCallTimeoutMs();
+    }
+
+    /**
+     * timeout of the verbs without a timeout. 0 means no timeout
+     */
+    public long getDefaultCallTimeoutMs() {
+        return 0;
+    }
+
+    /**
+     * number of workers of the fanOut() pool of the command
+     */
+    public int getFanOutParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Process a list of items in parallel, with all the workers of the fanOut() pool. Call it from executeCommandApiAccessor() or a @Verb method.
+     * Each worker gets its own context (BonitaCommandContext.getCurrent() works in the processor). Errors are collected as events.
+     * 
+     * <pre>
+     * BonitaCommandFanOut.Result&lt;Long&gt; result = fanOut(listCaseIds, 10, (caseId, context) -&gt; archiveCase(caseId, context.getApiAccessor()));
+     * result.mergeInto(executeAnswer, "archived");
+     * </pre>
+     * 
+     * @param items items to process
+     * @param batchSize number of items a worker processes in one task
+     * @param processor processing of one item
+     * @return results, in the order of the items
+     */
+    public <T, R> BonitaCommandFanOut.Result<R> fanOut(List<T> items, int batchSize, BonitaCommandFanOut.ItemProcessor<T, R> processor) {
+        BonitaCommandContext context = BonitaCommandContext.getCurrent();
+        if (context == null)
+            throw new IllegalStateException("fanOut() must be called during a call of the command");
+        ForkJoinPool pool = BonitaCommandFanOut.getPool(getMetrics().getCommandName(), getFanOutParallelism());
+        return BonitaCommandFanOut.execute(pool, items, batchSize, context, getApiAccessorMaxAgeMs(), processor);
+    }
+
+    /**
+     * Iterate over all the results of a search, page by page. The next pages are fetched in the background, in the prefetch pool of
+     * BonitaCommandSearchStream (when it is busy, the consumer searches the page itself), while the current page is consumed. Close it (try-with-resources) if the iteration stops before the end.
+     * 
+     * <pre>
+     * try (BonitaCommandSearchStream&lt;ProcessInstance&gt; search = searchStream(100, 2,
+     *         (startIndex, maxResults) -&gt; processAPI.searchProcessInstances(new SearchOptionsBuilder(startIndex, maxResults).done()))) {
+     *     search.stream().forEach(processInstance -&gt; ...);
+     *     executeAnswer.listEvents.addAll(search.getListEvents());
+     * }
+     * </pre>
+     * 
+     * @param pageSize number of results per page
+     * @param pagesAhead number of pages fetched in advance (memory bound: pageSize * (pagesAhead + 1) results)
+     * @param fetcher search one page
+     * @return
+     */
+    public <T extends Serializable> BonitaCommandSearchStream<T> searchStream(int pageSize, int pagesAhead, BonitaCommandSearchStream.PageFetcher<T> fetcher) {
+        // not the pool of the calls: the consumer runs in it and waits for the pages
+        return new BonitaCommandSearchStream<>(fetcher, pageSize, pagesAhead, BonitaCommandSearchStream.getPrefetchExecutor());
+    }
+
+    /**
+     * maximum time given to the running calls to finish when the command is undeployed, if the command has a dedicated pool
+     */
+    public long getExecutorShutdownTimeoutMs() {
+        return 30000;
+    }
+
+    /**
+     * execute the call, outside the engine transaction. The default implementation calls
+     * executeCommandApiAccessor(executeParameters, apiAccessor, serviceAccessor).
+     * The context belongs to this call only: the command instance is shared by all calls, and must not keep it.
+     * 
+     * @param executeParameters
+     * @param context accessors, tenant, deadline of the call
+     * @return
+     */
+    public ExecuteAnswer executeCommandApiAccessor(ExecuteParameters executeParameters, BonitaCommandContext context) {
+        return executeCommandApiAccessor(executeParameters, context.getApiAccessor(), context.getServiceAccessor());
+    }
+
+    /**
+     * implement this Method, or declare methods annotated with @Verb: the default implementation calls them.
      * 
      * @param verb
      * @param parameters
@@ -37,7 +188,9 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
      * @param apiAccessor
      * @return
      */
-    public abstract ExecuteAnswer executeCommandApiAccessor(ExecuteParameters executeParameters, APIAccessor apiAccessor,TenantServiceAccessor serviceAccessor);
+    public ExecuteAnswer executeCommandApiAccessor(ExecuteParameters executeParameters, APIAccessor apiAccessor,TenantServiceAccessor serviceAccessor) {
+        return executeVerb(executeParameters, serviceAccessor, apiAccessor);
+    }
 
     /**
      * this method is call when the command is deployed. Additional management can be done then (create tables...)
@@ -72,18 +225,31 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
     public boolean waitAnswer() {
         return true;
     }
+
+    @Override
+    protected boolean isAnswerAwaited(ExecuteParameters executeParameters) {
+        return waitAnswer() && !executeParameters.async;
+    }
     
     /**
      * This method is valid only in the thread call, not before
+     * 
+     * @deprecated use the BonitaCommandContext given to the call, or BonitaCommandContext.getCurrent()
      */
-    private APIAccessor apiAccessor;
+    @Deprecated
     public APIAccessor getApiAccessor() {
-        return apiAccessor;
+        BonitaCommandContext context = BonitaCommandContext.getCurrent();
+        return context == null ? null : context.getApiAccessor();
     }
-    private TenantServiceAccessor tenantServiceAccessor;
+
+    /**
+     * @deprecated use the BonitaCommandContext given to the call, or BonitaCommandContext.getCurrent()
+     */
+    @Deprecated
     public TenantServiceAccessor getTenantServiceAccessor() {
-        return tenantServiceAccessor;
-    }    
+        BonitaCommandContext context = BonitaCommandContext.getCurrent();
+        return context == null ? null : context.getServiceAccessor();
+    }
 
     /* ******************************************************************************** */
     /*                                                                                  */
@@ -108,6 +274,10 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
         public ExecuteParameters executeParameters;
         public BonitaCommandApiAccessor bonitaCommandAPI;
         public TenantServiceAccessor tenantServiceAccessor;
+        /**
+         * context of the call, without the APIAccessor (created in the thread)
+         */
+        public BonitaCommandContext context;
         /**
          * we copy the value to ensure at one moment, the BonitaCommandApi does not change it's mind...
          */
@@ -115,21 +285,67 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
 
         public ExecuteAnswer executeAnswer;
 
+        /**
+         * the caller does not wait: the call is a background job. Null when the caller waits
+         */
+        public BonitaCommandJobs.Job job;
+
+        /**
+         * the caller stopped waiting (timeout, deadline): if the work finishes anyway, it is counted as late
+         */
+        public volatile boolean callerGaveUp = false;
+
+        /**
+         * System.nanoTime() when the task is given to the executor, to measure the wait in the queue
+         */
+        public long submitTimeNano;
+
+        public String lane;
+
+        private String getMetricName() {
+            return call == CALL.EXECUTE ? executeParameters.verb : call.toString();
+        }
+
         public void start() {
             final Thread T = new Thread(this);
             T.start();
         }
 
         public void run() {
+            if (job == null) {
+                runCall();
+                return;
+            }
+            BonitaCommandJobs jobs = bonitaCommandAPI.getJobs();
+            jobs.setRunning(job);
+            try {
+                runCall();
+            } finally {
+                jobs.setCompleted(job, executeAnswer);
+            }
+        }
+
+        private void runCall() {
             Logger logger = Logger.getLogger(RunCommandApi.class.getName());
+            long startRunNano = System.nanoTime();
+            BonitaCommandMetrics metrics = bonitaCommandAPI.getMetrics();
+            metrics.record(getMetricName() + BonitaCommandMetrics.CST_SUFFIX_QUEUE, startRunNano - submitTimeNano, false);
+            metrics.record(BonitaCommandMetrics.CST_PREFIX_LANE + lane + BonitaCommandMetrics.CST_SUFFIX_QUEUE, startRunNano - submitTimeNano, false);
 
-            // create the ApiAccessor
-            ConnectorAPIAccessorImpl apiAccessor = new ConnectorAPIAccessorImpl(executeParameters.tenantId);
-            bonitaCommandAPI.apiAccessor = apiAccessor;
-            bonitaCommandAPI.tenantServiceAccessor = tenantServiceAccessor;
+            // the task waits in the executor queue: the caller may have given up in between
+            if (executeParameters.isDeadlineExpired()) {
+                executeAnswer = new ExecuteAnswer();
+                executeAnswer.listEvents.add(new BEvent(eventDeadlineExceeded, "Verb[" + executeParameters.verb + "] Deadline[" + executeParameters.deadline + "] before start"));
+                return;
+            }
+            // get the ApiAccessor of the tenant. It is attached to the call, never to the command: calls run in parallel
+            APIAccessor apiAccessor = BonitaCommandApiAccessorCache.getApiAccessor(executeParameters.tenantId, bonitaCommandAPI.getApiAccessorMaxAgeMs());
+            BonitaCommandContext callContext = context.withApiAccessor(apiAccessor);
+            BonitaCommandContext previousContext = BonitaCommandContext.attach(callContext);
+            boolean runError = false;
             try {
                 if (call == CALL.EXECUTE)
-                    executeAnswer = bonitaCommandAPI.executeCommandApiAccessor(executeParameters, apiAccessor, tenantServiceAccessor);
+                    executeAnswer = bonitaCommandAPI.executeCommandApiAccessor(executeParameters, callContext);
                 else if (call == CALL.AFTERDEPLOYMENT)
                     executeAnswer = bonitaCommandAPI.afterDeployment(executeParameters, apiAccessor, tenantServiceAccessor);
                 else if (call == CALL.AFTERRESTART)
@@ -141,7 +357,16 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
                 String exceptionDetails = sw.toString();
 
                 logger.severe("GetAvailableHumanTaskList : error:" + e.getMessage() + " at " + exceptionDetails);
-
+                runError = true;
+                // tenant paused, session expired: next call gets a new session
+                BonitaCommandApiAccessorCache.invalidateOnException(executeParameters.tenantId, e);
+            } finally {
+                BonitaCommandContext.restore(previousContext);
+                long runNano = System.nanoTime() - startRunNano;
+                metrics.record(getMetricName() + BonitaCommandMetrics.CST_SUFFIX_RUN, runNano,
+                        runError || (executeAnswer != null && BEventFactory.isError(executeAnswer.listEvents)));
+                if (callerGaveUp)
+                    metrics.record(getMetricName() + BonitaCommandMetrics.CST_SUFFIX_LATE, runNano, false);
             }
         }
     } //-------------------------------- end RunCommandApi
@@ -150,18 +375,56 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
         RunCommandApi runCommandApi = new RunCommandApi(call);
         runCommandApi.executeParameters = executeParameters;
         runCommandApi.tenantServiceAccessor = tenantServiceAccessor;
+        // afterDeployment / afterRestart are calls on their own, even if a verb triggers them
+        BonitaCommandContext context = call == CALL.EXECUTE ? BonitaCommandContext.getCurrent() : null;
+        runCommandApi.context = context != null ? context : BonitaCommandContext.newCall(executeParameters, tenantServiceAccessor);
         runCommandApi.bonitaCommandAPI = this;
-        runCommandApi.myParentWaits = waitAnswer();
+        runCommandApi.myParentWaits = isAnswerAwaited(executeParameters);
         FutureTask<String> futureTask = new FutureTask<>(runCommandApi, "Run Command");
+        // the caller does not wait: register a job, to give the status and the result later
+        if (!runCommandApi.myParentWaits && call == CALL.EXECUTE) {
+            runCommandApi.job = getJobs().register(executeParameters.verb, executeParameters.tenantId);
+            getJobs().setFuture(runCommandApi.job, futureTask);
+        }
+        runCommandApi.lane = call == CALL.EXECUTE ? getLane(executeParameters.verb) : BonitaCommandExecutor.CST_LANE_INTERACTIVE;
+        runCommandApi.submitTimeNano = System.nanoTime();
 
-        // create thread pool of 1 size for ExecutorService 
-        executor.execute(futureTask);
+        BonitaCommandExecutor executor = getExecutor(runCommandApi.lane);
+        try {
+            executor.execute(futureTask);
+        } catch (RejectedExecutionException e) {
+            if (runCommandApi.job != null)
+                getJobs().unregister(runCommandApi.job);
+            ExecuteAnswer executeAnswer = new ExecuteAnswer();
+            executeAnswer.listEvents.add(new BEvent(eventExecutorFull, "Verb[" + executeParameters.verb + "] Pool[" + executor.getPoolName() + "] " + executor.getPolicy().toString()));
+            return executeAnswer;
+        }
 
         if (runCommandApi.myParentWaits) {
             // synchronized is mandatory to wait
+            // wait until the deadline of the caller, or the timeout of the verb: the first one
+            Long remainingTimeMs = executeParameters.getRemainingTimeMs();
+            long timeoutMs = call == CALL.EXECUTE ? getCallTimeoutMs(executeParameters.verb) : 0;
+            boolean timeoutFirst = timeoutMs > 0 && (remainingTimeMs == null || timeoutMs < remainingTimeMs);
+            Long waitMs = timeoutFirst ? Long.valueOf(timeoutMs) : remainingTimeMs;
+            long startWaitNano = System.nanoTime();
             try {
-                futureTask.get();
+                if (waitMs == null)
+                    futureTask.get();
+                else
+                    futureTask.get(waitMs, TimeUnit.MILLISECONDS);
                 return runCommandApi.executeAnswer;
+            } catch (TimeoutException e) {
+                // the caller does not wait anymore, stop the work
+                runCommandApi.callerGaveUp = true;
+                futureTask.cancel(true);
+                ExecuteAnswer executeAnswer = new ExecuteAnswer();
+                if (timeoutFirst) {
+                    getMetrics().record(runCommandApi.getMetricName() + BonitaCommandMetrics.CST_SUFFIX_TIMEOUT, System.nanoTime() - startWaitNano, true);
+                    executeAnswer.listEvents.add(new BEvent(eventCallTimeout, "Verb[" + executeParameters.verb + "] Timeout[" + timeoutMs + " ms] work cancelled"));
+                } else
+                    executeAnswer.listEvents.add(new BEvent(eventDeadlineExceeded, "Verb[" + executeParameters.verb + "] Deadline[" + executeParameters.deadline + "] work cancelled"));
+                return executeAnswer;
             } catch (InterruptedException e) {
                 logger.severe("BonitaCommandAPI. error " + e.toString());
                 Thread.currentThread().interrupt();
@@ -169,7 +432,10 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
                 logger.severe("BonitaCommandAPI. error " + e.toString());
             }
         }
-        return new ExecuteAnswer();
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        if (runCommandApi.job != null)
+            executeAnswer.result.putAll(runCommandApi.job.getDescription());
+        return executeAnswer;
     }
 
     /**
@@ -192,7 +458,28 @@ public abstract class BonitaCommandApiAccessor extends BonitaCommand {
 
     }
 
-   
+    @Override
+    protected void addMetrics(ExecuteAnswer executeAnswer) {
+        super.addMetrics(executeAnswer);
+        HashMap<String, Object> executors = new HashMap<>();
+        executors.put(BonitaCommandExecutor.CST_LANE_INTERACTIVE, getExecutor(BonitaCommandExecutor.CST_LANE_INTERACTIVE).getSnapshot());
+        executors.put(BonitaCommandExecutor.CST_LANE_BACKGROUND, getExecutor(BonitaCommandExecutor.CST_LANE_BACKGROUND).getSnapshot());
+        executeAnswer.result.put(CST_RESULT_EXECUTOR, executors);
+        executeAnswer.result.put(CST_RESULT_APIACCESSOR, BonitaCommandApiAccessorCache.getSnapshot());
+    }
+
+    /**
+     * the command is undeployed: shutdown its dedicated pool, and its fanOut() pool
+     */
+    @Override
+    public ExecuteAnswer beforeUndeployment(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        ExecuteAnswer executeAnswer = super.beforeUndeployment(executeParameters, serviceAccessor);
+        if (!getExecutorPolicy(BonitaCommandExecutor.CST_LANE_INTERACTIVE).shared || !getExecutorPolicy(BonitaCommandExecutor.CST_LANE_BACKGROUND).shared)
+            BonitaCommandExecutor.shutdown(getMetrics().getCommandName(), getExecutorShutdownTimeoutMs());
+        BonitaCommandFanOut.shutdown(getMetrics().getCommandName(), getExecutorShutdownTimeoutMs());
+        return executeAnswer;
+    }
+
     public  ExecuteAnswer returnOkAnswer() {
         ExecuteAnswer executeAnswer = new ExecuteAnswer();
         executeAnswer.result.put(CSTANSWER_STATUS, CSTANSWER_STATUS_V_OK);
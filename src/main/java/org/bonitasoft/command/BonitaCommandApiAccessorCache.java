@@ -0,0 +1,204 @@
+package org.bonitasoft.command;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.api.ApplicationAPI;
+import org.bonitasoft.engine.api.BusinessDataAPI;
+import org.bonitasoft.engine.api.CommandAPI;
+import org.bonitasoft.engine.api.IdentityAPI;
+import org.bonitasoft.engine.api.PageAPI;
+import org.bonitasoft.engine.api.PermissionAPI;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.api.ProfileAPI;
+import org.bonitasoft.engine.api.ThemeAPI;
+import org.bonitasoft.engine.connector.ConnectorAPIAccessorImpl;
+
+/**
+ * One APIAccessor per tenant, shared by the calls of BonitaCommandApiAccessor.
+ * A new ConnectorAPIAccessorImpl opens a new engine session at the first API, and each getXxxAPI() builds a new proxy. Here, the accessor (then the
+ * session) is kept for a tenant, and each API proxy is created one time.
+ * The accessor is renewed after a maximum age, to stay under the engine session duration. It is forgotten (invalidate()) when the tenant is paused
+ * or resumed, or when a call fails on an invalid session: the next call opens a new session.
+ */
+public class BonitaCommandApiAccessorCache {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandApiAccessorCache.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandApiAccessorCache:";
+
+    public final static String CST_APIACCESSOR_TENANTS = "tenants";
+    public final static String CST_APIACCESSOR_CREATED = "created";
+    public final static String CST_APIACCESSOR_REUSED = "reused";
+    public final static String CST_APIACCESSOR_INVALIDATED = "invalidated";
+
+    /**
+     * exceptions (simple class name) saying the session of the accessor is not usable anymore
+     */
+    private final static String[] listInvalidatingExceptions = new String[] { "TenantStatusException", "InvalidSessionException", "SessionNotFoundException" };
+
+    private final static Map<Long, TenantApiAccessor> allAccessors = new ConcurrentHashMap<>();
+
+    private final static LongAdder created = new LongAdder();
+    private final static LongAdder reused = new LongAdder();
+    private final static LongAdder invalidated = new LongAdder();
+
+    /**
+     * @param tenantId
+     * @param maxAgeMs the accessor is renewed after this time. 0 : no cache, a new accessor is returned
+     * @return the accessor for the tenant
+     */
+    public static APIAccessor getApiAccessor(long tenantId, long maxAgeMs) {
+        if (maxAgeMs <= 0) {
+            created.increment();
+            return new ConnectorAPIAccessorImpl(tenantId);
+        }
+        TenantApiAccessor accessor = allAccessors.get(tenantId);
+        if (accessor != null && !accessor.isExpired(maxAgeMs)) {
+            reused.increment();
+            return accessor;
+        }
+        return allAccessors.compute(tenantId, (k, existing) -> {
+            if (existing != null && !existing.isExpired(maxAgeMs)) {
+                reused.increment();
+                return existing;
+            }
+            created.increment();
+            return new TenantApiAccessor(tenantId);
+        });
+    }
+
+    /**
+     * forget the accessor of the tenant: call it when the tenant is paused or resumed
+     */
+    public static void invalidate(long tenantId) {
+        if (allAccessors.remove(tenantId) != null) {
+            invalidated.increment();
+            logger.fine(LOGGER_LABEL + " Tenant[" + tenantId + "] accessor invalidated");
+        }
+    }
+
+    public static void invalidateAll() {
+        for (Long tenantId : allAccessors.keySet())
+            invalidate(tenantId);
+    }
+
+    /**
+     * check the exception thrown by a call: if the session is not valid anymore (tenant paused, session expired), the accessor is invalidated
+     *
+     * @return true if the accessor was invalidated
+     */
+    public static boolean invalidateOnException(long tenantId, Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            String className = cause.getClass().getSimpleName();
+            for (String invalidatingException : listInvalidatingExceptions) {
+                if (invalidatingException.equals(className)) {
+                    invalidate(tenantId);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        snapshot.put(CST_APIACCESSOR_TENANTS, (long) allAccessors.size());
+        snapshot.put(CST_APIACCESSOR_CREATED, created.sum());
+        snapshot.put(CST_APIACCESSOR_REUSED, reused.sum());
+        snapshot.put(CST_APIACCESSOR_INVALIDATED, invalidated.sum());
+        return snapshot;
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Accessor */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * APIAccessor keeping each API proxy. The proxies carry the session, and are thread safe: they are shared by all the calls on the tenant.
+     */
+    private static class TenantApiAccessor implements APIAccessor {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long creationTime = System.currentTimeMillis();
+        private final transient ConnectorAPIAccessorImpl connectorAPIAccessor;
+        private final transient Map<Class<?>, Object> apis = new ConcurrentHashMap<>();
+
+        private TenantApiAccessor(long tenantId) {
+            connectorAPIAccessor = new ConnectorAPIAccessorImpl(tenantId);
+        }
+
+        private boolean isExpired(long maxAgeMs) {
+            return System.currentTimeMillis() - creationTime > maxAgeMs;
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T getAPI(Class<T> apiClass, Function<ConnectorAPIAccessorImpl, T> factory) {
+            Object api = apis.get(apiClass);
+            if (api == null) {
+                // the first API opens the session: one thread at a time
+                synchronized (this) {
+                    api = apis.get(apiClass);
+                    if (api == null) {
+                        api = factory.apply(connectorAPIAccessor);
+                        apis.put(apiClass, api);
+                    }
+                }
+            }
+            return (T) api;
+        }
+
+        @Override
+        public IdentityAPI getIdentityAPI() {
+            return getAPI(IdentityAPI.class, ConnectorAPIAccessorImpl::getIdentityAPI);
+        }
+
+        @Override
+        public ProcessAPI getProcessAPI() {
+            return getAPI(ProcessAPI.class, ConnectorAPIAccessorImpl::getProcessAPI);
+        }
+
+        @Override
+        public CommandAPI getCommandAPI() {
+            return getAPI(CommandAPI.class, ConnectorAPIAccessorImpl::getCommandAPI);
+        }
+
+        @Override
+        public ProfileAPI getProfileAPI() {
+            return getAPI(ProfileAPI.class, ConnectorAPIAccessorImpl::getProfileAPI);
+        }
+
+        @Override
+        public ThemeAPI getThemeAPI() {
+            return getAPI(ThemeAPI.class, ConnectorAPIAccessorImpl::getThemeAPI);
+        }
+
+        @Override
+        public PermissionAPI getPermissionAPI() {
+            return getAPI(PermissionAPI.class, ConnectorAPIAccessorImpl::getPermissionAPI);
+        }
+
+        @Override
+        public PageAPI getCustomPageAPI() {
+            return getAPI(PageAPI.class, ConnectorAPIAccessorImpl::getCustomPageAPI);
+        }
+
+        @Override
+        public ApplicationAPI getLivingApplicationAPI() {
+            return getAPI(ApplicationAPI.class, ConnectorAPIAccessorImpl::getLivingApplicationAPI);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public BusinessDataAPI getBusinessDataAPI() {
+            return getAPI(BusinessDataAPI.class, ConnectorAPIAccessorImpl::getBusinessDataAPI);
+        }
+    }
+}
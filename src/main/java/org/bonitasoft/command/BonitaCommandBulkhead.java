@@ -0,0 +1,143 @@
+package org.bonitasoft.command;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limit the number of calls running in parallel for one verb of a command, so an expensive verb can't starve the other one.
+ * A call over the limit waits in a queue (maxQueue calls maximum, during queueTimeoutMs maximum), else it is rejected immediately.
+ * Limits are declared on the command, via @Verb(maxConcurrent=...) or by overriding BonitaCommand.getBulkheadPolicy().
+ */
+public class BonitaCommandBulkhead {
+
+    public final static String CST_BULKHEAD_MAXCONCURRENT = "maxconcurrent";
+    public final static String CST_BULKHEAD_INFLIGHT = "inflight";
+    public final static String CST_BULKHEAD_WAITING = "waiting";
+    public final static String CST_BULKHEAD_ACCEPTED = "accepted";
+    public final static String CST_BULKHEAD_REJECTED = "rejected";
+
+    /**
+     * Limits for one verb
+     */
+    public static class Policy {
+
+        /**
+         * number of calls running in parallel
+         */
+        public final int maxConcurrent;
+        /**
+         * number of calls waiting for a slot. 0 means a call over the limit is rejected immediately
+         */
+        public final int maxQueue;
+        /**
+         * maximum time a call waits for a slot
+         */
+        public final long queueTimeoutMs;
+
+        public Policy(int maxConcurrent, int maxQueue, long queueTimeoutMs) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueue = maxQueue;
+            this.queueTimeoutMs = queueTimeoutMs;
+        }
+
+        private boolean isSame(Policy policy) {
+            return maxConcurrent == policy.maxConcurrent && maxQueue == policy.maxQueue && queueTimeoutMs == policy.queueTimeoutMs;
+        }
+
+        public String toString() {
+            return "maxConcurrent[" + maxConcurrent + "] maxQueue[" + maxQueue + "] queueTimeout[" + queueTimeoutMs + " ms]";
+        }
+    }
+
+    private final static Map<String, BonitaCommandBulkhead> allBulkheads = new ConcurrentHashMap<>();
+
+    /**
+     * return the bulkhead for the command and the verb. If the policy changed (the command was redeployed), a new bulkhead is created.
+     */
+    public static BonitaCommandBulkhead getInstance(String commandName, String verb, Policy policy) {
+        String key = commandName + "~" + verb;
+        BonitaCommandBulkhead bulkhead = allBulkheads.get(key);
+        if (bulkhead != null && bulkhead.policy.isSame(policy))
+            return bulkhead;
+        return allBulkheads.compute(key, (k, existing) -> existing != null && existing.policy.isSame(policy) ? existing : new BonitaCommandBulkhead(verb, policy));
+    }
+
+    /**
+     * current counters of all bulkheads of a command: verb -> counters
+     */
+    public static HashMap<String, HashMap<String, Long>> getSnapshot(String commandName) {
+        HashMap<String, HashMap<String, Long>> snapshot = new HashMap<>();
+        String prefix = commandName + "~";
+        for (Map.Entry<String, BonitaCommandBulkhead> entry : allBulkheads.entrySet()) {
+            if (entry.getKey().startsWith(prefix))
+                snapshot.put(entry.getValue().verb, entry.getValue().getSnapshot());
+        }
+        return snapshot;
+    }
+
+    private final String verb;
+    private final Policy policy;
+    private final Semaphore semaphore;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private BonitaCommandBulkhead(String verb, Policy policy) {
+        this.verb = verb;
+        this.policy = policy;
+        this.semaphore = new Semaphore(policy.maxConcurrent, true);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * get a slot. If the method returns true, the caller must call release().
+     *
+     * @param remainingTimeMs time before the deadline of the caller, null if there is no deadline
+     * @return false if the call is rejected
+     */
+    public boolean acquire(Long remainingTimeMs) throws InterruptedException {
+        boolean acquired = semaphore.tryAcquire();
+        if (!acquired && policy.maxQueue > 0) {
+            if (waiting.incrementAndGet() <= policy.maxQueue) {
+                try {
+                    long waitMs = remainingTimeMs == null ? policy.queueTimeoutMs : Math.min(policy.queueTimeoutMs, remainingTimeMs);
+                    acquired = semaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+                } finally {
+                    waiting.decrementAndGet();
+                }
+            } else
+                waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            rejected.increment();
+            return false;
+        }
+        inFlight.incrementAndGet();
+        accepted.increment();
+        return true;
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+        semaphore.release();
+    }
+
+    public HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        snapshot.put(CST_BULKHEAD_MAXCONCURRENT, (long) policy.maxConcurrent);
+        snapshot.put(CST_BULKHEAD_INFLIGHT, (long) inFlight.get());
+        snapshot.put(CST_BULKHEAD_WAITING, (long) waiting.get());
+        snapshot.put(CST_BULKHEAD_ACCEPTED, accepted.sum());
+        snapshot.put(CST_BULKHEAD_REJECTED, rejected.sum());
+        return snapshot;
+    }
+}
@@ -0,0 +1,195 @@
+package org.bonitasoft.command;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteAnswer;
+import org.bonitasoft.log.event.BEvent;
+
+/**
+ * Server side cache of verb results. A verb opts in with a TTL (@Verb(cacheTtlMs=...) or BonitaCommand.getCacheTtlMs()).
+ * The key is the verb, the tenant and the normalized parametersCommand. The cache is bounded in number of entries, and evicts the least recently used.
+ * A hit is answered directly by BonitaCommand: no bulkhead, and no thread for a BonitaCommandApiAccessor.
+ */
+public class BonitaCommandCache {
+
+    public final static String CST_CACHE_SIZE = "size";
+    public final static String CST_CACHE_HITS = "hits";
+    public final static String CST_CACHE_MISSES = "misses";
+    public final static String CST_CACHE_EVICTIONS = "evictions";
+
+    private final static Map<String, BonitaCommandCache> allCaches = new ConcurrentHashMap<>();
+
+    /**
+     * return the cache of a command
+     *
+     * @param commandName name of the command
+     * @param maxEntries used only when the cache is created
+     */
+    public static BonitaCommandCache getInstance(String commandName, int maxEntries) {
+        BonitaCommandCache cache = allCaches.get(commandName);
+        if (cache != null)
+            return cache;
+        return allCaches.computeIfAbsent(commandName, k -> new BonitaCommandCache(maxEntries));
+    }
+
+    private static class CacheEntry {
+
+        private final String verb;
+        private final long tenantId;
+        private final long expirationTime;
+        private final HashMap<String, Object> result;
+        private final Serializable resultSerializable;
+        private final List<BEvent> listEvents;
+
+        private CacheEntry(String verb, long tenantId, long expirationTime, ExecuteAnswer executeAnswer) {
+            this.verb = verb;
+            this.tenantId = tenantId;
+            this.expirationTime = expirationTime;
+            this.result = new HashMap<>(executeAnswer.result);
+            this.resultSerializable = executeAnswer.resultSerializable;
+            this.listEvents = new ArrayList<>(executeAnswer.listEvents);
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<String, CacheEntry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private BonitaCommandCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        // access order: the eldest is the least recently used
+        this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() <= BonitaCommandCache.this.maxEntries)
+                    return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * calculate the key of a call. Parameters are normalized: the order of a map does not change the key.
+     * Each string is prefixed by its length, so no value can be read as a delimiter: two different calls never give the same key.
+     */
+    public static String getKey(String verb, long tenantId, Map<String, Serializable> parametersCommand) {
+        StringBuilder key = new StringBuilder();
+        normalize(verb, key);
+        key.append('~').append(tenantId).append('~');
+        normalize(parametersCommand, key);
+        return key.toString();
+    }
+
+    private static void normalize(Object value, StringBuilder key) {
+        if (value == null) {
+            key.append("null");
+        } else if (value instanceof Map) {
+            // keys may be of any type, mixed: sort on their normalized form
+            List<String[]> entries = new ArrayList<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                StringBuilder entryKey = new StringBuilder();
+                normalize(entry.getKey(), entryKey);
+                StringBuilder entryValue = new StringBuilder();
+                normalize(entry.getValue(), entryValue);
+                entries.add(new String[] { entryKey.toString(), entryValue.toString() });
+            }
+            Collections.sort(entries, (e1, e2) -> {
+                int compare = e1[0].compareTo(e2[0]);
+                return compare != 0 ? compare : e1[1].compareTo(e2[1]);
+            });
+            key.append('{');
+            for (String[] entry : entries)
+                key.append(entry[0]).append('=').append(entry[1]).append(',');
+            key.append('}');
+        } else if (value instanceof Collection) {
+            key.append('[');
+            for (Object item : (Collection<?>) value) {
+                normalize(item, key);
+                key.append(',');
+            }
+            key.append(']');
+        } else if (value instanceof Object[]) {
+            normalize(Arrays.asList((Object[]) value), key);
+        } else {
+            // s: string, n: number, o: any other value
+            String text = value.toString();
+            key.append(value instanceof String ? 's' : value instanceof Number ? 'n' : 'o').append(text.length()).append(':').append(text);
+        }
+    }
+
+    /**
+     * @return a copy of the cached answer, null if there is no valid entry
+     */
+    public ExecuteAnswer get(String key) {
+        CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.expirationTime < System.currentTimeMillis()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.result.putAll(entry.result);
+        executeAnswer.resultSerializable = entry.resultSerializable;
+        executeAnswer.listEvents.addAll(entry.listEvents);
+        return executeAnswer;
+    }
+
+    public void put(String key, String verb, long tenantId, long ttlMs, ExecuteAnswer executeAnswer) {
+        CacheEntry entry = new CacheEntry(verb, tenantId, System.currentTimeMillis() + ttlMs, executeAnswer);
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * remove entries.
+     *
+     * @param verb null for all verbs
+     * @param tenantId null for all tenants
+     */
+    public void invalidate(String verb, Long tenantId) {
+        synchronized (entries) {
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                CacheEntry entry = iterator.next();
+                if ((verb == null || verb.equals(entry.verb)) && (tenantId == null || tenantId == entry.tenantId))
+                    iterator.remove();
+            }
+        }
+    }
+
+    public HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        synchronized (entries) {
+            snapshot.put(CST_CACHE_SIZE, (long) entries.size());
+        }
+        snapshot.put(CST_CACHE_HITS, hits.sum());
+        snapshot.put(CST_CACHE_MISSES, misses.sum());
+        snapshot.put(CST_CACHE_EVICTIONS, evictions.sum());
+        return snapshot;
+    }
+}
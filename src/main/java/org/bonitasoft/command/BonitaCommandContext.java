@@ -0,0 +1,115 @@
+package org.bonitasoft.command;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.service.TenantServiceAccessor;
+
+/**
+ * Context of one call: the accessors, the tenant, the deadline and a call id.
+ * The context is immutable, and created per call: a command instance is shared by all the calls, so nothing about a call is kept in the command itself.
+ * The context is given to BonitaCommandApiAccessor.executeCommandApiAccessor(), can be bound as a parameter of a @Verb method, and is reachable via
+ * getCurrent() from any code called in the thread executing the call.
+ */
+public class BonitaCommandContext {
+
+    private final static AtomicLong callCounter = new AtomicLong();
+
+    private final static ThreadLocal<BonitaCommandContext> currentContext = new ThreadLocal<>();
+
+    private final long callId;
+    private final String verb;
+    private final long tenantId;
+    private final Long deadline;
+    private final TenantServiceAccessor serviceAccessor;
+    private final APIAccessor apiAccessor;
+
+    private BonitaCommandContext(long callId, String verb, long tenantId, Long deadline, TenantServiceAccessor serviceAccessor, APIAccessor apiAccessor) {
+        this.callId = callId;
+        this.verb = verb;
+        this.tenantId = tenantId;
+        this.deadline = deadline;
+        this.serviceAccessor = serviceAccessor;
+        this.apiAccessor = apiAccessor;
+    }
+
+    /**
+     * create the context of a new call. There is no APIAccessor yet: the call is in the engine transaction.
+     */
+    public static BonitaCommandContext newCall(BonitaCommand.ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor) {
+        return new BonitaCommandContext(callCounter.incrementAndGet(), executeParameters.verb, executeParameters.tenantId, executeParameters.deadline, serviceAccessor, null);
+    }
+
+    /**
+     * same call, with an APIAccessor (the call is now executed outside the engine transaction)
+     */
+    public BonitaCommandContext withApiAccessor(APIAccessor apiAccessor) {
+        return new BonitaCommandContext(callId, verb, tenantId, deadline, serviceAccessor, apiAccessor);
+    }
+
+    /**
+     * @return the context of the call executed by the current thread, null if the thread does not execute a call
+     */
+    public static BonitaCommandContext getCurrent() {
+        return currentContext.get();
+    }
+
+    /**
+     * attach the context to the current thread
+     *
+     * @return the previous context, to give back to restore()
+     */
+    static BonitaCommandContext attach(BonitaCommandContext context) {
+        BonitaCommandContext previous = currentContext.get();
+        currentContext.set(context);
+        return previous;
+    }
+
+    static void restore(BonitaCommandContext previous) {
+        if (previous == null)
+            currentContext.remove();
+        else
+            currentContext.set(previous);
+    }
+
+    /**
+     * unique id of the call in the JVM, to correlate the logs
+     */
+    public long getCallId() {
+        return callId;
+    }
+
+    public String getVerb() {
+        return verb;
+    }
+
+    public long getTenantId() {
+        return tenantId;
+    }
+
+    /**
+     * @return the deadline (absolute time in ms), null if the caller waits as long as needed
+     */
+    public Long getDeadline() {
+        return deadline;
+    }
+
+    public boolean isDeadlineExpired() {
+        return deadline != null && System.currentTimeMillis() >= deadline;
+    }
+
+    public TenantServiceAccessor getServiceAccessor() {
+        return serviceAccessor;
+    }
+
+    /**
+     * @return the APIAccessor, null if the call is executed in the engine transaction (BonitaCommand, or a built-in verb)
+     */
+    public APIAccessor getApiAccessor() {
+        return apiAccessor;
+    }
+
+    public String toString() {
+        return "Call[" + callId + "] Verb[" + verb + "] Tenant[" + tenantId + "]";
+    }
+}
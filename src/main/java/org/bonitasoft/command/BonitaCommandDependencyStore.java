@@ -0,0 +1,320 @@
+package org.bonitasoft.command;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Content addressed store of the dependencies, used when BonitaCommandDescription.contentAddressedDependencies is set.
+ * A dependency is deployed in the engine under the name of its content, "cas-" + SHA-256: commands using the same JAR share one blob, and a
+ * content already in the engine is never uploaded again.
+ * Each command using a blob has one reference in the side table bonitacommand_dependencyref, created at the first use in the engine database.
+ * The blob is removed from the engine when its last reference is released.
+ * Counting the references then removing the blob, or checking the blob then referencing it, must not interleave with another deployment (same
+ * JVM or another node of the cluster): the caller runs them between lock() and commit(), in one transaction holding the row of the tenant in the
+ * table bonitacommand_dependencylock.
+ * The store works on a connection given by the caller (the engine datasource).
+ */
+public class BonitaCommandDependencyStore {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandDependencyStore.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandDependencyStore:";
+
+    public final static String CST_PREFIX = "cas-";
+    public final static String CST_TABLE = "bonitacommand_dependencyref";
+    public final static String CST_LOCKTABLE = "bonitacommand_dependencylock";
+
+    private final static String CST_SQL_CREATETABLE = "create table " + CST_TABLE + " ("
+            + "tenantid NUMERIC(19) not null, "
+            + "commandname VARCHAR(150) not null, "
+            + "jarname VARCHAR(150) not null, "
+            + "version VARCHAR(50), "
+            + "dependencyname VARCHAR(150) not null, "
+            + "contentsize NUMERIC(19), "
+            + "primary key (tenantid, commandname, jarname))";
+
+    private final static String CST_SQL_CREATELOCKTABLE = "create table " + CST_LOCKTABLE + " ("
+            + "tenantid NUMERIC(19) not null, "
+            + "nblocks NUMERIC(19) not null, "
+            + "primary key (tenantid))";
+
+    /**
+     * a command uses a JAR (jarName, in a version) through the blob dependencyName
+     */
+    public static class Reference {
+
+        public final String commandName;
+        public final String jarName;
+        public final String version;
+        public final String dependencyName;
+        public final long contentSize;
+
+        public Reference(String commandName, String jarName, String version, String dependencyName, long contentSize) {
+            this.commandName = commandName;
+            this.jarName = jarName;
+            this.version = version;
+            this.dependencyName = dependencyName;
+            this.contentSize = contentSize;
+        }
+
+        @Override
+        public String toString() {
+            return commandName + "~" + jarName + "~" + version + "~" + dependencyName;
+        }
+    }
+
+    private final Connection con;
+    /**
+     * the connection was in auto commit before lock()
+     */
+    private boolean restoreAutoCommit = false;
+
+    public BonitaCommandDependencyStore(Connection con) {
+        this.con = con;
+    }
+
+    /**
+     * name of the dependency in the engine for this content
+     */
+    public static String getDependencyName(byte[] content) throws NoSuchAlgorithmException {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+        StringBuilder name = new StringBuilder(CST_PREFIX);
+        for (byte b : hash)
+            name.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        return name.toString();
+    }
+
+    /**
+     * create the side tables if they do not exist
+     */
+    public void checkTable() throws SQLException {
+        checkTable(CST_TABLE, CST_SQL_CREATETABLE);
+        checkTable(CST_LOCKTABLE, CST_SQL_CREATELOCKTABLE);
+    }
+
+    /**
+     * start a transaction holding the lock of the tenant: another deployment on the tenant waits in its own lock() until commit() or rollback().
+     * The lock is an update of the row of the tenant, which every database keeps locked until the end of the transaction.
+     */
+    public void lock(long tenantId) throws SQLException {
+        if (con.getAutoCommit()) {
+            con.setAutoCommit(false);
+            restoreAutoCommit = true;
+        }
+        if (updateLock(tenantId) > 0)
+            return;
+        // first lock on the tenant
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = con.prepareStatement("insert into " + CST_LOCKTABLE + " (tenantid, nblocks) values (?, 0)");
+            pstmt.setLong(1, tenantId);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            // inserted in the meantime by another node. On some databases, the error aborts the transaction
+            con.rollback();
+        } finally {
+            close(pstmt);
+        }
+        if (updateLock(tenantId) == 0)
+            throw new SQLException("Can't lock the tenant " + tenantId + " in " + CST_LOCKTABLE);
+    }
+
+    /**
+     * commit the changes done since lock(), and release the lock
+     */
+    public void commit() throws SQLException {
+        try {
+            con.commit();
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * cancel the changes done since lock(), and release the lock
+     */
+    public void rollback() {
+        try {
+            con.rollback();
+        } catch (SQLException e) {
+            logger.severe(LOGGER_LABEL + " Rollback " + e.getMessage());
+        } finally {
+            endTransaction();
+        }
+    }
+
+    /**
+     * true if the engine has a dependency with this name on the tenant
+     */
+    public boolean existsInEngine(long tenantId, String dependencyName) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement("select count(*) from dependency where tenantid = ? and name = ?");
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, dependencyName);
+            rs = pstmt.executeQuery();
+            return rs.next() && rs.getLong(1) > 0;
+        } finally {
+            close(rs);
+            close(pstmt);
+        }
+    }
+
+    public List<Reference> getReferencesByCommand(long tenantId, String commandName) throws SQLException {
+        return getReferences("commandname", tenantId, commandName);
+    }
+
+    public List<Reference> getReferencesByJarName(long tenantId, String jarName) throws SQLException {
+        return getReferences("jarname", tenantId, jarName);
+    }
+
+    /**
+     * number of references on the blob. 0 means the blob can be removed
+     */
+    public long countReferences(long tenantId, String dependencyName) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement("select count(*) from " + CST_TABLE + " where tenantid = ? and dependencyname = ?");
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, dependencyName);
+            rs = pstmt.executeQuery();
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            close(rs);
+            close(pstmt);
+        }
+    }
+
+    /**
+     * create or replace the reference of the command on the JAR. Call it under lock()
+     */
+    public void setReference(long tenantId, Reference reference) throws SQLException {
+        PreparedStatement pstmt = null;
+        try {
+            deleteReference(tenantId, reference.commandName, reference.jarName);
+            pstmt = con.prepareStatement("insert into " + CST_TABLE + " (tenantid, commandname, jarname, version, dependencyname, contentsize) values (?,?,?,?,?,?)");
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, reference.commandName);
+            pstmt.setString(3, reference.jarName);
+            pstmt.setString(4, reference.version);
+            pstmt.setString(5, reference.dependencyName);
+            pstmt.setLong(6, reference.contentSize);
+            pstmt.executeUpdate();
+        } finally {
+            close(pstmt);
+        }
+    }
+
+    public void removeReference(long tenantId, String commandName, String jarName) throws SQLException {
+        deleteReference(tenantId, commandName, jarName);
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Toolbox */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private List<Reference> getReferences(String column, long tenantId, String value) throws SQLException {
+        List<Reference> listReferences = new ArrayList<>();
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement("select commandname, jarname, version, dependencyname, contentsize from " + CST_TABLE + " where tenantid = ? and " + column + " = ?");
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, value);
+            rs = pstmt.executeQuery();
+            while (rs.next())
+                listReferences.add(new Reference(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getLong(5)));
+            return listReferences;
+        } finally {
+            close(rs);
+            close(pstmt);
+        }
+    }
+
+    private void deleteReference(long tenantId, String commandName, String jarName) throws SQLException {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = con.prepareStatement("delete from " + CST_TABLE + " where tenantid = ? and commandname = ? and jarname = ?");
+            pstmt.setLong(1, tenantId);
+            pstmt.setString(2, commandName);
+            pstmt.setString(3, jarName);
+            pstmt.executeUpdate();
+        } finally {
+            close(pstmt);
+        }
+    }
+
+    private void checkTable(String table, String sqlCreate) throws SQLException {
+        Statement stmt = null;
+        try {
+            stmt = con.createStatement();
+            close(stmt.executeQuery("select count(*) from " + table));
+            return;
+        } catch (SQLException e) {
+            // table does not exist. On some databases, the error aborts the transaction
+            if (!con.getAutoCommit())
+                con.rollback();
+        } finally {
+            close(stmt);
+        }
+        try {
+            stmt = con.createStatement();
+            stmt.executeUpdate(sqlCreate);
+            if (!con.getAutoCommit())
+                con.commit();
+            logger.info(LOGGER_LABEL + " Table[" + table + "] created");
+        } catch (SQLException e) {
+            // created in the meantime by another node?
+            if (!con.getAutoCommit())
+                con.rollback();
+            close(stmt);
+            stmt = con.createStatement();
+            close(stmt.executeQuery("select count(*) from " + table));
+        } finally {
+            close(stmt);
+        }
+    }
+
+    private int updateLock(long tenantId) throws SQLException {
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = con.prepareStatement("update " + CST_LOCKTABLE + " set nblocks = nblocks + 1 where tenantid = ?");
+            pstmt.setLong(1, tenantId);
+            return pstmt.executeUpdate();
+        } finally {
+            close(pstmt);
+        }
+    }
+
+    private void endTransaction() {
+        if (!restoreAutoCommit)
+            return;
+        restoreAutoCommit = false;
+        try {
+            con.setAutoCommit(true);
+        } catch (SQLException e) {
+            // the connection is closed by the caller
+        }
+    }
+
+    private static void close(AutoCloseable resource) {
+        if (resource == null)
+            return;
+        try {
+            resource.close();
+        } catch (Exception e) {
+            // don't log it
+        }
+    }
+}
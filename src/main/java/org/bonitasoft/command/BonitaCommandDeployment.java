@@ -16,13 +16,31 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -37,6 +55,7 @@ import org.bonitasoft.engine.command.CommandDescriptor;
 import org.bonitasoft.engine.command.CommandNotFoundException;
 import org.bonitasoft.engine.command.DependencyNotFoundException;
 import org.bonitasoft.engine.exception.AlreadyExistsException;
+import org.bonitasoft.engine.exception.CreationException;
 import org.bonitasoft.engine.exception.DeletionException;
 import org.bonitasoft.log.event.BEvent;
 import org.bonitasoft.log.event.BEvent.Level;
@@ -92,6 +111,10 @@ public class BonitaCommandDeployment {
     private static BEvent eventConnectDatabase = new BEvent(BonitaCommandDeployment.class.getName(), 9, Level.ERROR,
             "Can't connect", "Can't connect to the database",
             "The connection can't be establish", "Check Exception");
+    private final static BEvent eventDeadlineExceeded = new BEvent(BonitaCommandDeployment.class.getName(), 10, Level.APPLICATIONERROR,
+            "Deadline exceeded", "The deadline is passed before the command answered", "No result", "Give a larger deadline, or check the server load");
+    private final static BEvent eventClientExecutorFull = new BEvent(BonitaCommandDeployment.class.getName(), 11, Level.APPLICATIONERROR,
+            "Too many asynchronous calls", "The client executor is full, the call is not submitted", "No result", "Retry later, or increase the client executor size");
 
     /**
      * This is the command Name
@@ -141,6 +164,20 @@ public class BonitaCommandDeployment {
         this.commandName = commandName;
     }
 
+    /**
+     * if true, the answer contains the events rendered in HTML (legacy BonitaCommand.CST_RESULT_LISTEVENTS).
+     * Else, only the structured events (BonitaCommand.CST_RESULT_EVENTS) are returned: use BonitaCommand.getListEvents() or BonitaCommand.getHtmlEvents()
+     */
+    private boolean htmlEvents = false;
+
+    public void setHtmlEvents(boolean htmlEvents) {
+        this.htmlEvents = htmlEvents;
+    }
+
+    public boolean isHtmlEvents() {
+        return htmlEvents;
+    }
+
     public static class MyCounter {
 
         public long counter = 0;
@@ -172,6 +209,22 @@ public class BonitaCommandDeployment {
         // if a command exist, the signatudeCommand is returned
         public String signatureCommand;
 
+        /**
+         * time to run the afterRestart() (or the afterDeployment()) of the command, null if it was not done by this call
+         */
+        public Long warmUpTimeMs;
+
+        /**
+         * content addressed dependencies: JARs uploaded, and JARs already in the engine (not uploaded)
+         */
+        public int nbDependenciesUploaded = 0;
+        public int nbDependenciesShared = 0;
+
+        /**
+         * slimmed dependencies: bytes removed before the upload
+         */
+        public long dependenciesBytesSaved = 0;
+
         private Long threadId;
         private String commandName;
 
@@ -187,6 +240,9 @@ public class BonitaCommandDeployment {
             this.listEvents.addAll(deployStatusToMerge.listEvents);
             // don't change newDeployment and alreadyDeployed
             this.newDeployment = deployStatusToMerge.newDeployment;
+            this.nbDependenciesUploaded += deployStatusToMerge.nbDependenciesUploaded;
+            this.nbDependenciesShared += deployStatusToMerge.nbDependenciesShared;
+            this.dependenciesBytesSaved += deployStatusToMerge.dependenciesBytesSaved;
             this.infoMessage.append(deployStatusToMerge.infoMessage);
             this.errorMessage.append(deployStatusToMerge.errorMessage);
         }
@@ -240,6 +296,11 @@ public class BonitaCommandDeployment {
         DeployStatus deployStatus = checkDeployment(commandDescription, threadId, commandAPI);
 
         if (deployStatus.alreadyDeployed) {
+            if (commandDescription.warmUp && !warmUpTimeMs.containsKey(tenantId)) {
+                warmUp(tenantId, commandAPI);
+                deployStatus.warmUpTimeMs = warmUpTimeMs.get(tenantId);
+                deployStatus.addInfoMessage("WarmUp in " + deployStatus.warmUpTimeMs + " ms;");
+            }
             deployStatus.logNow();
             return deployStatus;
         }
@@ -255,7 +316,11 @@ public class BonitaCommandDeployment {
 
         // ping the factory
         if (!BEventFactory.isError(deployStatus.listEvents)) {
+            long startAfterDeployment = System.currentTimeMillis();
             Map<String, Object> resultPing = afterDeployment(tenantId, commandAPI);
+            // the AFTERDEPLOYMENT verb runs the afterRestart() too
+            deployStatus.warmUpTimeMs = System.currentTimeMillis() - startAfterDeployment;
+            warmUpTimeMs.put(tenantId, deployStatus.warmUpTimeMs);
             if (!BonitaCommand.CSTANSWER_STATUS_V_OK.equals(resultPing.get(BonitaCommand.CSTANSWER_STATUS))) {
                 deployStatus.addErrorMessage("Ping : [Error]");
                 deployStatus.listEvents.add(eventPingError);
@@ -299,14 +364,19 @@ public class BonitaCommandDeployment {
             // so undeploy it
             if (deployStatus.commandDescriptor != null) {
                 deployStatus.addInfoMessage("Unregister Command[" + deployStatus.commandDescriptor.getId() + "] Signature[" + deployStatus.signatureCommand + "]");
+                // let the command release its resources (threads...)
+                beforeUndeployment(tenantId, commandAPI);
                 commandAPI.unregister(deployStatus.commandDescriptor.getId());
 
-                // remove only one dependency, the one associate to the command. Another dependency may be use by different command, we don't knows
-                commandAPI.removeDependency(commandDescription.commandName);
+                if (commandDescription.contentAddressedDependencies)
+                    releaseContentAddressedDependencies(tenantId, deployStatus, commandAPI);
+                else
+                    // remove only one dependency, the one associate to the command. Another dependency may be use by different command, we don't knows
+                    commandAPI.removeDependency(commandDescription.commandName);
 
                 deployStatus.addInfoMessage("Unregister Done");
             }
-        } catch (CommandNotFoundException | DeletionException | DependencyNotFoundException e) {
+        } catch (CommandNotFoundException | DeletionException | DependencyNotFoundException | SQLException e) {
             deployStatus.addErrorMessage("ERROR DEPLOIEMENT: CommandNotFoundException[" + e.getMessage() + "]  in " + (System.currentTimeMillis() - startTime) + " ms");
             deployStatus.listEvents.add(new BEvent(eventErrorAtUndeployment, e,
                     "Command[" + commandName + "SignatureJar[" + deployStatus.signatureJar + "]"));
@@ -324,10 +394,128 @@ public class BonitaCommandDeployment {
         return callCommand(BonitaCommand.CST_VERB_AFTERDEPLOIMENT, null, tenantId, commandAPI);
     }
 
+    public Map<String, Object> beforeUndeployment(long tenantId, CommandAPI commandAPI) {
+        return callCommand(BonitaCommand.CST_VERB_BEFOREUNDEPLOYMENT, null, tenantId, commandAPI);
+    }
+
     public Map<String, Object> ping(long tenantId, CommandAPI commandAPI) {
         return callCommand(BonitaCommand.CST_VERB_PING, null, tenantId, commandAPI);
     }
 
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Warm up */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * last warm up time, per tenant
+     */
+    private Map<Long, Long> warmUpTimeMs = new ConcurrentHashMap<>();
+
+    /**
+     * run the afterRestart() of the command now, if it was not done yet on this tenant.
+     * 
+     * @return the result of the WARMUP verb
+     */
+    public Map<String, Object> warmUp(long tenantId, CommandAPI commandAPI) {
+        long startTime = System.currentTimeMillis();
+        Map<String, Object> result = callCommand(BonitaCommand.CST_VERB_WARMUP, null, tenantId, commandAPI);
+        long timeMs = System.currentTimeMillis() - startTime;
+        // a failed warm up will be done again
+        if (BonitaCommand.CSTANSWER_STATUS_V_OK.equals(result.get(BonitaCommand.CSTANSWER_STATUS)))
+            warmUpTimeMs.put(tenantId, timeMs);
+        if (isFine(logger))
+            logger.fine(LOGGER_LABEL + " WarmUp cmd[" + commandName + "] Tenant[" + tenantId + "] in " + timeMs + " ms");
+        return result;
+    }
+
+    /**
+     * @return the last warm up time of the command on the tenant, in ms. Null if the command was not warmed up.
+     */
+    public Long getWarmUpTimeMs(long tenantId) {
+        return warmUpTimeMs.get(tenantId);
+    }
+
+    /**
+     * Warm up all commands deployed on the tenant by BonitaCommandDeployment, in parallel. Call it when the engine starts.
+     * The commands are read from the engine (the description of a command deployed by this class starts with the signature of its JAR then #),
+     * plus the commands known in this JVM (all BonitaCommandDeployment.getInstance() done).
+     * 
+     * @see #warmUpAll(Collection, long, CommandAPI, int)
+     */
+    public static Map<String, Long> warmUpAll(long tenantId, CommandAPI commandAPI, int nbThreads) {
+        Set<String> listCommandsName = new HashSet<>();
+        int startIndex = 0;
+        List<CommandDescriptor> listCommands;
+        do {
+            listCommands = commandAPI.getAllCommands(startIndex, 1000, CommandCriterion.NAME_ASC);
+            for (CommandDescriptor command : listCommands) {
+                if (isDeployedDescription(command.getDescription()))
+                    listCommandsName.add(command.getName());
+            }
+            startIndex += listCommands.size();
+        } while (listCommands.size() == 1000);
+        synchronized (allDeploymentCommand) {
+            listCommandsName.addAll(allDeploymentCommand.keySet());
+        }
+        return warmUpAll(listCommandsName, tenantId, commandAPI, nbThreads);
+    }
+
+    private final static Pattern CST_SIGNATURE_PATTERN = Pattern.compile("[0-9a-f]{32}|Date_[0-9]+");
+
+    /**
+     * true if the description was written by deployCommand(): signature of the JAR (MD5 in hexadecimal, or "Date_" + time when the MD5 failed),
+     * then #. Another command of the engine, with a # in its description, is not called.
+     */
+    private static boolean isDeployedDescription(String description) {
+        if (description == null)
+            return false;
+        int posIndex = description.indexOf('#');
+        return posIndex != -1 && CST_SIGNATURE_PATTERN.matcher(description.substring(0, posIndex)).matches();
+    }
+
+    /**
+     * Warm up a list of commands, in parallel on a bounded pool: the afterRestart() of each command is executed now.
+     * Call it when the engine starts, or just after the deployment of commands.
+     * 
+     * @param nbThreads number of commands warmed up in parallel
+     * @return command name -> warm up time in ms (-1 if the warm up failed)
+     */
+    public static Map<String, Long> warmUpAll(Collection<String> listCommandsName, long tenantId, CommandAPI commandAPI, int nbThreads) {
+        Map<String, Long> warmUpTimes = new HashMap<>();
+        if (listCommandsName.isEmpty())
+            return warmUpTimes;
+        ExecutorService warmUpExecutor = Executors.newFixedThreadPool(Math.max(1, Math.min(nbThreads, listCommandsName.size())), r -> {
+            Thread t = new Thread(r, "BonitaCommandWarmUp");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<String, Future<Map<String, Object>>> futures = new HashMap<>();
+            for (String commandNameToWarm : listCommandsName) {
+                BonitaCommandDeployment commandDeployment = getInstance(commandNameToWarm);
+                futures.put(commandNameToWarm, warmUpExecutor.submit(() -> commandDeployment.warmUp(tenantId, commandAPI)));
+            }
+            for (Map.Entry<String, Future<Map<String, Object>>> entry : futures.entrySet()) {
+                try {
+                    Map<String, Object> result = entry.getValue().get();
+                    boolean isOk = BonitaCommand.CSTANSWER_STATUS_V_OK.equals(result.get(BonitaCommand.CSTANSWER_STATUS));
+                    warmUpTimes.put(entry.getKey(), isOk ? getInstance(entry.getKey()).getWarmUpTimeMs(tenantId) : -1L);
+                } catch (ExecutionException e) {
+                    logger.severe(LOGGER_LABEL + " WarmUp cmd[" + entry.getKey() + "] Tenant[" + tenantId + "] error " + e.getCause());
+                    warmUpTimes.put(entry.getKey(), -1L);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            warmUpExecutor.shutdown();
+        }
+        logger.info(LOGGER_LABEL + " WarmUp Tenant[" + tenantId + "] " + warmUpTimes);
+        return warmUpTimes;
+    }
+
     /**
      * Call the command, with a verb. ParametersCommand may be null.
      * 
@@ -335,8 +523,66 @@ public class BonitaCommandDeployment {
      * @param commandAPI
      * @return
      */
-    @SuppressWarnings("unchecked")
     public Map<String, Object> callCommand(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI) {
+        return callCommand(verb, parametersCommand, tenantId, commandAPI, null);
+    }
+
+    /**
+     * Call the command, with a verb and a deadline. The deadline is given to the command, which does not execute the verb if the deadline is passed.
+     * 
+     * @param deadline absolute time in ms (System.currentTimeMillis()). Null or 0 means no deadline
+     */
+    public Map<String, Object> callCommand(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI, Long deadline) {
+        return callCommand(verb, parametersCommand, tenantId, commandAPI, deadline, false);
+    }
+
+    private Map<String, Object> callCommand(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI, Long deadline, boolean async) {
+        long startTimeNano = System.nanoTime();
+        Map<String, Object> resultCommandHashmap = null;
+        try {
+            resultCommandHashmap = callCommandEngine(verb, parametersCommand, tenantId, commandAPI, deadline, async);
+            return resultCommandHashmap;
+        } finally {
+            getMetrics().record(verb, System.nanoTime() - startTimeNano,
+                    resultCommandHashmap == null || BEventFactory.isError(BonitaCommand.getListEvents(resultCommandHashmap)));
+        }
+    }
+
+    /**
+     * Call the command in background (BonitaCommandApiAccessor only): the answer contains the job id (BonitaCommand.CST_JOBID).
+     * Then, use getJobStatus(), getJobResult(), cancelJob()
+     */
+    public Map<String, Object> callCommandJob(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI) {
+        return callCommand(verb, parametersCommand, tenantId, commandAPI, null, true);
+    }
+
+    public Map<String, Object> getJobStatus(String jobId, long tenantId, CommandAPI commandAPI) {
+        return callJobVerb(BonitaCommand.CST_VERB_JOBSTATUS, jobId, tenantId, commandAPI);
+    }
+
+    public Map<String, Object> getJobResult(String jobId, long tenantId, CommandAPI commandAPI) {
+        return callJobVerb(BonitaCommand.CST_VERB_JOBRESULT, jobId, tenantId, commandAPI);
+    }
+
+    public Map<String, Object> cancelJob(String jobId, long tenantId, CommandAPI commandAPI) {
+        return callJobVerb(BonitaCommand.CST_VERB_JOBCANCEL, jobId, tenantId, commandAPI);
+    }
+
+    private Map<String, Object> callJobVerb(String verb, String jobId, long tenantId, CommandAPI commandAPI) {
+        HashMap<String, Serializable> parametersCommand = new HashMap<>();
+        parametersCommand.put(BonitaCommand.CST_JOBID, jobId);
+        return callCommand(verb, parametersCommand, tenantId, commandAPI);
+    }
+
+    /**
+     * client metrics for this command: one histogram per verb, measured around callCommand
+     */
+    public BonitaCommandMetrics getMetrics() {
+        return BonitaCommandMetrics.getInstance(BonitaCommandMetrics.CST_SIDE_CLIENT, commandName);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> callCommandEngine(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI, Long deadline, boolean async) {
         List<BEvent> listEvents = new ArrayList<>();
         Map<String, Object> resultCommandHashmap = new HashMap<>();
 
@@ -345,7 +591,7 @@ public class BonitaCommandDeployment {
             if (isFine(logger))
                 logger.fine(LOGGER_LABEL + "~~~~~~~~~~ callCommand() No Command[" + commandName + "] deployed");
             listEvents.add(eventNotDeployed);
-            resultCommandHashmap.put(BonitaCommand.CST_RESULT_LISTEVENTS, BEventFactory.getHtml(listEvents));
+            BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
             return resultCommandHashmap;
         }
 
@@ -355,6 +601,12 @@ public class BonitaCommandDeployment {
             parameters.put(BonitaCommand.CST_VERB, verb);
             parameters.put(BonitaCommand.CST_TENANTID, tenantId);
             parameters.put(BonitaCommand.CST_PARAMETER_COMMAND, parametersCommand);
+            if (deadline != null && deadline > 0)
+                parameters.put(BonitaCommand.CST_DEADLINE, deadline);
+            if (htmlEvents)
+                parameters.put(BonitaCommand.CST_HTMLEVENTS, Boolean.TRUE);
+            if (async)
+                parameters.put(BonitaCommand.CST_ASYNC, Boolean.TRUE);
             // Call the command now 
             if (isFine(logger))
                 logger.fine(LOGGER_LABEL + "~~~~~~~~~~ Call Command[" + command.getId() + "] Verb[" + verb + "]");
@@ -373,13 +625,121 @@ public class BonitaCommandDeployment {
             listEvents.add(new BEvent(eventCallCommand, e, ""));
         }
         if (!listEvents.isEmpty())
-            resultCommandHashmap.put(BonitaCommand.CST_RESULT_LISTEVENTS, BEventFactory.getHtml(listEvents));
+            BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
         if (isFine(logger))
             logger.fine(LOGGER_LABEL + "~~~~~~~~~~ : END Command[" + command.getId() + "] Verb["
                     + verb + "]" + resultCommandHashmap);
         return resultCommandHashmap;
     }
 
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Asynchronous call */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private final static AtomicLong clientThreadCounter = new AtomicLong();
+
+    /**
+     * Executor used by callCommandAsync. It is bounded: a burst of asynchronous call can't create thousand of threads.
+     */
+    private static ThreadPoolExecutor clientExecutor = null;
+
+    /**
+     * Complete the future when the deadline is passed, even if the command does not answer.
+     */
+    private static ScheduledThreadPoolExecutor deadlineScheduler = null;
+
+    /**
+     * Change the client executor. Call it before the first callCommandAsync, else the running executor is shutdown (current calls finish).
+     * 
+     * @param nbThreads maximum number of command called in parallel, at least 1
+     * @param queueSize maximum number of call waiting a thread. Then, the call is rejected. 0: no queue, a call is rejected when all threads are busy
+     */
+    public static synchronized void setClientExecutorPolicy(int nbThreads, int queueSize) {
+        if (nbThreads <= 0)
+            throw new IllegalArgumentException("nbThreads must be at least 1, got " + nbThreads);
+        if (queueSize < 0)
+            throw new IllegalArgumentException("queueSize must be positive or 0, got " + queueSize);
+        if (clientExecutor != null)
+            clientExecutor.shutdown();
+        BlockingQueue<Runnable> queue = queueSize == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueSize);
+        clientExecutor = new ThreadPoolExecutor(nbThreads, nbThreads, 60, TimeUnit.SECONDS, queue, r -> {
+            Thread t = new Thread(r, "BonitaCommandClient-" + clientThreadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        clientExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static synchronized ThreadPoolExecutor getClientExecutor() {
+        if (clientExecutor == null)
+            setClientExecutorPolicy(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 1000);
+        return clientExecutor;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getDeadlineScheduler() {
+        if (deadlineScheduler == null) {
+            deadlineScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "BonitaCommandDeadline");
+                t.setDaemon(true);
+                return t;
+            });
+            // most of the calls answer before the deadline: don't keep the timers
+            deadlineScheduler.setRemoveOnCancelPolicy(true);
+        }
+        return deadlineScheduler;
+    }
+
+    /**
+     * Call the command asynchronously. The call is executed on a bounded client executor, so the caller thread is free immediately.
+     * The deadline travels with the parameters: the command does not execute a call arriving after the deadline.
+     * At the deadline, the future is completed with a "Deadline exceeded" event, even if the command is still running.
+     * 
+     * @param deadline absolute time in ms (System.currentTimeMillis()). 0 means no deadline
+     * @return a future completed with the result of the command (same result as callCommand)
+     */
+    public CompletableFuture<Map<String, Object>> callCommandAsync(String verb, HashMap<String, Serializable> parametersCommand, long tenantId, CommandAPI commandAPI, long deadline) {
+        final Long deadlineCall = deadline > 0 ? deadline : null;
+        CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        try {
+            getClientExecutor().execute(() -> {
+                if (future.isDone())
+                    return;
+                if (deadlineCall != null && System.currentTimeMillis() >= deadlineCall) {
+                    future.complete(getDeadlineAnswer(verb, deadlineCall));
+                    return;
+                }
+                try {
+                    future.complete(callCommand(verb, parametersCommand, tenantId, commandAPI, deadlineCall));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            List<BEvent> listEvents = new ArrayList<>();
+            listEvents.add(new BEvent(eventClientExecutorFull, "Command[" + commandName + "] Verb[" + verb + "]"));
+            Map<String, Object> resultCommandHashmap = new HashMap<>();
+            BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
+            future.complete(resultCommandHashmap);
+            return future;
+        }
+        if (deadlineCall != null) {
+            ScheduledFuture<?> timer = getDeadlineScheduler().schedule(() -> future.complete(getDeadlineAnswer(verb, deadlineCall)),
+                    Math.max(0, deadlineCall - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            future.whenComplete((result, error) -> timer.cancel(false));
+        }
+        return future;
+    }
+
+    private Map<String, Object> getDeadlineAnswer(String verb, long deadline) {
+        List<BEvent> listEvents = new ArrayList<>();
+        listEvents.add(new BEvent(eventDeadlineExceeded, "Command[" + commandName + "] Verb[" + verb + "] Deadline[" + deadline + "]"));
+        Map<String, Object> resultCommandHashmap = new HashMap<>();
+        BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
+        return resultCommandHashmap;
+    }
+
     /**
      * Call the command, without a verb. ParametersCommand may be null.
      * 
@@ -397,7 +757,7 @@ public class BonitaCommandDeployment {
             if (isFine(logger))
                 logger.fine(LOGGER_LABEL + "~~~~~~~~~~ callCommand() No Command[" + commandName + "] deployed");
             listEvents.add(eventNotDeployed);
-            resultCommandHashmap.put(BonitaCommand.CST_RESULT_LISTEVENTS, BEventFactory.getHtml(listEvents));
+            BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
             return resultCommandHashmap;
         }
 
@@ -419,7 +779,7 @@ public class BonitaCommandDeployment {
             listEvents.add(new BEvent(eventCallCommand, e, ""));
         }
         if (!listEvents.isEmpty())
-            resultCommandHashmap.put(BonitaCommand.CST_RESULT_LISTEVENTS, BEventFactory.getHtml(listEvents));
+            BonitaCommand.putEvents(resultCommandHashmap, listEvents, htmlEvents);
 
         if (isFine(logger))
             logger.fine(LOGGER_LABEL + "~~~~~~~~~~ : END Command[" + command.getId() + "] " + resultCommandHashmap);
@@ -464,6 +824,8 @@ public class BonitaCommandDeployment {
             if (deployStatus.commandDescriptor != null) {
                 deployStatus.addInfoMessage("Unregister Command[" + deployStatus.commandDescriptor.getId() + "] Signature[" + deployStatus.signatureCommand + "]");
 
+                // let the previous version release its resources (threads...)
+                beforeUndeployment(tenantId, commandAPI);
                 commandAPI.unregister(deployStatus.commandDescriptor.getId());
                 deployStatus.addInfoMessage("Unregister Done");
             }
@@ -477,156 +839,404 @@ public class BonitaCommandDeployment {
             }
 
             deployStatus.addInfoMessage("DEPLOIMENT Signaturejar[" + deployStatus.signatureJar + "]");
-            // there are a "lastVersionCheck" in dependencies ? 
-            Set<String> lastVersionsCheck = new HashSet<>();
-            for (final CommandJarDependency jarDependency : commandDescription.getListDependenciesToDeploy()) {
-                if (jarDependency.isLastVersionCheck())
-                    lastVersionsCheck.add(jarDependency.getName());
+            if (commandDescription.contentAddressedDependencies)
+                deployContentAddressedDependencies(commandDescription, tenantId, deployStatus, commandAPI);
+            else
+                deployDependencies(commandDescription, deployStatus, commandAPI);
+
+            // --- register command
+            if (!BEventFactory.isError(deployStatus.listEvents)) {
+                deployStatus.addInfoMessage(logDeploy(threadId, "Registering Command..."));
+
+                long startRegisterCommand = System.currentTimeMillis();
+                deployStatus.commandDescriptor = commandAPI.register(commandName,
+                        deployStatus.signatureJar + "#" + commandDescription.commandDescription, commandDescription.mainCommandClassName);
+                long currentTime = System.currentTimeMillis();
+                deployStatus.listEvents.add(new BEvent(eventDeployedWithSuccess, deployStatus.infoMessage.toString()));
+                deployStatus.newDeployment = true;
+                deployStatus.addInfoMessage("Register Command in " + (currentTime - startRegisterCommand) + " ms, Total Deployement in " + (System.currentTimeMillis() - startTime) + " ms");
             }
-            // problem : there are no way to access the current dependency based on the name ! So, no way to detect if the current dependency is newer than the old one.
-            Set<String> dependenciesLastVersionCheck = new HashSet<>();
-            if (!lastVersionsCheck.isEmpty())
-                dependenciesLastVersionCheck = getAllDependencies(lastVersionsCheck);
 
-            // -------------------------- first, dependency
-            for (final CommandJarDependency jarDependency : commandDescription.getListDependenciesToDeploy()) {
-                boolean deployDependencyOk = true;
-                long startTimeDependency = System.currentTimeMillis();
-                deployStatus.addInfoMessage("Manage Dependency[" + jarDependency.getName() + "]");
+            if (platFormAPI != null) {
+                platFormAPI.startNode();
+            }
+            // let log as INFO all the deployment
 
-                if ((!jarDependency.isForceDeploy()) && jarDependency.isLastVersionCheck()) {
-                    // check if the version is the last one or not. By default, we have to deploy
-                    boolean deployNewDependency = true;
-                    for (String existingDependencie : dependenciesLastVersionCheck) {
-                        if (existingDependencie.startsWith(jarDependency.getName())) {
-                            // format is <name>-<version> or just <name>
-                            String existingVersion = existingDependencie;
-                            if (existingDependencie.lastIndexOf('-') != -1)
-                                existingVersion = existingDependencie.substring(existingDependencie.lastIndexOf('-') + 1);
-                            boolean isUpper = isUpperVersion(jarDependency.getVersion(), existingVersion);
-                            deployStatus.addInfoMessage("Version[" + jarDependency.getVersion() + "] <-> existing[" + existingVersion + "] " + (isUpper ? "NEW" : "Lower"));
-                            if (!isUpper)
-                                deployNewDependency = false; // we found a better version, no deployment at all
-                            if (isUpper) {
-                                // we found a old version, delete that one. Do not change the deployNewDependency, we may found a better before.
-                                long startRemoveDependency = System.currentTimeMillis();
-
-                                try {
-                                    commandAPI.removeDependency(existingDependencie);
-                                    deployStatus.addInfoMessage("RemoveDependencie[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
-                                } catch (DependencyNotFoundException nf) {
-                                    deployStatus.addInfoMessage("RemoveDependencieNotFound[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
-                                } catch (Exception e) {
-                                    deployStatus.addErrorMessage("ErrorRemoveDependency " + e.getMessage());
-                                }
+            return deployStatus;
+
+        } catch (Exception e) {
+            deployStatus.addErrorMessage("ERROR DEPLOIEMENT: CommandNotFoundException[" + e.getMessage() + "]  in " + (System.currentTimeMillis() - startTime) + " ms");
+
+            deployStatus.listEvents.add(new BEvent(eventErrorAtDeployment, e,
+                    "Command[" + commandName + "SignatureJar[" + deployStatus.signatureJar + "]"));
+        }
+        return deployStatus;
+    }
+
+    /**
+     * deploy the dependencies under their name, or their name-version for a lastVersionCheck dependency
+     */
+    private void deployDependencies(BonitaCommandDescription commandDescription, DeployStatus deployStatus, CommandAPI commandAPI) throws CreationException {
+        // there are a "lastVersionCheck" in dependencies ? 
+        Set<String> lastVersionsCheck = new HashSet<>();
+        for (final CommandJarDependency jarDependency : commandDescription.getListDependenciesToDeploy()) {
+            if (jarDependency.isLastVersionCheck())
+                lastVersionsCheck.add(jarDependency.getName());
+        }
+        // problem : there are no way to access the current dependency based on the name ! So, no way to detect if the current dependency is newer than the old one.
+        Set<String> dependenciesLastVersionCheck = new HashSet<>();
+        if (!lastVersionsCheck.isEmpty())
+            dependenciesLastVersionCheck = getAllDependencies(lastVersionsCheck);
+
+        // -------------------------- first, dependency
+        for (final CommandJarDependency jarDependency : commandDescription.getListDependenciesToDeploy()) {
+            long startTimeDependency = System.currentTimeMillis();
+            deployStatus.addInfoMessage("Manage Dependency[" + jarDependency.getName() + "]");
+
+            if ((!jarDependency.isForceDeploy()) && jarDependency.isLastVersionCheck()) {
+                // check if the version is the last one or not. By default, we have to deploy
+                boolean deployNewDependency = true;
+                for (String existingDependencie : dependenciesLastVersionCheck) {
+                    if (existingDependencie.startsWith(jarDependency.getName())) {
+                        // format is <name>-<version> or just <name>
+                        String existingVersion = existingDependencie;
+                        if (existingDependencie.lastIndexOf('-') != -1)
+                            existingVersion = existingDependencie.substring(existingDependencie.lastIndexOf('-') + 1);
+                        boolean isUpper = isUpperVersion(jarDependency.getVersion(), existingVersion);
+                        deployStatus.addInfoMessage("Version[" + jarDependency.getVersion() + "] <-> existing[" + existingVersion + "] " + (isUpper ? "NEW" : "Lower"));
+                        if (!isUpper)
+                            deployNewDependency = false; // we found a better version, no deployment at all
+                        if (isUpper) {
+                            // we found a old version, delete that one. Do not change the deployNewDependency, we may found a better before.
+                            long startRemoveDependency = System.currentTimeMillis();
+
+                            try {
+                                commandAPI.removeDependency(existingDependencie);
+                                deployStatus.addInfoMessage("RemoveDependencie[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
+                            } catch (DependencyNotFoundException nf) {
+                                deployStatus.addInfoMessage("RemoveDependencieNotFound[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
+                            } catch (Exception e) {
+                                deployStatus.addErrorMessage("ErrorRemoveDependency " + e.getMessage());
                             }
                         }
                     }
+                }
 
-                    if (!deployNewDependency) {
-                        deployStatus.addInfoMessage("Keep Existing;");
-                        continue;
+                if (!deployNewDependency) {
+                    deployStatus.addInfoMessage("Keep Existing;");
+                    continue;
+                }
+                deployStatus.addInfoMessage("DEPLOY;");
+            } else {
+                long startRemoveDependency = System.currentTimeMillis();
+                try {
+                    try {
+                        commandAPI.removeDependency(jarDependency.getName());
+                    } catch (DependencyNotFoundException nf) {
+                        // don't log it
                     }
-                    deployStatus.addInfoMessage("DEPLOY;");
-                } else {
-                    long startRemoveDependency = System.currentTimeMillis();
                     try {
-                        try {
-                            commandAPI.removeDependency(jarDependency.getName());
-                        } catch (DependencyNotFoundException nf) {
-                            // don't log it
-                        }
-                        try {
-                            commandAPI.removeDependency(jarDependency.getName() + "-" + jarDependency.getVersion());
-                        } catch (DependencyNotFoundException nf) {
-                        }
+                        commandAPI.removeDependency(jarDependency.getName() + "-" + jarDependency.getVersion());
+                    } catch (DependencyNotFoundException nf) {
+                    }
 
-                        // then remove all dependency started by the same name
-                        for (String existingDependencie : dependenciesLastVersionCheck) {
-                            if (existingDependencie.startsWith(jarDependency.getName())) {
-                                deployStatus.addInfoMessage("purge[" + existingDependencie + "]");
-                                try {
-                                    commandAPI.removeDependency(existingDependencie);
-                                } catch (DependencyNotFoundException nf) {
-                                    // don't log it
-                                }
+                    // then remove all dependency started by the same name
+                    for (String existingDependencie : dependenciesLastVersionCheck) {
+                        if (existingDependencie.startsWith(jarDependency.getName())) {
+                            deployStatus.addInfoMessage("purge[" + existingDependencie + "]");
+                            try {
+                                commandAPI.removeDependency(existingDependencie);
+                            } catch (DependencyNotFoundException nf) {
+                                // don't log it
                             }
                         }
-                        deployStatus.addInfoMessage("RemoveDependencie[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
-                    } catch (Exception e) {
-                        deployStatus.addErrorMessage("ErrorRemoveDependency " + e.getMessage());
                     }
+                    deployStatus.addInfoMessage("RemoveDependencie[" + jarDependency.getName() + "] in " + (System.currentTimeMillis() - startRemoveDependency) + " ms");
+                } catch (Exception e) {
+                    deployStatus.addErrorMessage("ErrorRemoveDependency " + e.getMessage());
                 }
+            }
 
-                String nameDependencyToDeploy;
-                if (jarDependency.isLastVersionCheck())
-                    nameDependencyToDeploy = jarDependency.getName() + "-" + jarDependency.getVersion();
-                else
-                    nameDependencyToDeploy = jarDependency.getName();
+            String nameDependencyToDeploy;
+            if (jarDependency.isLastVersionCheck())
+                nameDependencyToDeploy = jarDependency.getName() + "-" + jarDependency.getVersion();
+            else
+                nameDependencyToDeploy = jarDependency.getName();
 
-                // load it
-                final ByteArrayOutputStream fileContent = new ByteArrayOutputStream();
-                final byte[] buffer = new byte[100000];
-                int nbRead = 0;
-                InputStream inputFileJar = null;
+            // load it
+            byte[] fileContent = loadDependency(commandDescription, jarDependency, deployStatus);
+            if (fileContent != null) {
+                long startAddDependency = System.currentTimeMillis();
                 try {
-                    inputFileJar = new FileInputStream(jarDependency.getCompleteFileName());
-
-                    while ((nbRead = inputFileJar.read(buffer)) > 0) {
-                        fileContent.write(buffer, 0, nbRead);
-                    }
+                    commandAPI.addDependency(nameDependencyToDeploy, fileContent);
+                    long currentTime = System.currentTimeMillis();
+                    deployStatus.addInfoMessage("Add[" + jarDependency.getName() + "] Name[" + nameDependencyToDeploy + "] in " + (currentTime - startAddDependency) + ", total " + (currentTime - startTimeDependency) + " ms");
+                } catch (AlreadyExistsException ae) {
+                    deployStatus.addErrorMessage("**** ERROR *** AlreadyExist: [" + jarDependency.getName() + "]  in " + (System.currentTimeMillis() - startTimeDependency) + " ms");
 
-                } catch (final Exception e) {
-                    deployStatus.addErrorMessage("**** ERROR *** FileErrorLoadDependency: [" + e.getMessage() + "]");
-                    deployStatus.listEvents.add(new BEvent(eventMissingDependency, "Dependency[" + jarDependency.getName() + "] File[" + jarDependency.getCompleteFileName() + "]"));
-                    deployDependencyOk = false;
-                } finally {
-                    if (inputFileJar != null)
-                        inputFileJar.close();
+                    deployStatus.listEvents.add(new BEvent(eventDeployDependency, "Dependency[" + jarDependency.getName() + "] Name[" + nameDependencyToDeploy + "] File[" + jarDependency.getCompleteFileName() + "]"));
                 }
-                // message += "Adding jarName [" + onejar.jarName + "] size[" + fileContent.size() + "]...";
-                if (deployDependencyOk) {
-                    long startAddDependency = System.currentTimeMillis();
-                    try {
-                        commandAPI.addDependency(nameDependencyToDeploy, fileContent.toByteArray());
-                        long currentTime = System.currentTimeMillis();
-                        deployStatus.addInfoMessage("Add[" + jarDependency.getName() + "] Name[" + nameDependencyToDeploy + "] in " + (currentTime - startAddDependency) + ", total " + (currentTime - startTimeDependency) + " ms");
-                    } catch (AlreadyExistsException ae) {
-                        deployStatus.addErrorMessage("**** ERROR *** AlreadyExist: [" + jarDependency.getName() + "]  in " + (System.currentTimeMillis() - startTimeDependency) + " ms");
 
-                        deployStatus.listEvents.add(new BEvent(eventDeployDependency, "Dependency[" + jarDependency.getName() + "] Name[" + nameDependencyToDeploy + "] File[" + jarDependency.getCompleteFileName() + "]"));
-                    }
+            }
+        } // end dependency
+    }
 
+    /**
+     * content addressed mode: each dependency is deployed under the name of its content, and the command references it in the
+     * BonitaCommandDependencyStore. A content already in the engine is not uploaded. The references of the previous deployment which are not
+     * used anymore are released.
+     * Each dependency is linked in its own transaction under the lock of the tenant: an undeployment can't remove the blob between the check and
+     * the reference. The engine removes nothing before the commit: blobs which lost their last reference are removed after, see releaseDependencies().
+     */
+    private void deployContentAddressedDependencies(BonitaCommandDescription commandDescription, long tenantId, DeployStatus deployStatus, CommandAPI commandAPI) throws Exception {
+        ConnectionResult connectionResult = getDataSourceConnection();
+        if (connectionResult.con == null) {
+            deployStatus.addErrorMessage("**** ERROR *** No datasource for the dependency store");
+            deployStatus.listEvents.add(new BEvent(eventConnectDatabase, "No datasource available for the dependency store"));
+            return;
+        }
+        BonitaCommandDependencyStore dependencyStore = new BonitaCommandDependencyStore(connectionResult.con);
+        // blobs which may have no reference anymore
+        Set<String> releaseCandidates = new LinkedHashSet<>();
+        try {
+            dependencyStore.checkTable();
+            Map<String, BonitaCommandDependencyStore.Reference> previousReferences = new HashMap<>();
+            for (BonitaCommandDependencyStore.Reference reference : dependencyStore.getReferencesByCommand(tenantId, commandName))
+                previousReferences.put(reference.jarName, reference);
+
+            for (final CommandJarDependency jarDependency : commandDescription.getListDependenciesToDeploy()) {
+                long startTimeDependency = System.currentTimeMillis();
+                // read and slim the file before taking the lock
+                byte[] fileContent = loadDependency(commandDescription, jarDependency, deployStatus);
+                if (fileContent == null)
+                    continue;
+                Set<String> linkReleases = new LinkedHashSet<>();
+                Set<String> uploaded = new LinkedHashSet<>();
+                dependencyStore.lock(tenantId);
+                try {
+                    linkDependency(dependencyStore, tenantId, jarDependency, fileContent, previousReferences.remove(jarDependency.getName()), startTimeDependency,
+                            linkReleases, uploaded, deployStatus, commandAPI);
+                    dependencyStore.commit();
+                } catch (Exception e) {
+                    dependencyStore.rollback();
+                    // the references are not written: a blob uploaded for them is not used
+                    releaseCandidates.addAll(uploaded);
+                    throw e;
                 }
-            } // end dependency
+                releaseCandidates.addAll(linkReleases);
+                // the blob replaces the dependency deployed under its name
+                removeDependencyIfExists(commandAPI, jarDependency.getName());
+                removeDependencyIfExists(commandAPI, jarDependency.getName() + "-" + jarDependency.getVersion());
+            }
+            // JARs used by the previous deployment only
+            if (!previousReferences.isEmpty()) {
+                dependencyStore.lock(tenantId);
+                try {
+                    for (BonitaCommandDependencyStore.Reference previousReference : previousReferences.values())
+                        dependencyStore.removeReference(tenantId, commandName, previousReference.jarName);
+                    dependencyStore.commit();
+                } catch (Exception e) {
+                    dependencyStore.rollback();
+                    throw e;
+                }
+                for (BonitaCommandDependencyStore.Reference previousReference : previousReferences.values())
+                    releaseCandidates.add(previousReference.dependencyName);
+            }
+        } finally {
+            releaseDependencies(dependencyStore, tenantId, releaseCandidates, deployStatus, commandAPI);
+            try {
+                connectionResult.con.close();
+            } catch (final SQLException e) {
+                // don't log it
+            }
+        }
+    }
 
-            // --- register command
-            if (!BEventFactory.isError(deployStatus.listEvents)) {
-                deployStatus.addInfoMessage(logDeploy(threadId, "Registering Command..."));
+    /**
+     * upload the blob if needed, and reference it for the command. Call it under the lock of the tenant. Nothing is removed from the engine here.
+     *
+     * @param previousReference reference of the previous deployment on this JAR, null if there is none
+     * @param releaseCandidates receive the blobs which lost a reference
+     * @param uploaded receive the blob uploaded
+     */
+    private void linkDependency(BonitaCommandDependencyStore dependencyStore, long tenantId, CommandJarDependency jarDependency, byte[] fileContent,
+            BonitaCommandDependencyStore.Reference previousReference, long startTimeDependency, Set<String> releaseCandidates, Set<String> uploaded,
+            DeployStatus deployStatus, CommandAPI commandAPI) throws Exception {
+        String contentName = BonitaCommandDependencyStore.getDependencyName(fileContent);
+        String dependencyName = contentName;
+        String version = jarDependency.getVersion();
+        long contentSize = fileContent.length;
+
+        // the same JAR in another version, used by another command
+        List<BonitaCommandDependencyStore.Reference> otherVersions = new ArrayList<>();
+        if (jarDependency.isLastVersionCheck()) {
+            for (BonitaCommandDependencyStore.Reference reference : dependencyStore.getReferencesByJarName(tenantId, jarDependency.getName())) {
+                if (!reference.dependencyName.equals(contentName))
+                    otherVersions.add(reference);
+            }
+        }
+        // one version in the engine, as deployDependencies(): use the existing one if it is the same or upper
+        if (!jarDependency.isForceDeploy()) {
+            for (BonitaCommandDependencyStore.Reference reference : otherVersions) {
+                if (!isUpperVersion(jarDependency.getVersion(), reference.version) && dependencyStore.existsInEngine(tenantId, reference.dependencyName)) {
+                    deployStatus.addInfoMessage("Version[" + jarDependency.getVersion() + "] <-> existing[" + reference.version + "] Keep Existing;");
+                    dependencyName = reference.dependencyName;
+                    version = reference.version;
+                    contentSize = reference.contentSize;
+                    break;
+                }
+            }
+        }
 
-                long startRegisterCommand = System.currentTimeMillis();
-                deployStatus.commandDescriptor = commandAPI.register(commandName,
-                        deployStatus.signatureJar + "#" + commandDescription.commandDescription, commandDescription.mainCommandClassName);
-                long currentTime = System.currentTimeMillis();
-                deployStatus.listEvents.add(new BEvent(eventDeployedWithSuccess, deployStatus.infoMessage.toString()));
-                deployStatus.newDeployment = true;
-                deployStatus.addInfoMessage("Register Command in " + (currentTime - startRegisterCommand) + " ms, Total Deployement in " + (System.currentTimeMillis() - startTime) + " ms");
+        if (dependencyStore.existsInEngine(tenantId, dependencyName)) {
+            deployStatus.nbDependenciesShared++;
+            deployStatus.addInfoMessage("Shared[" + jarDependency.getName() + "] Name[" + dependencyName + "];");
+        } else {
+            try {
+                commandAPI.addDependency(dependencyName, fileContent);
+                uploaded.add(dependencyName);
+                deployStatus.nbDependenciesUploaded++;
+                deployStatus.addInfoMessage("Add[" + jarDependency.getName() + "] Name[" + dependencyName + "] in " + (System.currentTimeMillis() - startTimeDependency) + " ms;");
+            } catch (AlreadyExistsException ae) {
+                // uploaded in the meantime by a deployment not using the store: same name, same content
+                deployStatus.nbDependenciesShared++;
+                deployStatus.addInfoMessage("Shared[" + jarDependency.getName() + "] Name[" + dependencyName + "] uploaded by another node;");
             }
+        }
+        dependencyStore.setReference(tenantId, new BonitaCommandDependencyStore.Reference(commandName, jarDependency.getName(), version, dependencyName, contentSize));
 
-            if (platFormAPI != null) {
-                platFormAPI.startNode();
+        if (previousReference != null && !previousReference.dependencyName.equals(dependencyName))
+            releaseCandidates.add(previousReference.dependencyName);
+
+        // this version is the upper one: the other commands move to it
+        if (dependencyName.equals(contentName)) {
+            for (BonitaCommandDependencyStore.Reference reference : otherVersions) {
+                if (reference.commandName.equals(commandName) || !isUpperVersion(jarDependency.getVersion(), reference.version))
+                    continue;
+                dependencyStore.setReference(tenantId, new BonitaCommandDependencyStore.Reference(reference.commandName, reference.jarName, version, dependencyName, contentSize));
+                releaseCandidates.add(reference.dependencyName);
             }
-            // let log as INFO all the deployment
+        }
+    }
 
-            return deployStatus;
+    /**
+     * content addressed mode, undeployment: remove all the references of the command in one transaction under the lock of the tenant, then release
+     * the blobs
+     */
+    private void releaseContentAddressedDependencies(long tenantId, DeployStatus deployStatus, CommandAPI commandAPI) throws SQLException {
+        ConnectionResult connectionResult = getDataSourceConnection();
+        if (connectionResult.con == null) {
+            deployStatus.addErrorMessage("**** ERROR *** No datasource for the dependency store");
+            deployStatus.listEvents.add(new BEvent(eventConnectDatabase, "No datasource available for the dependency store"));
+            return;
+        }
+        BonitaCommandDependencyStore dependencyStore = new BonitaCommandDependencyStore(connectionResult.con);
+        Set<String> releaseCandidates = new LinkedHashSet<>();
+        try {
+            dependencyStore.checkTable();
+            dependencyStore.lock(tenantId);
+            try {
+                for (BonitaCommandDependencyStore.Reference reference : dependencyStore.getReferencesByCommand(tenantId, commandName)) {
+                    dependencyStore.removeReference(tenantId, commandName, reference.jarName);
+                    releaseCandidates.add(reference.dependencyName);
+                }
+                dependencyStore.commit();
+            } catch (SQLException | RuntimeException e) {
+                dependencyStore.rollback();
+                releaseCandidates.clear();
+                throw e;
+            }
+        } finally {
+            releaseDependencies(dependencyStore, tenantId, releaseCandidates, deployStatus, commandAPI);
+            try {
+                connectionResult.con.close();
+            } catch (final SQLException e) {
+                // don't log it
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            deployStatus.addErrorMessage("ERROR DEPLOIEMENT: CommandNotFoundException[" + e.getMessage() + "]  in " + (System.currentTimeMillis() - startTime) + " ms");
+    /**
+     * remove from the engine the blobs without reference. Call it after the commit of the references: the count is checked again under the lock of
+     * the tenant, so a blob referenced in the meantime by another deployment is kept. This transaction changes no reference: if it fails, nothing
+     * must be restored, a blob not removed stays in the engine until its next release.
+     */
+    private void releaseDependencies(BonitaCommandDependencyStore dependencyStore, long tenantId, Set<String> releaseCandidates, DeployStatus deployStatus, CommandAPI commandAPI) {
+        if (releaseCandidates.isEmpty())
+            return;
+        try {
+            dependencyStore.lock(tenantId);
+            try {
+                for (String dependencyName : releaseCandidates) {
+                    if (dependencyStore.countReferences(tenantId, dependencyName) > 0)
+                        continue;
+                    removeDependencyIfExists(commandAPI, dependencyName);
+                    deployStatus.addInfoMessage("Release[" + dependencyName + "];");
+                }
+            } finally {
+                // release the lock
+                dependencyStore.commit();
+            }
+        } catch (SQLException | DeletionException | RuntimeException e) {
+            dependencyStore.rollback();
+            logger.severe(LOGGER_LABEL + " Release dependencies " + releaseCandidates + " Tenant[" + tenantId + "] " + e.toString());
+            deployStatus.addErrorMessage("**** ERROR *** Release dependencies " + releaseCandidates + " " + e.getMessage());
+        }
+    }
 
-            deployStatus.listEvents.add(new BEvent(eventErrorAtDeployment, e,
-                    "Command[" + commandName + "SignatureJar[" + deployStatus.signatureJar + "]"));
+    private static void removeDependencyIfExists(CommandAPI commandAPI, String dependencyName) throws DeletionException {
+        try {
+            commandAPI.removeDependency(dependencyName);
+        } catch (DependencyNotFoundException nf) {
+            // don't log it
+        }
+    }
+
+    /**
+     * read the JAR file of the dependency, and slim it if the description asks it. Return null, with an event, if the file can't be read
+     */
+    private byte[] loadDependency(BonitaCommandDescription commandDescription, CommandJarDependency jarDependency, DeployStatus deployStatus) {
+        final ByteArrayOutputStream fileContent = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[100000];
+        int nbRead = 0;
+        InputStream inputFileJar = null;
+        try {
+            inputFileJar = new FileInputStream(jarDependency.getCompleteFileName());
+
+            while ((nbRead = inputFileJar.read(buffer)) > 0) {
+                fileContent.write(buffer, 0, nbRead);
+            }
+            if (commandDescription.slimDependencyExcludes == null)
+                return fileContent.toByteArray();
+            return slimDependency(fileContent.toByteArray(), commandDescription.slimDependencyExcludes, jarDependency, deployStatus);
+        } catch (final Exception e) {
+            deployStatus.addErrorMessage("**** ERROR *** FileErrorLoadDependency: [" + e.getMessage() + "]");
+            deployStatus.listEvents.add(new BEvent(eventMissingDependency, "Dependency[" + jarDependency.getName() + "] File[" + jarDependency.getCompleteFileName() + "]"));
+            return null;
+        } finally {
+            if (inputFileJar != null) {
+                try {
+                    inputFileJar.close();
+                } catch (final IOException e) {
+                    // don't log it
+                }
+            }
+        }
+    }
+
+    /**
+     * the slimmed JAR, or the JAR itself if it can't be slimmed (not a zip...)
+     */
+    private byte[] slimDependency(byte[] content, String[] excludes, CommandJarDependency jarDependency, DeployStatus deployStatus) {
+        try {
+            byte[] slimContent = BonitaCommandJarSlimmer.slim(content, excludes);
+            deployStatus.dependenciesBytesSaved += content.length - slimContent.length;
+            deployStatus.addInfoMessage("Slim[" + jarDependency.getName() + "] " + content.length + " -> " + slimContent.length + " bytes;");
+            return slimContent;
+        } catch (IOException e) {
+            deployStatus.addInfoMessage("Slim[" + jarDependency.getName() + "] not done: " + e.getMessage() + ";");
+            return content;
         }
-        return deployStatus;
     }
 
     /* ******************************************************************************** */
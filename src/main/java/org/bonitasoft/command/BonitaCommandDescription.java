@@ -20,6 +20,24 @@ public class BonitaCommandDescription {
 
     public boolean forceDeploy = false;
 
+    /**
+     * if true, checkAndDeployCommand() runs the afterRestart() of the command when the command is already deployed (typically, after a server restart),
+     * so the first user call does not pay the initialization. Done one time per tenant.
+     */
+    public boolean warmUp = false;
+
+    /**
+     * if true, the dependencies are deployed under the name of their content (see BonitaCommandDependencyStore): commands using the same JAR
+     * share one blob in the engine, a JAR already deployed is not uploaded again, and the undeployment removes a JAR only when no command uses it.
+     * Set it on all the commands of a tenant sharing JARs.
+     */
+    public boolean contentAddressedDependencies = false;
+
+    /**
+     * if set, each dependency is slimmed before its upload (see BonitaCommandJarSlimmer): the excluded entries are removed and the JAR is
+     * recompressed. BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES removes the sources and META-INF/maven. Null: the JAR is uploaded as it is.
+     */
+    public String[] slimDependencyExcludes = null;
 
     public BonitaCommandDescription(String commandName, File defaultPageDirectory) {
         this.commandName = commandName;
@@ -0,0 +1,343 @@
+package org.bonitasoft.command;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Executor used by BonitaCommandApiAccessor to run the calls outside the engine transaction.
+ * The pool is bounded (max size, queue size): a burst of calls can't create thousand of threads. A call gets a new thread up to max size, then waits
+ * in the queue; when the pool and the queue are full, the call is rejected, and the command returns an event. Idle threads stop after 60 s.
+ * A command uses the shared pool, or its own pool (see BonitaCommandApiAccessor.getExecutorPolicy()). A pool is shutdown when its command is undeployed.
+ * There is one pool per lane: interactive verbs (a user waits) and background verbs (batch, scheduler) do not wait in the same queue.
+ * On a JDK 21+, a pool can run each call on a virtual thread (Policy.virtualThreads). The library is compiled for Java 8, so virtual threads are
+ * reached by reflection; on an older JVM the platform pool is used.
+ */
+public class BonitaCommandExecutor {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandExecutor.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandExecutor:";
+
+    public final static String CST_SHARED_POOL = "shared";
+
+    /**
+     * lane of the verbs a user is waiting for. Default lane
+     */
+    public final static String CST_LANE_INTERACTIVE = "interactive";
+    /**
+     * lane of the batch verbs: they never delay the interactive verbs
+     */
+    public final static String CST_LANE_BACKGROUND = "background";
+
+    public final static String CST_EXECUTOR_CORESIZE = "coresize";
+    public final static String CST_EXECUTOR_MAXSIZE = "maxsize";
+    public final static String CST_EXECUTOR_POOLSIZE = "poolsize";
+    public final static String CST_EXECUTOR_LARGESTPOOLSIZE = "largestpoolsize";
+    public final static String CST_EXECUTOR_ACTIVE = "active";
+    public final static String CST_EXECUTOR_QUEUED = "queued";
+    public final static String CST_EXECUTOR_QUEUECAPACITY = "queuecapacity";
+    public final static String CST_EXECUTOR_COMPLETED = "completed";
+    public final static String CST_EXECUTOR_REJECTED = "rejected";
+    public final static String CST_EXECUTOR_VIRTUALTHREADS = "virtualthreads";
+
+    /**
+     * Size of the pool
+     */
+    public static class Policy {
+
+        /**
+         * true: use the pool shared by all commands. The sizes are used only if the shared pool does not exist yet
+         */
+        public final boolean shared;
+        /**
+         * threads kept alive when there is no call. The pool grows up to maxSize before a call waits in the queue, and the idle threads stop after
+         * 60 s: a ThreadPoolExecutor creates threads over its core size only when its queue is full, so the platform pool runs with core size =
+         * maxSize and lets its core threads time out.
+         */
+        public final int coreSize;
+        public final int maxSize;
+        /**
+         * number of calls waiting a thread, when maxSize threads are busy. When the queue is full, the calls are rejected
+         */
+        public final int queueSize;
+        /**
+         * run each call on a virtual thread, when the JVM supports it. coreSize is ignored, and maxSize + queueSize is the maximum number of calls in
+         * progress: a virtual thread does not wait in a queue, but the number of calls against the engine is still bounded.
+         */
+        public final boolean virtualThreads;
+
+        public Policy(boolean shared, int coreSize, int maxSize, int queueSize) {
+            this(shared, coreSize, maxSize, queueSize, false);
+        }
+
+        public Policy(boolean shared, int coreSize, int maxSize, int queueSize, boolean virtualThreads) {
+            this.shared = shared;
+            this.coreSize = coreSize;
+            this.maxSize = Math.max(coreSize, maxSize);
+            this.queueSize = queueSize;
+            this.virtualThreads = virtualThreads;
+        }
+
+        public String toString() {
+            return (shared ? "shared" : "dedicated") + (virtualThreads ? " virtual" : "") + " core[" + coreSize + "] max[" + maxSize + "] queue[" + queueSize + "]";
+        }
+    }
+
+    /**
+     * default policy: the shared pool
+     */
+    public static Policy getDefaultPolicy() {
+        int nbProcessors = Runtime.getRuntime().availableProcessors();
+        return new Policy(true, nbProcessors * 2, nbProcessors * 8, 1000);
+    }
+
+    /**
+     * @return true if the JVM can create virtual threads (JDK 21+, or JDK 19/20 with --enable-preview)
+     */
+    public static boolean isVirtualThreadAvailable() {
+        return virtualThreadFactoryBuilder != null;
+    }
+
+    /**
+     * Thread.ofVirtual(), null if the JVM does not support virtual threads
+     */
+    private final static Method virtualThreadFactoryBuilder;
+    static {
+        Method method = null;
+        try {
+            method = Thread.class.getMethod("ofVirtual");
+            // JDK 19 and 20 have the method, but virtual threads are a preview feature: probe the creation of one thread
+            Object builder = method.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderClass.getMethod("unstarted", Runnable.class).invoke(builder, (Runnable) () -> {
+            });
+        } catch (Throwable e) {
+            // JVM before 21, or preview not enabled
+            method = null;
+        }
+        virtualThreadFactoryBuilder = method;
+    }
+
+    private final static Map<String, BonitaCommandExecutor> allExecutors = new ConcurrentHashMap<>();
+
+    /**
+     * default policy of the background lane: the shared pool, smaller than the interactive one
+     */
+    public static Policy getDefaultBackgroundPolicy() {
+        int nbProcessors = Runtime.getRuntime().availableProcessors();
+        return new Policy(true, nbProcessors, nbProcessors * 2, 10000);
+    }
+
+    /**
+     * return the executor for the command, interactive lane
+     *
+     * @param commandName name of the command, used when the policy is not shared
+     */
+    public static BonitaCommandExecutor getInstance(String commandName, Policy policy) {
+        return getInstance(commandName, CST_LANE_INTERACTIVE, policy);
+    }
+
+    /**
+     * return the executor for the command, on a lane
+     *
+     * @param commandName name of the command, used when the policy is not shared
+     * @param lane CST_LANE_INTERACTIVE or CST_LANE_BACKGROUND
+     */
+    public static BonitaCommandExecutor getInstance(String commandName, String lane, Policy policy) {
+        String poolName = getPoolName(policy.shared ? CST_SHARED_POOL : commandName, lane);
+        BonitaCommandExecutor executor = allExecutors.get(poolName);
+        if (executor != null && !executor.executorService.isShutdown())
+            return executor;
+        return allExecutors.compute(poolName, (k, existing) -> existing != null && !existing.executorService.isShutdown() ? existing : new BonitaCommandExecutor(poolName, policy));
+    }
+
+    /**
+     * Orderly shutdown of the dedicated pool of a command: no new call, running calls get timeoutMs to finish, then they are interrupted.
+     * The shared pool is never shutdown by a command.
+     */
+    public static void shutdown(String commandName, long timeoutMs) {
+        if (CST_SHARED_POOL.equals(commandName))
+            return;
+        shutdownPool(getPoolName(commandName, CST_LANE_INTERACTIVE), timeoutMs);
+        shutdownPool(getPoolName(commandName, CST_LANE_BACKGROUND), timeoutMs);
+    }
+
+    /**
+     * the interactive pool keeps the name of the command (or "shared"), the other lanes get a suffix
+     */
+    private static String getPoolName(String name, String lane) {
+        return lane == null || CST_LANE_INTERACTIVE.equals(lane) ? name : name + "-" + lane;
+    }
+
+    private static void shutdownPool(String poolName, long timeoutMs) {
+        BonitaCommandExecutor executor = allExecutors.remove(poolName);
+        if (executor == null)
+            return;
+        executor.executorService.shutdown();
+        try {
+            if (!executor.executorService.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warning(LOGGER_LABEL + " Pool[" + poolName + "] calls still running after " + timeoutMs + " ms, interrupt them");
+                executor.executorService.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final String poolName;
+    private final Policy policy;
+    private final ExecutorService executorService;
+    /**
+     * platform pool. Null in virtual thread mode
+     */
+    private final ThreadPoolExecutor threadPool;
+    /**
+     * virtual thread mode: bound the number of calls in progress
+     */
+    private final Semaphore virtualPermits;
+    private final AtomicInteger virtualActive = new AtomicInteger();
+    private final LongAdder virtualCompleted = new LongAdder();
+
+    private final AtomicLong threadCounter = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    private BonitaCommandExecutor(String poolName, Policy policy) {
+        this.poolName = poolName;
+        this.policy = policy;
+        ExecutorService virtualExecutor = policy.virtualThreads ? createVirtualThreadExecutor(poolName) : null;
+        if (virtualExecutor != null) {
+            this.executorService = virtualExecutor;
+            this.threadPool = null;
+            this.virtualPermits = new Semaphore(policy.maxSize + Math.max(0, policy.queueSize));
+        } else {
+            if (policy.virtualThreads)
+                logger.info(LOGGER_LABEL + " Pool[" + poolName + "] virtual threads are not available on this JVM, use platform threads");
+            // core = max: a new call gets a thread up to maxSize, it waits in the queue only when all threads are busy
+            this.threadPool = new ThreadPoolExecutor(policy.maxSize, policy.maxSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, policy.queueSize)),
+                    r -> new Thread(r, "BonitaCommandAPI-" + poolName + "-" + threadCounter.incrementAndGet()));
+            this.threadPool.allowCoreThreadTimeOut(true);
+            this.executorService = threadPool;
+            this.virtualPermits = null;
+        }
+        logger.info(LOGGER_LABEL + " Create pool[" + poolName + "] " + policy.toString() + (isVirtual() ? " on virtual threads" : ""));
+    }
+
+    /**
+     * Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory()), by reflection
+     *
+     * @return null if virtual threads are not available
+     */
+    private static ExecutorService createVirtualThreadExecutor(String poolName) {
+        if (virtualThreadFactoryBuilder == null)
+            return null;
+        try {
+            Object builder = virtualThreadFactoryBuilder.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "BonitaCommandAPI-" + poolName + "-v", 1L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (Exception e) {
+            logger.warning(LOGGER_LABEL + " Pool[" + poolName + "] can't create virtual threads: " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the calls run on virtual threads
+     */
+    public boolean isVirtual() {
+        return threadPool == null;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    /**
+     * @throws RejectedExecutionException when the pool and the queue are full
+     */
+    public void execute(Runnable task) {
+        if (isVirtual()) {
+            executeVirtual(task);
+            return;
+        }
+        try {
+            threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    private void executeVirtual(Runnable task) {
+        if (!virtualPermits.tryAcquire()) {
+            rejected.increment();
+            throw new RejectedExecutionException("Pool[" + poolName + "] " + policy.toString() + " is full");
+        }
+        try {
+            executorService.execute(() -> {
+                virtualActive.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    virtualActive.decrementAndGet();
+                    virtualCompleted.increment();
+                    virtualPermits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            virtualPermits.release();
+            rejected.increment();
+            throw e;
+        }
+    }
+
+    public HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        if (isVirtual()) {
+            long inProgress = (long) policy.maxSize + Math.max(0, policy.queueSize) - virtualPermits.availablePermits();
+            snapshot.put(CST_EXECUTOR_VIRTUALTHREADS, 1L);
+            snapshot.put(CST_EXECUTOR_MAXSIZE, (long) policy.maxSize);
+            snapshot.put(CST_EXECUTOR_POOLSIZE, inProgress);
+            snapshot.put(CST_EXECUTOR_ACTIVE, (long) virtualActive.get());
+            snapshot.put(CST_EXECUTOR_QUEUED, Math.max(0, inProgress - virtualActive.get()));
+            snapshot.put(CST_EXECUTOR_QUEUECAPACITY, (long) policy.queueSize);
+            snapshot.put(CST_EXECUTOR_COMPLETED, virtualCompleted.sum());
+            snapshot.put(CST_EXECUTOR_REJECTED, rejected.sum());
+            return snapshot;
+        }
+        snapshot.put(CST_EXECUTOR_VIRTUALTHREADS, 0L);
+        snapshot.put(CST_EXECUTOR_CORESIZE, (long) threadPool.getCorePoolSize());
+        snapshot.put(CST_EXECUTOR_MAXSIZE, (long) threadPool.getMaximumPoolSize());
+        snapshot.put(CST_EXECUTOR_POOLSIZE, (long) threadPool.getPoolSize());
+        snapshot.put(CST_EXECUTOR_LARGESTPOOLSIZE, (long) threadPool.getLargestPoolSize());
+        snapshot.put(CST_EXECUTOR_ACTIVE, (long) threadPool.getActiveCount());
+        snapshot.put(CST_EXECUTOR_QUEUED, (long) threadPool.getQueue().size());
+        snapshot.put(CST_EXECUTOR_QUEUECAPACITY, (long) policy.queueSize);
+        snapshot.put(CST_EXECUTOR_COMPLETED, threadPool.getCompletedTaskCount());
+        snapshot.put(CST_EXECUTOR_REJECTED, rejected.sum());
+        return snapshot;
+    }
+}
@@ -0,0 +1,290 @@
+package org.bonitasoft.command;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteAnswer;
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.log.event.BEvent;
+import org.bonitasoft.log.event.BEvent.Level;
+
+/**
+ * Split a list of items (process ids, case ids...) across a bounded ForkJoinPool, instead of a loop in executeCommandApiAccessor().
+ * The list is split in batches. Each worker attaches its own BonitaCommandContext (same call, APIAccessor of the tenant) while it processes a batch.
+ * An item in error does not stop the others: the error is collected as an event. Results are returned in the order of the items.
+ * Use it from a BonitaCommandApiAccessor via fanOut(). There is one pool per command, shut down when the command is undeployed.
+ */
+public class BonitaCommandFanOut {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandFanOut.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandFanOut:";
+
+    private final static BEvent eventItemFailed = new BEvent(BonitaCommandFanOut.class.getName(), 1, Level.APPLICATIONERROR,
+            "Item failed", "The processing of an item failed", "No result for this item, the other items are processed", "Check the exception");
+
+    private final static BEvent eventTooManyErrors = new BEvent(BonitaCommandFanOut.class.getName(), 2, Level.APPLICATIONERROR,
+            "Too many errors", "Too many items failed, only the first errors are reported", "No result for these items", "Check the first errors");
+
+    private final static BEvent eventDeadlineExceeded = new BEvent(BonitaCommandFanOut.class.getName(), 3, Level.APPLICATIONERROR,
+            "Deadline exceeded", "The deadline of the call is passed: remaining items are not processed", "No result for these items", "Give more time to the call, or less items");
+
+    private final static BEvent eventCancelled = new BEvent(BonitaCommandFanOut.class.getName(), 4, Level.APPLICATIONERROR,
+            "Cancelled", "The call was cancelled (interrupted, typically by its timeout): remaining items are not processed", "No result for these items", "Give more time to the call, or less items");
+
+    public final static String CST_RESULT_NBITEMS = "nbitems";
+    public final static String CST_RESULT_NBERRORS = "nberrors";
+    public final static String CST_RESULT_NBSKIPPED = "nbskipped";
+
+    /**
+     * maximum number of errors reported as events. After, one event gives the number of errors
+     */
+    private final static int CST_MAX_ERROR_EVENTS = 100;
+
+    /**
+     * process one item. Called in a worker of the pool: the context is the context of the call, with an APIAccessor usable in this thread.
+     */
+    @FunctionalInterface
+    public interface ItemProcessor<T, R> {
+
+        R process(T item, BonitaCommandContext context) throws Exception;
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Pools */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private final static Map<String, ForkJoinPool> allPools = new ConcurrentHashMap<>();
+
+    /**
+     * @param commandName pool of this command
+     * @param parallelism used only when the pool is created
+     */
+    public static ForkJoinPool getPool(String commandName, int parallelism) {
+        ForkJoinPool pool = allPools.get(commandName);
+        if (pool != null && !pool.isShutdown())
+            return pool;
+        return allPools.compute(commandName, (k, existing) -> existing != null && !existing.isShutdown() ? existing : createPool(commandName, parallelism));
+    }
+
+    private static ForkJoinPool createPool(String commandName, int parallelism) {
+        // workers load the classes of the command: keep the class loader of the command
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        logger.info(LOGGER_LABEL + " Create pool[" + commandName + "] parallelism[" + parallelism + "]");
+        return new ForkJoinPool(Math.max(1, parallelism), pool -> {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {};
+            thread.setName("BonitaCommandFanOut-" + commandName + "-" + threadCounter.incrementAndGet());
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * the command is undeployed: stop its pool
+     */
+    public static void shutdown(String commandName, long timeoutMs) {
+        ForkJoinPool pool = allPools.remove(commandName);
+        if (pool == null)
+            return;
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS))
+                pool.shutdownNow();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Execution */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * result of a fan out: one result per item (null for an item in error or skipped), and the events
+     */
+    public static class Result<R> {
+
+        public final List<R> results;
+        public final List<BEvent> listEvents;
+        public final int nbErrors;
+        public final int nbSkipped;
+
+        private Result(List<R> results, List<BEvent> listEvents, int nbErrors, int nbSkipped) {
+            this.results = results;
+            this.listEvents = listEvents;
+            this.nbErrors = nbErrors;
+            this.nbSkipped = nbSkipped;
+        }
+
+        /**
+         * copy the results in the answer, under the key, with the counters and the events
+         */
+        public void mergeInto(ExecuteAnswer executeAnswer, String key) {
+            executeAnswer.result.put(key, new ArrayList<>(results));
+            executeAnswer.result.put(CST_RESULT_NBITEMS, results.size());
+            executeAnswer.result.put(CST_RESULT_NBERRORS, nbErrors);
+            executeAnswer.result.put(CST_RESULT_NBSKIPPED, nbSkipped);
+            executeAnswer.listEvents.addAll(listEvents);
+        }
+    }
+
+    /**
+     * process all items in the pool, and wait for the end.
+     * If the calling thread is interrupted (the call timed out and its worker is cancelled), the remaining items are not processed, and the method
+     * returns immediately with the results done so far. An item already in progress finishes in its worker, its result is not returned.
+     *
+     * @param pool see getPool()
+     * @param items items to process
+     * @param batchSize number of items processed by a worker in one task
+     * @param context context of the call
+     * @param apiAccessorMaxAgeMs see BonitaCommandApiAccessor.getApiAccessorMaxAgeMs()
+     * @param processor work on one item
+     */
+    public static <T, R> Result<R> execute(ForkJoinPool pool, List<T> items, int batchSize, BonitaCommandContext context, long apiAccessorMaxAgeMs,
+            ItemProcessor<T, R> processor) {
+        FanOutExecution<T, R> execution = new FanOutExecution<>(items, Math.max(1, batchSize), context, apiAccessorMaxAgeMs, processor);
+        // invoke() ignores the interrupts: submit, then wait with get()
+        ForkJoinTask<Void> task = pool.submit(new FanOutTask<>(execution, 0, items.size()));
+        boolean cancelled = false;
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            // the workers check the flag before each item
+            execution.cancelled = true;
+            cancelled = true;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+
+        List<BEvent> listEvents = new ArrayList<>(execution.listEvents);
+        int nbErrors = execution.nbErrors.get();
+        if (nbErrors > CST_MAX_ERROR_EVENTS)
+            listEvents.add(new BEvent(eventTooManyErrors, "Errors[" + nbErrors + "] reported[" + CST_MAX_ERROR_EVENTS + "]"));
+        // cancelled: the workers may still write, return a copy
+        List<R> results = Arrays.asList(cancelled ? Arrays.copyOf(execution.results, execution.results.length) : execution.results);
+        int nbSkipped;
+        if (cancelled) {
+            nbSkipped = items.size() - execution.nbDone.get();
+            listEvents.add(new BEvent(eventCancelled, "Verb[" + context.getVerb() + "] items not processed[" + nbSkipped + "]"));
+        } else {
+            nbSkipped = execution.nbSkipped.get();
+            if (nbSkipped > 0)
+                listEvents.add(new BEvent(eventDeadlineExceeded, "Verb[" + context.getVerb() + "] Deadline[" + context.getDeadline() + "] items not processed[" + nbSkipped + "]"));
+        }
+        return new Result<>(Collections.unmodifiableList(results), listEvents, nbErrors, nbSkipped);
+    }
+
+    /**
+     * state shared by the tasks of one fan out
+     */
+    private static class FanOutExecution<T, R> {
+
+        private final List<T> items;
+        private final int batchSize;
+        private final BonitaCommandContext context;
+        private final long apiAccessorMaxAgeMs;
+        private final ItemProcessor<T, R> processor;
+        private final R[] results;
+        private final List<BEvent> listEvents = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger nbErrors = new AtomicInteger();
+        private final AtomicInteger nbSkipped = new AtomicInteger();
+        /**
+         * items processed, in success or in error
+         */
+        private final AtomicInteger nbDone = new AtomicInteger();
+        /**
+         * the caller does not wait anymore: no new item is started
+         */
+        private volatile boolean cancelled = false;
+
+        @SuppressWarnings("unchecked")
+        private FanOutExecution(List<T> items, int batchSize, BonitaCommandContext context, long apiAccessorMaxAgeMs, ItemProcessor<T, R> processor) {
+            this.items = items;
+            this.batchSize = batchSize;
+            this.context = context;
+            this.apiAccessorMaxAgeMs = apiAccessorMaxAgeMs;
+            this.processor = processor;
+            this.results = (R[]) new Object[items.size()];
+        }
+
+        private boolean isStopped() {
+            return cancelled || context.isDeadlineExpired();
+        }
+
+        private void processBatch(int from, int to) {
+            if (isStopped()) {
+                nbSkipped.addAndGet(to - from);
+                return;
+            }
+            // one context per worker: an APIAccessor usable in this thread
+            APIAccessor apiAccessor = BonitaCommandApiAccessorCache.getApiAccessor(context.getTenantId(), apiAccessorMaxAgeMs);
+            BonitaCommandContext workerContext = context.withApiAccessor(apiAccessor);
+            BonitaCommandContext previousContext = BonitaCommandContext.attach(workerContext);
+            try {
+                for (int i = from; i < to; i++) {
+                    if (isStopped()) {
+                        nbSkipped.addAndGet(to - i);
+                        return;
+                    }
+                    T item = items.get(i);
+                    try {
+                        results[i] = processor.process(item, workerContext);
+                    } catch (Exception e) {
+                        BonitaCommandApiAccessorCache.invalidateOnException(context.getTenantId(), e);
+                        if (nbErrors.incrementAndGet() <= CST_MAX_ERROR_EVENTS)
+                            listEvents.add(new BEvent(eventItemFailed, e, "Verb[" + context.getVerb() + "] Item[" + item + "]"));
+                    }
+                    nbDone.incrementAndGet();
+                }
+            } finally {
+                BonitaCommandContext.restore(previousContext);
+            }
+        }
+    }
+
+    private static class FanOutTask<T, R> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final transient FanOutExecution<T, R> execution;
+        private final int from;
+        private final int to;
+
+        private FanOutTask(FanOutExecution<T, R> execution, int from, int to) {
+            this.execution = execution;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= execution.batchSize) {
+                execution.processBatch(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new FanOutTask<>(execution, from, middle), new FanOutTask<>(execution, middle, to));
+        }
+    }
+}
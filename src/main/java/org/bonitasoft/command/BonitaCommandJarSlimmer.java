@@ -0,0 +1,304 @@
+package org.bonitasoft.command;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Slim a dependency JAR before its upload, when BonitaCommandDescription.slimDependencyExcludes is set: the excluded entries (sources,
+ * META-INF/maven...) and the duplicate entries are removed, and the JAR is recompressed. The dependency is smaller in the engine database,
+ * faster to upload and to load in the tenant classloader.
+ * An exclude is:
+ * - "META-INF/maven/": an entry ending by / is a directory, all its entries are excluded
+ * - "*.java": an entry starting by * is a suffix
+ * - else, the complete name of the entry
+ * The result is cached on the disk, by the hash of the JAR and of the excludes: the same JAR is slimmed one time.
+ * The cached JAR is uploaded in the engine: the cache directory is readable by its owner only, and the SHA-256 of each entry is kept beside it
+ * and checked on each read. An entry which does not match is slimmed again. The cache is bounded by a size and an age, the oldest entries are
+ * removed first.
+ * The order and the time of the entries are kept, so the same JAR gives the same bytes (and the same content addressed name).
+ */
+public class BonitaCommandJarSlimmer {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandJarSlimmer.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandJarSlimmer:";
+
+    public final static String[] CST_DEFAULT_EXCLUDES = { "META-INF/maven/", "*.java", "*.kt", "*.groovy" };
+
+    private final static String CST_SUFFIX_JAR = ".jar";
+    private final static String CST_SUFFIX_DIGEST = ".sha256";
+
+    /**
+     * under the Bonita home if the JVM gives it, else under the home of the user. Never in the shared temporary directory
+     */
+    private static File cacheDirectory = System.getProperty("bonita.home") != null ? new File(System.getProperty("bonita.home"), "bonitacommand-slim")
+            : new File(System.getProperty("user.home"), ".bonitacommand-slim");
+
+    private static long cacheMaxBytes = 256L * 1024 * 1024;
+    private static long cacheMaxAgeMs = 30L * 24 * 3600 * 1000;
+
+    /**
+     * directory of the cache. Null to disable it. The directory is created readable by its owner only; an existing directory open to other
+     * users is not used.
+     */
+    public static void setCacheDirectory(File directory) {
+        cacheDirectory = directory;
+    }
+
+    public static File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * limits of the cache: after a write, the entries older than maxAgeMs are removed, then the oldest until the cache is under maxBytes
+     */
+    public static void setCacheLimits(long maxBytes, long maxAgeMs) {
+        cacheMaxBytes = maxBytes;
+        cacheMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * return the slimmed JAR, or the content itself if the slimmed JAR is not smaller
+     *
+     * @throws IOException the content is not a zip starting with an entry: nothing can be slimmed, keep the content
+     */
+    public static byte[] slim(byte[] content, String[] excludes) throws IOException {
+        File directory = cacheDirectory;
+        File cacheFile = null;
+        File digestFile = null;
+        if (directory != null && checkCacheDirectory(directory)) {
+            String cacheKey = getCacheKey(content, excludes);
+            cacheFile = new File(directory, cacheKey + CST_SUFFIX_JAR);
+            digestFile = new File(directory, cacheKey + CST_SUFFIX_DIGEST);
+            byte[] cacheContent = readCache(cacheFile, digestFile);
+            if (cacheContent != null)
+                return cacheContent;
+        }
+
+        long startTime = System.currentTimeMillis();
+        byte[] slimContent = recompress(content, excludes);
+        if (slimContent.length >= content.length)
+            slimContent = content;
+        logger.fine(LOGGER_LABEL + " Slim " + content.length + " -> " + slimContent.length + " bytes in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        if (cacheFile != null) {
+            try {
+                // the JAR, then its digest: a reader finds the digest only when the JAR is complete
+                writeCache(directory, cacheFile, slimContent);
+                writeCache(directory, digestFile, getDigest(slimContent).getBytes(StandardCharsets.UTF_8));
+                purgeCache(directory);
+            } catch (IOException e) {
+                // the cache is an optimisation
+                logger.info(LOGGER_LABEL + " Can't write cache[" + cacheFile.getAbsolutePath() + "] " + e.getMessage());
+            }
+        }
+        return slimContent;
+    }
+
+    public static boolean isExcluded(String entryName, String[] excludes) {
+        for (String exclude : excludes) {
+            if (exclude.endsWith("/") ? entryName.startsWith(exclude)
+                    : exclude.startsWith("*") ? entryName.endsWith(exclude.substring(1))
+                            : entryName.equals(exclude))
+                return true;
+        }
+        return false;
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Toolbox */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static byte[] recompress(byte[] content, String[] excludes) throws IOException {
+        ByteArrayOutputStream slimContent = new ByteArrayOutputStream(content.length);
+        Set<String> entryNames = new HashSet<>();
+        byte[] buffer = new byte[64 * 1024];
+        ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(content));
+        ZipOutputStream output = new ZipOutputStream(slimContent);
+        try {
+            output.setLevel(Deflater.BEST_COMPRESSION);
+            ZipEntry entry;
+            int nbEntries = 0;
+            while ((entry = input.getNextEntry()) != null) {
+                nbEntries++;
+                // a duplicate entry is never read by the classloader
+                if (isExcluded(entry.getName(), excludes) || !entryNames.add(entry.getName()))
+                    continue;
+                ZipEntry slimEntry = new ZipEntry(entry.getName());
+                slimEntry.setTime(entry.getTime());
+                output.putNextEntry(slimEntry);
+                int nbRead;
+                while ((nbRead = input.read(buffer)) > 0)
+                    output.write(buffer, 0, nbRead);
+                output.closeEntry();
+            }
+            // ZipInputStream stops without error at the first bytes which are not an entry: a file which is not a zip, or a JAR after a stub
+            if (nbEntries == 0)
+                throw new IOException("Not a zip, or not starting with an entry (" + content.length + " bytes)");
+            output.finish();
+        } finally {
+            input.close();
+            output.close();
+        }
+        return slimContent.toByteArray();
+    }
+
+    /**
+     * create the directory for the owner only. Return false if the directory can't be trusted: the cache is not used
+     */
+    private static boolean checkCacheDirectory(File directory) {
+        Path path = directory.toPath();
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (!directory.exists()) {
+                if (posix)
+                    Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                else {
+                    Files.createDirectories(path);
+                    directory.setReadable(false, false);
+                    directory.setWritable(false, false);
+                    directory.setExecutable(false, false);
+                    directory.setReadable(true, true);
+                    directory.setWritable(true, true);
+                    directory.setExecutable(true, true);
+                }
+            }
+            if (!posix)
+                return true;
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+            if (!Files.getOwner(path).getName().equals(System.getProperty("user.name"))
+                    || permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)
+                    || permissions.contains(PosixFilePermission.GROUP_READ) || permissions.contains(PosixFilePermission.OTHERS_READ)) {
+                logger.severe(LOGGER_LABEL + " Cache[" + directory.getAbsolutePath() + "] is not owned by the user, or is open to other users: cache not used");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            logger.info(LOGGER_LABEL + " Can't create cache[" + directory.getAbsolutePath() + "] " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * return the cached JAR if its digest matches, else null. An entry which does not match is removed
+     */
+    private static byte[] readCache(File cacheFile, File digestFile) throws IOException {
+        if (!cacheFile.exists() || !digestFile.exists())
+            return null;
+        try {
+            byte[] cacheContent = Files.readAllBytes(cacheFile.toPath());
+            String digest = new String(Files.readAllBytes(digestFile.toPath()), StandardCharsets.UTF_8).trim();
+            if (digest.equals(getDigest(cacheContent))) {
+                // the most recently used entries are kept by the purge
+                cacheFile.setLastModified(System.currentTimeMillis());
+                return cacheContent;
+            }
+            logger.severe(LOGGER_LABEL + " Cache[" + cacheFile.getAbsolutePath() + "] does not match its digest: removed, slim again");
+        } catch (IOException e) {
+            logger.info(LOGGER_LABEL + " Can't read cache[" + cacheFile.getAbsolutePath() + "] " + e.getMessage());
+        }
+        Files.deleteIfExists(cacheFile.toPath());
+        Files.deleteIfExists(digestFile.toPath());
+        return null;
+    }
+
+    /**
+     * write then move: an other deployment reading the cache never sees a partial file
+     */
+    private static void writeCache(File directory, File file, byte[] content) throws IOException {
+        File tmpFile = File.createTempFile("slim", ".tmp", directory);
+        try {
+            Files.write(tmpFile.toPath(), content);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+
+    /**
+     * remove the entries over the age, then the oldest entries over the size. The temporary files left by a crash go with the age
+     */
+    private static void purgeCache(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        long limitTime = System.currentTimeMillis() - cacheMaxAgeMs;
+        List<File> listJars = new ArrayList<>();
+        long totalBytes = 0;
+        for (File file : files) {
+            if (file.lastModified() < limitTime) {
+                removeCacheFile(file);
+            } else if (file.getName().endsWith(CST_SUFFIX_JAR)) {
+                listJars.add(file);
+                totalBytes += file.length();
+            }
+        }
+        if (totalBytes <= cacheMaxBytes)
+            return;
+        Collections.sort(listJars, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+        for (File file : listJars) {
+            if (totalBytes <= cacheMaxBytes)
+                break;
+            totalBytes -= file.length();
+            removeCacheFile(file);
+        }
+    }
+
+    /**
+     * remove a file of the cache, and the digest of a JAR
+     */
+    private static void removeCacheFile(File file) {
+        file.delete();
+        if (file.getName().endsWith(CST_SUFFIX_JAR))
+            new File(file.getParentFile(), file.getName().substring(0, file.getName().length() - CST_SUFFIX_JAR.length()) + CST_SUFFIX_DIGEST).delete();
+    }
+
+    private static String getCacheKey(byte[] content, String[] excludes) throws IOException {
+        MessageDigest digest = getMessageDigest();
+        digest.update(content);
+        for (String exclude : excludes)
+            digest.update((exclude + "\n").getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    private static String getDigest(byte[] content) throws IOException {
+        return toHex(getMessageDigest().digest(content));
+    }
+
+    private static MessageDigest getMessageDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash)
+            hex.append(Integer.toString((b & 0xff) + 0x100, 16).substring(1));
+        return hex.toString();
+    }
+}
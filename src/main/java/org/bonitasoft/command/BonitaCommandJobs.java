@@ -0,0 +1,277 @@
+package org.bonitasoft.command;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteAnswer;
+import org.bonitasoft.log.event.BEvent;
+import org.bonitasoft.log.event.BEventFactory;
+
+/**
+ * Registry of the asynchronous calls of a command (BonitaCommandApiAccessor with waitAnswer() == false, or a call with the parameter CST_ASYNC).
+ * The call returns immediately a job id. The built-in verbs JOBSTATUS, JOBRESULT and JOBCANCEL query or stop the job.
+ * A running job stays in the registry. A completed job (result, events) is kept for a retention time, and the registry keeps a maximum of completed
+ * jobs: the oldest completed is evicted first.
+ */
+public class BonitaCommandJobs {
+
+    public final static String CST_JOB_STATUS_PENDING = "PENDING";
+    public final static String CST_JOB_STATUS_RUNNING = "RUNNING";
+    public final static String CST_JOB_STATUS_DONE = "DONE";
+    public final static String CST_JOB_STATUS_FAILED = "FAILED";
+    public final static String CST_JOB_STATUS_CANCELLED = "CANCELLED";
+
+    public final static String CST_JOBS_RUNNING = "running";
+    public final static String CST_JOBS_COMPLETED = "completed";
+    public final static String CST_JOBS_SUBMITTED = "submitted";
+    public final static String CST_JOBS_CANCELLED = "cancelled";
+    public final static String CST_JOBS_EVICTIONS = "evictions";
+
+    private final static Map<String, BonitaCommandJobs> allJobs = new ConcurrentHashMap<>();
+
+    /**
+     * return the registry of a command
+     *
+     * @param commandName name of the command
+     * @param maxCompletedJobs used only when the registry is created
+     * @param retentionMs used only when the registry is created
+     */
+    public static BonitaCommandJobs getInstance(String commandName, int maxCompletedJobs, long retentionMs) {
+        BonitaCommandJobs jobs = allJobs.get(commandName);
+        if (jobs != null)
+            return jobs;
+        return allJobs.computeIfAbsent(commandName, k -> new BonitaCommandJobs(maxCompletedJobs, retentionMs));
+    }
+
+    /**
+     * one asynchronous call
+     */
+    public static class Job {
+
+        private final String jobId;
+        private final String verb;
+        private final long tenantId;
+        private final long submitTime = System.currentTimeMillis();
+        private volatile long startTime;
+        private volatile long endTime;
+        private volatile String status = CST_JOB_STATUS_PENDING;
+        private volatile Future<?> future;
+        private volatile ExecuteAnswer executeAnswer;
+
+        private Job(String verb, long tenantId) {
+            this.jobId = UUID.randomUUID().toString();
+            this.verb = verb;
+            this.tenantId = tenantId;
+        }
+
+        public String getJobId() {
+            return jobId;
+        }
+
+        public String getVerb() {
+            return verb;
+        }
+
+        public long getTenantId() {
+            return tenantId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isCompleted() {
+            return endTime != 0;
+        }
+
+        /**
+         * @return the answer of the call, null if the job is not completed
+         */
+        public ExecuteAnswer getExecuteAnswer() {
+            return executeAnswer;
+        }
+
+        /**
+         * status of the job, serializable
+         */
+        public HashMap<String, Object> getDescription() {
+            HashMap<String, Object> description = new HashMap<>();
+            description.put(BonitaCommand.CST_JOBID, jobId);
+            description.put(BonitaCommand.CST_VERB, verb);
+            description.put(BonitaCommand.CST_TENANTID, tenantId);
+            description.put(BonitaCommand.CST_RESULT_JOBSTATUS, status);
+            description.put("submittime", submitTime);
+            if (startTime != 0)
+                description.put("starttime", startTime);
+            if (endTime != 0)
+                description.put("endtime", endTime);
+            return description;
+        }
+    }
+
+    private final int maxCompletedJobs;
+    private final long retentionMs;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    /**
+     * completed jobs, in the order of completion: the eldest is evicted first
+     */
+    private final LinkedHashMap<String, Job> completedJobs = new LinkedHashMap<>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private BonitaCommandJobs(int maxCompletedJobs, long retentionMs) {
+        this.maxCompletedJobs = maxCompletedJobs;
+        this.retentionMs = retentionMs;
+    }
+
+    /**
+     * register a new job. Give the future with setFuture(), when the work is submitted
+     */
+    public Job register(String verb, long tenantId) {
+        purge();
+        Job job = new Job(verb, tenantId);
+        jobs.put(job.jobId, job);
+        submitted.increment();
+        return job;
+    }
+
+    public void setFuture(Job job, Future<?> future) {
+        job.future = future;
+    }
+
+    /**
+     * the work could not be submitted (pool full): forget the job
+     */
+    public void unregister(Job job) {
+        jobs.remove(job.jobId);
+    }
+
+    /**
+     * The status changes under the lock of the job: a cancel and the end of the work may arrive at the same time.
+     */
+    public void setRunning(Job job) {
+        synchronized (job) {
+            job.startTime = System.currentTimeMillis();
+            if (CST_JOB_STATUS_PENDING.equals(job.status))
+                job.status = CST_JOB_STATUS_RUNNING;
+        }
+    }
+
+    /**
+     * the job is finished
+     *
+     * @param executeAnswer answer of the call, null if the call failed with an exception. Ignored if the job was cancelled
+     */
+    public void setCompleted(Job job, ExecuteAnswer executeAnswer) {
+        synchronized (job) {
+            // a cancelled job has no result, even if the work ended after the cancel
+            if (!CST_JOB_STATUS_CANCELLED.equals(job.status)) {
+                job.executeAnswer = executeAnswer;
+                job.status = executeAnswer == null || BEventFactory.isError(executeAnswer.listEvents) ? CST_JOB_STATUS_FAILED : CST_JOB_STATUS_DONE;
+            }
+        }
+        markCompleted(job);
+    }
+
+    /**
+     * cancel the job: a pending job never starts, a running job is interrupted
+     *
+     * @return false if the job is already completed or cancelled
+     */
+    public boolean cancel(Job job) {
+        synchronized (job) {
+            if (!CST_JOB_STATUS_PENDING.equals(job.status) && !CST_JOB_STATUS_RUNNING.equals(job.status))
+                return false;
+            job.status = CST_JOB_STATUS_CANCELLED;
+        }
+        cancelled.increment();
+        Future<?> future = job.future;
+        if (future != null)
+            future.cancel(true);
+        markCompleted(job);
+        return true;
+    }
+
+    /**
+     * @param tenantId tenant of the caller: a job of another tenant is never returned
+     * @return the job, null if it does not exist (never submitted, evicted, or submitted on another tenant)
+     */
+    public Job getJob(String jobId, long tenantId) {
+        purge();
+        Job job = jobId == null ? null : jobs.get(jobId);
+        return job == null || job.tenantId != tenantId ? null : job;
+    }
+
+    /**
+     * @param tenantId null for all tenants
+     */
+    public List<Map<String, Object>> getListJobs(Long tenantId) {
+        purge();
+        List<Map<String, Object>> listJobs = new ArrayList<>();
+        for (Job job : jobs.values())
+            if (tenantId == null || tenantId == job.tenantId)
+                listJobs.add(job.getDescription());
+        return listJobs;
+    }
+
+    private void markCompleted(Job job) {
+        synchronized (completedJobs) {
+            if (job.endTime == 0)
+                job.endTime = System.currentTimeMillis();
+            completedJobs.put(job.jobId, job);
+        }
+        purge();
+    }
+
+    /**
+     * evict the completed jobs over the retention time, then the oldest completed jobs over the maximum
+     */
+    private void purge() {
+        long limitTime = System.currentTimeMillis() - retentionMs;
+        synchronized (completedJobs) {
+            Iterator<Job> iterator = completedJobs.values().iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (completedJobs.size() <= maxCompletedJobs && job.endTime >= limitTime)
+                    break;
+                iterator.remove();
+                jobs.remove(job.jobId);
+                evictions.increment();
+            }
+        }
+    }
+
+    public HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        synchronized (completedJobs) {
+            snapshot.put(CST_JOBS_COMPLETED, (long) completedJobs.size());
+            snapshot.put(CST_JOBS_RUNNING, (long) (jobs.size() - completedJobs.size()));
+        }
+        snapshot.put(CST_JOBS_SUBMITTED, submitted.sum());
+        snapshot.put(CST_JOBS_CANCELLED, cancelled.sum());
+        snapshot.put(CST_JOBS_EVICTIONS, evictions.sum());
+        return snapshot;
+    }
+
+    /**
+     * copy the answer of a completed job in an answer
+     */
+    public static void copyAnswer(Job job, ExecuteAnswer executeAnswer) {
+        ExecuteAnswer jobAnswer = job.executeAnswer;
+        if (jobAnswer == null)
+            return;
+        executeAnswer.result.putAll(jobAnswer.result);
+        if (jobAnswer.resultSerializable != null)
+            executeAnswer.result.put(BonitaCommand.CST_RESULT_JOBRESULT, jobAnswer.resultSerializable);
+        executeAnswer.listEvents.addAll(new ArrayList<BEvent>(jobAnswer.listEvents));
+    }
+}
@@ -0,0 +1,255 @@
+package org.bonitasoft.command;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Latency metrics, per command and per verb.
+ * One object per side (client: BonitaCommandDeployment.callCommand, server: BonitaCommand) and per command. Each object keeps one histogram per metric name
+ * (the verb, or the verb with a suffix, like the queue wait time in BonitaCommandApiAccessor).
+ * Recording is lock free: a histogram is an array of counters, bucketed on a logarithmic scale (precision around 6%).
+ * Metrics are readable via the METRICS verb, and via JMX (domain org.bonitasoft.command).
+ */
+public class BonitaCommandMetrics implements BonitaCommandMetricsMXBean {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandMetrics.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandMetrics:";
+
+    public final static String CST_SIDE_CLIENT = "client";
+    public final static String CST_SIDE_SERVER = "server";
+
+    /**
+     * suffix for the time spent by a BonitaCommandApiAccessor call in the executor queue
+     */
+    public final static String CST_SUFFIX_QUEUE = ".queue";
+    /**
+     * suffix for the time spent by a BonitaCommandApiAccessor call to run in the thread
+     */
+    public final static String CST_SUFFIX_RUN = ".run";
+    /**
+     * suffix for the BonitaCommandApiAccessor calls where the caller stopped waiting (timeout), measured on the wait time
+     */
+    public final static String CST_SUFFIX_TIMEOUT = ".timeout";
+    /**
+     * suffix for the BonitaCommandApiAccessor calls finished after the caller stopped waiting, measured on the run time
+     */
+    public final static String CST_SUFFIX_LATE = ".late";
+    /**
+     * prefix for the time spent in the executor queue, per lane: "lane.interactive.queue"
+     */
+    public final static String CST_PREFIX_LANE = "lane.";
+
+    public final static String CST_METRIC_COUNT = "count";
+    public final static String CST_METRIC_ERRORS = "errors";
+    public final static String CST_METRIC_MEANUS = "meanus";
+    public final static String CST_METRIC_P50US = "p50us";
+    public final static String CST_METRIC_P95US = "p95us";
+    public final static String CST_METRIC_P99US = "p99us";
+    public final static String CST_METRIC_MAXUS = "maxus";
+
+    private final static Map<String, BonitaCommandMetrics> allMetrics = new ConcurrentHashMap<>();
+
+    /**
+     * return the metrics for a command, on one side. Object is created (and registered in JMX) the first time.
+     *
+     * @param side CST_SIDE_CLIENT or CST_SIDE_SERVER
+     * @param commandName name of the command
+     * @return
+     */
+    public static BonitaCommandMetrics getInstance(String side, String commandName) {
+        String key = side + "~" + commandName;
+        BonitaCommandMetrics metrics = allMetrics.get(key);
+        if (metrics != null)
+            return metrics;
+        return allMetrics.computeIfAbsent(key, k -> {
+            BonitaCommandMetrics newMetrics = new BonitaCommandMetrics(side, commandName);
+            newMetrics.registerJmx();
+            return newMetrics;
+        });
+    }
+
+    /**
+     * the command is undeployed: forget its metrics and unregister the MBean, which would keep the command classloader
+     */
+    public static void release(String side, String commandName) {
+        BonitaCommandMetrics metrics = allMetrics.remove(side + "~" + commandName);
+        if (metrics != null)
+            metrics.unregisterJmx();
+    }
+
+    private final String side;
+    private final String commandName;
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private BonitaCommandMetrics(String side, String commandName) {
+        this.side = side;
+        this.commandName = commandName;
+    }
+
+    public String getSide() {
+        return side;
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /**
+     * record one call
+     *
+     * @param name verb (and suffix)
+     * @param durationNanos duration, from System.nanoTime()
+     * @param error true if the call failed
+     */
+    public void record(String name, long durationNanos, boolean error) {
+        String key = name == null ? "null" : name;
+        Histogram histogram = histograms.get(key);
+        if (histogram == null)
+            histogram = histograms.computeIfAbsent(key, k -> new Histogram());
+        histogram.record(durationNanos / 1000, error);
+    }
+
+    /**
+     * Serializable snapshot, returned by the METRICS verb
+     */
+    @Override
+    public Map<String, Map<String, Long>> getMetrics() {
+        HashMap<String, Map<String, Long>> snapshot = new HashMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().getSnapshot());
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        histograms.clear();
+    }
+
+    private void registerJmx() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName();
+            // the library may be reloaded (new deployment): replace the previous one
+            if (mbeanServer.isRegistered(objectName))
+                mbeanServer.unregisterMBean(objectName);
+            mbeanServer.registerMBean(this, objectName);
+        } catch (Exception e) {
+            logger.warning(LOGGER_LABEL + " Can't register JMX metrics for command[" + commandName + "] side[" + side + "] : " + e.toString());
+        }
+    }
+
+    private void unregisterJmx() {
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName();
+            if (mbeanServer.isRegistered(objectName))
+                mbeanServer.unregisterMBean(objectName);
+        } catch (Exception e) {
+            logger.warning(LOGGER_LABEL + " Can't unregister JMX metrics for command[" + commandName + "] side[" + side + "] : " + e.toString());
+        }
+    }
+
+    private ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("org.bonitasoft.command:type=Metrics,side=" + side + ",command=" + ObjectName.quote(String.valueOf(commandName)));
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Histogram */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    /**
+     * Logarithmic histogram. Values under 16 have their own bucket, then each power of 2 is split in 16 buckets.
+     * Values are in microseconds, and capped at 2^40 us (12 days).
+     */
+    public static class Histogram {
+
+        private final static int SUB_BITS = 4;
+        private final static int SUB_COUNT = 1 << SUB_BITS;
+        private final static int MAX_EXPONENT = 40;
+        private final static int NB_BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(NB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long valueUs, boolean error) {
+            long value = Math.min(Math.max(valueUs, 0), (1L << MAX_EXPONENT) - 1);
+            buckets.incrementAndGet(getBucketIndex(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+            if (error)
+                errors.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @param percentile between 0 and 1
+         * @return the upper bound of the bucket containing the percentile
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            long[] counts = new long[NB_BUCKETS];
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long target = (long) Math.ceil(percentile * total);
+            long cumulative = 0;
+            for (int i = 0; i < NB_BUCKETS; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target && counts[i] > 0)
+                    return Math.min(getBucketUpperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        public Map<String, Long> getSnapshot() {
+            HashMap<String, Long> snapshot = new HashMap<>();
+            long nbCalls = count.sum();
+            snapshot.put(CST_METRIC_COUNT, nbCalls);
+            snapshot.put(CST_METRIC_ERRORS, errors.sum());
+            snapshot.put(CST_METRIC_MEANUS, nbCalls == 0 ? 0 : sum.sum() / nbCalls);
+            snapshot.put(CST_METRIC_P50US, getPercentile(0.50));
+            snapshot.put(CST_METRIC_P95US, getPercentile(0.95));
+            snapshot.put(CST_METRIC_P99US, getPercentile(0.99));
+            snapshot.put(CST_METRIC_MAXUS, max.get());
+            return snapshot;
+        }
+
+        static int getBucketIndex(long value) {
+            if (value < SUB_COUNT)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >> (exponent - SUB_BITS));
+            return (exponent - SUB_BITS) * SUB_COUNT + mantissa;
+        }
+
+        static long getBucketUpperBound(int index) {
+            if (index < SUB_COUNT)
+                return index;
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long mantissa = index % SUB_COUNT + SUB_COUNT;
+            return ((mantissa + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
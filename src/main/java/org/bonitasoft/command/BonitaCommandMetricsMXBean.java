@@ -0,0 +1,16 @@
+package org.bonitasoft.command;
+
+import java.util.Map;
+
+/**
+ * JMX view of the BonitaCommandMetrics. A MXBean, so any JMX console can read it without the library.
+ */
+public interface BonitaCommandMetricsMXBean {
+
+    /**
+     * metric name (verb) -> count, errors, mean, p50, p95, p99, max (time in microseconds)
+     */
+    public Map<String, Map<String, Long>> getMetrics();
+
+    public void reset();
+}
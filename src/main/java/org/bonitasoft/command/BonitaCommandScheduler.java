@@ -0,0 +1,203 @@
+package org.bonitasoft.command;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Run verbs of a command at a fixed rate, per tenant, without a Quartz job calling back through the CommandAPI.
+ * A verb is scheduled with @Verb(scheduleMs = ...) or BonitaCommand.getScheduledVerbs(). The schedule of a tenant starts at the first call of the
+ * command on this tenant (the engine gives the TenantServiceAccessor on a call).
+ * Runs of the same verb on the same tenant never overlap: a run due while the previous one is still running is skipped.
+ * All commands share one framework pool. The schedules of a command are cancelled when the command is undeployed.
+ */
+public class BonitaCommandScheduler {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandScheduler.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandScheduler:";
+
+    public final static String CST_SCHEDULE_VERB = "verb";
+    public final static String CST_SCHEDULE_TENANTID = "tenantId";
+    public final static String CST_SCHEDULE_PERIODMS = "periodms";
+    public final static String CST_SCHEDULE_NBRUNS = "nbruns";
+    public final static String CST_SCHEDULE_NBERRORS = "nberrors";
+    public final static String CST_SCHEDULE_NBSKIPPED = "nbskipped";
+    public final static String CST_SCHEDULE_LASTSTART = "laststart";
+    public final static String CST_SCHEDULE_LASTDURATIONMS = "lastdurationms";
+    public final static String CST_SCHEDULE_LASTSTATUS = "laststatus";
+
+    public final static String CST_STATUS_OK = "OK";
+    public final static String CST_STATUS_ERROR = "ERROR";
+
+    private final static AtomicInteger threadCounter = new AtomicInteger();
+
+    private final static long CST_KEEPALIVE_MS = 60000;
+
+    /**
+     * framework pool, shared by all commands. Threads are created on demand, and stop after CST_KEEPALIVE_MS without work: when the last
+     * schedule is cancelled (commands undeployed), no thread stays alive with the classloader of the command.
+     */
+    private final static ScheduledThreadPoolExecutor schedulerPool;
+    static {
+        schedulerPool = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                r -> {
+                    Thread thread = new Thread(r, "BonitaCommandScheduler-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        schedulerPool.setRemoveOnCancelPolicy(true);
+        schedulerPool.setKeepAliveTime(CST_KEEPALIVE_MS, TimeUnit.MILLISECONDS);
+        schedulerPool.allowCoreThreadTimeOut(true);
+    }
+
+    private final static Map<String, BonitaCommandScheduler> allSchedulers = new ConcurrentHashMap<>();
+
+    public static BonitaCommandScheduler getInstance(String commandName) {
+        BonitaCommandScheduler scheduler = allSchedulers.get(commandName);
+        if (scheduler != null)
+            return scheduler;
+        return allSchedulers.computeIfAbsent(commandName, k -> new BonitaCommandScheduler(commandName));
+    }
+
+    /**
+     * the command is undeployed: cancel all its schedules. A running verb is not interrupted
+     */
+    public static void cancel(String commandName) {
+        BonitaCommandScheduler scheduler = allSchedulers.remove(commandName);
+        if (scheduler == null)
+            return;
+        for (Schedule schedule : scheduler.schedules.values())
+            schedule.future.cancel(false);
+        scheduler.schedules.clear();
+        logger.info(LOGGER_LABEL + " Command[" + commandName + "] schedules cancelled");
+    }
+
+    /**
+     * one verb, on one tenant
+     */
+    private static class Schedule implements Runnable {
+
+        private final String commandName;
+        private final String verb;
+        private final long tenantId;
+        private final long periodMs;
+        /**
+         * execute the verb, return true if the execution is a success
+         */
+        private final Supplier<Boolean> execution;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final LongAdder nbRuns = new LongAdder();
+        private final LongAdder nbErrors = new LongAdder();
+        private final LongAdder nbSkipped = new LongAdder();
+        private volatile long lastStart = 0;
+        private volatile long lastDurationMs = 0;
+        private volatile String lastStatus = null;
+        private ScheduledFuture<?> future;
+
+        private Schedule(String commandName, String verb, long tenantId, long periodMs, Supplier<Boolean> execution) {
+            this.commandName = commandName;
+            this.verb = verb;
+            this.tenantId = tenantId;
+            this.periodMs = periodMs;
+            this.execution = execution;
+        }
+
+        @Override
+        public void run() {
+            if (!running.compareAndSet(false, true)) {
+                nbSkipped.increment();
+                return;
+            }
+            lastStart = System.currentTimeMillis();
+            boolean success = false;
+            try {
+                success = execution.get();
+            } catch (Throwable t) {
+                // an exception must not cancel the next runs
+                logger.severe(LOGGER_LABEL + " Command[" + commandName + "] Verb[" + verb + "] Tenant[" + tenantId + "] " + t.toString());
+            } finally {
+                lastDurationMs = System.currentTimeMillis() - lastStart;
+                lastStatus = success ? CST_STATUS_OK : CST_STATUS_ERROR;
+                nbRuns.increment();
+                if (!success)
+                    nbErrors.increment();
+                running.set(false);
+            }
+        }
+
+        private Map<String, Object> getSnapshot() {
+            HashMap<String, Object> snapshot = new HashMap<>();
+            snapshot.put(CST_SCHEDULE_VERB, verb);
+            snapshot.put(CST_SCHEDULE_TENANTID, tenantId);
+            snapshot.put(CST_SCHEDULE_PERIODMS, periodMs);
+            snapshot.put(CST_SCHEDULE_NBRUNS, nbRuns.sum());
+            snapshot.put(CST_SCHEDULE_NBERRORS, nbErrors.sum());
+            snapshot.put(CST_SCHEDULE_NBSKIPPED, nbSkipped.sum());
+            snapshot.put(CST_SCHEDULE_LASTSTART, lastStart);
+            snapshot.put(CST_SCHEDULE_LASTDURATIONMS, lastDurationMs);
+            snapshot.put(CST_SCHEDULE_LASTSTATUS, lastStatus);
+            return snapshot;
+        }
+    }
+
+    private final String commandName;
+    private final Map<String, Schedule> schedules = new ConcurrentHashMap<>();
+    /**
+     * verb~tenant refused by the command, reported one time
+     */
+    private final Set<String> rejected = ConcurrentHashMap.newKeySet();
+
+    private BonitaCommandScheduler(String commandName) {
+        this.commandName = commandName;
+    }
+
+    /**
+     * return true if the verb is already scheduled on the tenant
+     */
+    public boolean isScheduled(String verb, long tenantId) {
+        return schedules.containsKey(verb + "~" + tenantId);
+    }
+
+    /**
+     * schedule a verb on a tenant, if it is not already done. The first run is after one period.
+     *
+     * @param execution execute the verb, return true on success
+     */
+    public void schedule(String verb, long tenantId, long periodMs, Supplier<Boolean> execution) {
+        if (periodMs <= 0)
+            return;
+        schedules.computeIfAbsent(verb + "~" + tenantId, k -> {
+            Schedule schedule = new Schedule(commandName, verb, tenantId, periodMs, execution);
+            schedule.future = schedulerPool.scheduleAtFixedRate(schedule, periodMs, periodMs, TimeUnit.MILLISECONDS);
+            logger.info(LOGGER_LABEL + " Command[" + commandName + "] Verb[" + verb + "] Tenant[" + tenantId + "] every " + periodMs + " ms");
+            return schedule;
+        });
+    }
+
+    /**
+     * the command can't run this verb in background on this tenant
+     *
+     * @return true the first time, to report it one time
+     */
+    public boolean reject(String verb, long tenantId) {
+        return rejected.add(verb + "~" + tenantId);
+    }
+
+    public List<Map<String, Object>> getSnapshot() {
+        List<Map<String, Object>> snapshot = new ArrayList<>();
+        for (Schedule schedule : schedules.values())
+            snapshot.add(schedule.getSnapshot());
+        return snapshot;
+    }
+}
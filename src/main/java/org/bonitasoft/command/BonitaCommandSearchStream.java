@@ -0,0 +1,269 @@
+package org.bonitasoft.command;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bonitasoft.engine.search.SearchResult;
+import org.bonitasoft.log.event.BEvent;
+import org.bonitasoft.log.event.BEvent.Level;
+
+/**
+ * Iterate over all the results of a Bonita search, page by page, without writing the paging loop.
+ * While page N is consumed, the next pages are already fetched in the background (up to pagesAhead pages): the consumer does not wait for each page.
+ * The background fetches run in their own pool (getPrefetchExecutor()), never in the pool of the calls.
+ * Memory is bounded: at most (pagesAhead + 1) pages are kept.
+ * A search error stops the iteration: the error is available in getListEvents().
+ *
+ * <pre>
+ * try (BonitaCommandSearchStream&lt;ProcessInstance&gt; search = searchStream(100, 2,
+ *         (startIndex, maxResults) -&gt; processAPI.searchProcessInstances(new SearchOptionsBuilder(startIndex, maxResults).done()))) {
+ *     search.stream().forEach(processInstance -&gt; ...);
+ * }
+ * </pre>
+ */
+public class BonitaCommandSearchStream<T extends Serializable> implements Iterator<T>, AutoCloseable {
+
+    private final static BEvent eventSearchError = new BEvent(BonitaCommandSearchStream.class.getName(), 1, Level.ERROR,
+            "Search error", "A page of the search failed", "The iteration stops, the next results are not returned", "Check the exception");
+
+    /**
+     * Pool of the background fetches, shared by all the streams. It is not the pool of the calls: the consumer runs in a call and waits for its
+     * pages, a page queued behind the calls waiting for their own pages would never run. The pool has no queue: when all its threads are busy,
+     * the page is refused, and the consumer searches it itself. Idle threads stop after 60 s.
+     */
+    private final static ThreadPoolExecutor prefetchPool;
+    static {
+        final AtomicInteger threadCounter = new AtomicInteger();
+        prefetchPool = new ThreadPoolExecutor(0, Math.max(4, Runtime.getRuntime().availableProcessors() * 4), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                r -> {
+                    Thread thread = new Thread(r, "BonitaCommandSearchStream-" + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * executor of the background fetches: it never queues a page, a refused page is searched by the consumer
+     */
+    public static Executor getPrefetchExecutor() {
+        return prefetchPool;
+    }
+
+    /**
+     * search one page: (startIndex, maxResults) -> SearchResult, typically processAPI.searchXXX(new SearchOptionsBuilder(startIndex, maxResults).done())
+     */
+    @FunctionalInterface
+    public interface PageFetcher<T extends Serializable> {
+
+        SearchResult<T> search(int startIndex, int maxResults) throws Exception;
+    }
+
+    private final PageFetcher<T> fetcher;
+    private final int pageSize;
+    private final int pagesAhead;
+    private final Executor executor;
+    /**
+     * the context of the call, attached in the thread fetching a page
+     */
+    private final BonitaCommandContext context;
+
+    /**
+     * pages requested, not consumed yet. Only the consumer thread accesses it
+     */
+    private final ArrayDeque<CompletableFuture<List<T>>> pages = new ArrayDeque<>();
+    private int nextStartIndex = 0;
+    /**
+     * total number of results, given by the first page. -1 before
+     */
+    private long count = -1;
+    private boolean lastPageRequested = false;
+    private Iterator<T> currentPage = Collections.emptyIterator();
+    private final List<BEvent> listEvents = new ArrayList<>();
+    private boolean closed = false;
+    private long nbPagesFetched = 0;
+
+    /**
+     * @param fetcher search one page
+     * @param pageSize number of results per page
+     * @param pagesAhead number of pages fetched in advance. 0: no prefetch, a page is searched when the previous one is consumed
+     * @param executor executes the background fetch. If the executor rejects it, the page is searched by the consumer. Never give the executor
+     *        running the consumer: see getPrefetchExecutor()
+     */
+    public BonitaCommandSearchStream(PageFetcher<T> fetcher, int pageSize, int pagesAhead, Executor executor) {
+        this.fetcher = fetcher;
+        this.pageSize = Math.max(1, pageSize);
+        this.pagesAhead = Math.max(0, pagesAhead);
+        this.executor = executor;
+        this.context = BonitaCommandContext.getCurrent();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!currentPage.hasNext()) {
+            if (closed)
+                return false;
+            if (pages.isEmpty())
+                requestPages();
+            if (pages.isEmpty())
+                return false;
+            List<T> page = waitPage(pages.poll());
+            if (page == null) {
+                close();
+                return false;
+            }
+            currentPage = page.iterator();
+            // keep the background fetch ahead of the consumer
+            requestPages();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return currentPage.next();
+    }
+
+    /**
+     * sequential stream of all results. Close the stream (or this object) to stop the background fetch
+     */
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    /**
+     * stop the iteration: pages requested in the background are cancelled. A search already running is not interrupted
+     * (CompletableFuture.cancel() does not interrupt its thread): it finishes in the background, and its page is dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (CompletableFuture<List<T>> page : pages)
+            page.cancel(true);
+        pages.clear();
+        currentPage = Collections.emptyIterator();
+    }
+
+    /**
+     * @return the errors: empty if the search went to the end
+     */
+    public List<BEvent> getListEvents() {
+        return listEvents;
+    }
+
+    /**
+     * @return the total number of results given by the search, -1 if no page was fetched yet
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getNbPagesFetched() {
+        return nbPagesFetched;
+    }
+
+    /**
+     * request pages until pagesAhead pages are waiting (one if no prefetch), and the last page is requested
+     */
+    private void requestPages() {
+        int maxPending = Math.max(1, pagesAhead);
+        while (!lastPageRequested && pages.size() < maxPending) {
+            // before the first page, the count is unknown: only one page is requested
+            if (count < 0 && !pages.isEmpty())
+                return;
+            if (count >= 0 && nextStartIndex >= count) {
+                lastPageRequested = true;
+                return;
+            }
+            final int startIndex = nextStartIndex;
+            nextStartIndex += pageSize;
+            pages.add(fetchPage(startIndex));
+        }
+    }
+
+    private CompletableFuture<List<T>> fetchPage(int startIndex) {
+        if (pagesAhead > 0 && executor != null) {
+            try {
+                return CompletableFuture.supplyAsync(() -> searchPage(startIndex), executor);
+            } catch (RejectedExecutionException e) {
+                // pool full: the consumer searches the page itself
+            }
+        }
+        CompletableFuture<List<T>> page = new CompletableFuture<>();
+        try {
+            page.complete(searchPage(startIndex));
+        } catch (RuntimeException e) {
+            page.completeExceptionally(e);
+        }
+        return page;
+    }
+
+    private List<T> searchPage(int startIndex) {
+        BonitaCommandContext previousContext = context == null ? null : BonitaCommandContext.attach(context);
+        try {
+            SearchResult<T> searchResult = fetcher.search(startIndex, pageSize);
+            if (searchResult == null)
+                return new PageResult<T>(0, null);
+            return new PageResult<T>(searchResult.getCount(), searchResult.getResult());
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            if (context != null)
+                BonitaCommandContext.restore(previousContext);
+        }
+    }
+
+    /**
+     * @return null if the search failed (the event is registered)
+     */
+    private List<T> waitPage(CompletableFuture<List<T>> futurePage) {
+        try {
+            PageResult<T> page = (PageResult<T>) futurePage.join();
+            nbPagesFetched++;
+            if (count < 0)
+                count = page.count;
+            // the search returns less than expected: nothing after
+            if (page.size() < pageSize)
+                lastPageRequested = true;
+            return page;
+        } catch (Exception e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof CompletionException && cause.getCause() != null)
+                cause = cause.getCause();
+            listEvents.add(new BEvent(eventSearchError, cause instanceof Exception ? (Exception) cause : e, "StartIndex[" + (nbPagesFetched * pageSize) + "] PageSize[" + pageSize + "]"));
+            return null;
+        }
+    }
+
+    /**
+     * one page, with the total count of the search
+     */
+    private static class PageResult<T> extends ArrayList<T> {
+
+        private static final long serialVersionUID = 1L;
+        private final long count;
+
+        private PageResult(long count, List<T> result) {
+            super(result == null ? Collections.<T> emptyList() : result);
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.bonitasoft.command;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteAnswer;
+
+/**
+ * Single flight: identical calls (same verb, tenant and parameters, see BonitaCommandCache.getKey()) running at the same time share one execution.
+ * The first call executes the verb, the others wait for its answer and get a copy. Nothing is kept after the execution: this is not a cache.
+ * A verb opts in with @Verb(coalesce = true) or BonitaCommand.isCoalesced().
+ */
+public class BonitaCommandSingleFlight {
+
+    public final static String CST_SINGLEFLIGHT_INFLIGHT = "inflight";
+    public final static String CST_SINGLEFLIGHT_EXECUTED = "executed";
+    public final static String CST_SINGLEFLIGHT_COALESCED = "coalesced";
+
+    private final static Map<String, BonitaCommandSingleFlight> allSingleFlights = new ConcurrentHashMap<>();
+
+    /**
+     * return the single flight of a command
+     */
+    public static BonitaCommandSingleFlight getInstance(String commandName) {
+        BonitaCommandSingleFlight singleFlight = allSingleFlights.get(commandName);
+        if (singleFlight != null)
+            return singleFlight;
+        return allSingleFlights.computeIfAbsent(commandName, k -> new BonitaCommandSingleFlight());
+    }
+
+    private final Map<String, CompletableFuture<ExecuteAnswer>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    private BonitaCommandSingleFlight() {
+    }
+
+    /**
+     * execute the work, or wait for the same work already running
+     *
+     * @param key key of the call
+     * @param waitMs maximum time to wait for the running work. Null: no limit
+     * @param work the execution
+     * @return the answer: the caller owns it, and can modify it
+     * @throws TimeoutException the running work is not finished in waitMs
+     * @throws Exception the exception thrown by the work
+     */
+    public ExecuteAnswer execute(String key, Long waitMs, Callable<ExecuteAnswer> work) throws Exception {
+        CompletableFuture<ExecuteAnswer> myFuture = new CompletableFuture<>();
+        CompletableFuture<ExecuteAnswer> runningFuture = inFlight.putIfAbsent(key, myFuture);
+        if (runningFuture != null) {
+            coalesced.increment();
+            try {
+                ExecuteAnswer executeAnswer = waitMs == null ? runningFuture.get() : runningFuture.get(waitMs, TimeUnit.MILLISECONDS);
+                return copy(executeAnswer);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        executed.increment();
+        try {
+            ExecuteAnswer executeAnswer = work.call();
+            // the waiting calls get a copy done now: the answer is modified by the caller after
+            myFuture.complete(executeAnswer == null ? null : copy(executeAnswer));
+            return executeAnswer;
+        } catch (Exception | Error e) {
+            myFuture.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, myFuture);
+        }
+    }
+
+    private static ExecuteAnswer copy(ExecuteAnswer executeAnswer) {
+        if (executeAnswer == null)
+            return null;
+        ExecuteAnswer copyAnswer = new ExecuteAnswer();
+        copyAnswer.logAnswer = executeAnswer.logAnswer;
+        copyAnswer.result.putAll(executeAnswer.result);
+        copyAnswer.resultSerializable = executeAnswer.resultSerializable;
+        copyAnswer.listEvents.addAll(executeAnswer.listEvents);
+        return copyAnswer;
+    }
+
+    public HashMap<String, Long> getSnapshot() {
+        HashMap<String, Long> snapshot = new HashMap<>();
+        snapshot.put(CST_SINGLEFLIGHT_INFLIGHT, (long) inFlight.size());
+        snapshot.put(CST_SINGLEFLIGHT_EXECUTED, executed.sum());
+        snapshot.put(CST_SINGLEFLIGHT_COALESCED, coalesced.sum());
+        return snapshot;
+    }
+}
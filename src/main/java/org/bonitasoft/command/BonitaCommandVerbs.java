@@ -0,0 +1,371 @@
+package org.bonitasoft.command;
+
+import java.io.Serializable;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.bonitasoft.command.BonitaCommand.ExecuteAnswer;
+import org.bonitasoft.command.BonitaCommand.ExecuteParameters;
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.service.TenantServiceAccessor;
+import org.bonitasoft.log.event.BEvent;
+import org.bonitasoft.log.event.BEvent.Level;
+
+/**
+ * Dispatch table of the verbs of a command class: all methods annotated with @Verb, in the class and its superclasses.
+ * The table is calculated one time per class, then each call is a HashMap lookup and a MethodHandle invocation.
+ * Verbs declared by BonitaCommand itself (PING, HELP, METRICS, WARMUP, AFTERDEPLOYMENT, BEFOREUNDEPLOYMENT, JOBSTATUS, JOBRESULT, JOBCANCEL) are the
+ * built-in verbs. A command can redefine one of them.
+ * A verb is an instance method: a static method annotated with @Verb is rejected.
+ */
+public class BonitaCommandVerbs {
+
+    private static Logger logger = Logger.getLogger(BonitaCommandVerbs.class.getName());
+    private static final String LOGGER_LABEL = "BonitaCommandVerbs:";
+
+    private final static BEvent eventUnknownVerb = new BEvent(BonitaCommandVerbs.class.getName(), 1, Level.APPLICATIONERROR,
+            "Unknown verb", "The command does not know this verb", "The call is not executed", "Call the HELP verb to get the list of verbs");
+
+    private final static BEvent eventMissingParameter = new BEvent(BonitaCommandVerbs.class.getName(), 2, Level.APPLICATIONERROR,
+            "Missing parameter", "A mandatory parameter is not given", "The call is not executed", "Give the parameter");
+
+    private final static BEvent eventBadParameter = new BEvent(BonitaCommandVerbs.class.getName(), 3, Level.APPLICATIONERROR,
+            "Bad parameter", "A parameter does not have the expected type", "The call is not executed", "Check the parameter");
+
+    /**
+     * the table is kept with the class: when the command is redeployed, the new class get a new table
+     */
+    private final static ClassValue<BonitaCommandVerbs> allVerbs = new ClassValue<BonitaCommandVerbs>() {
+
+        @Override
+        protected BonitaCommandVerbs computeValue(Class<?> commandClass) {
+            return new BonitaCommandVerbs(commandClass);
+        }
+    };
+
+    public static BonitaCommandVerbs getInstance(Class<?> commandClass) {
+        return allVerbs.get(commandClass);
+    }
+
+    private final HashMap<String, VerbHandler> handlers = new HashMap<>();
+
+    private BonitaCommandVerbs(Class<?> commandClass) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        // the subclass first: a command can redefine a verb of its parent
+        for (Class<?> classIterator = commandClass; classIterator != null && classIterator != Object.class; classIterator = classIterator.getSuperclass()) {
+            for (Method method : classIterator.getDeclaredMethods()) {
+                Verb verb = method.getAnnotation(Verb.class);
+                if (verb == null || handlers.containsKey(verb.value()))
+                    continue;
+                if (Modifier.isStatic(method.getModifiers())) {
+                    logger.severe(LOGGER_LABEL + " Verb[" + verb.value() + "] method[" + commandClass.getName() + "." + method.getName() + "] can't be used: a verb can't be static");
+                    continue;
+                }
+                try {
+                    method.setAccessible(true);
+                    handlers.put(verb.value(), new VerbHandler(verb, method, lookup.unreflect(method), classIterator == BonitaCommand.class));
+                } catch (Exception e) {
+                    logger.severe(LOGGER_LABEL + " Verb[" + verb.value() + "] method[" + commandClass.getName() + "." + method.getName() + "] can't be used: " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the handler, null if the verb is not declared
+     */
+    public VerbHandler getHandler(String verb) {
+        return verb == null ? null : handlers.get(verb);
+    }
+
+    /**
+     * return the list of verbs, sorted
+     */
+    public List<String> getListVerbs() {
+        List<String> listVerbs = new ArrayList<>(handlers.keySet());
+        Collections.sort(listVerbs);
+        return listVerbs;
+    }
+
+    /**
+     * return true if the command declares its own verbs (not only the built-in one)
+     */
+    public boolean hasCommandVerbs() {
+        for (VerbHandler handler : handlers.values())
+            if (!handler.builtIn)
+                return true;
+        return false;
+    }
+
+    /**
+     * verbs executed periodically: verb -> period in ms
+     */
+    public Map<String, Long> getScheduledVerbs() {
+        HashMap<String, Long> scheduledVerbs = new HashMap<>();
+        for (VerbHandler handler : handlers.values())
+            if (handler.verb.scheduleMs() > 0)
+                scheduledVerbs.put(handler.getName(), handler.verb.scheduleMs());
+        return scheduledVerbs;
+    }
+
+    /**
+     * auto generated help: verb -> description and parameters
+     */
+    public HashMap<String, String> getHelpDescription() {
+        HashMap<String, String> help = new HashMap<>();
+        for (VerbHandler handler : handlers.values())
+            help.put(handler.getName(), handler.getHelp());
+        return help;
+    }
+
+    public String getHelpText() {
+        StringBuilder help = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(getHelpDescription()).entrySet()) {
+            help.append(entry.getKey() + ": " + entry.getValue() + "\n");
+        }
+        return help.toString();
+    }
+
+    /**
+     * Answer when the verb is not known
+     */
+    public ExecuteAnswer getUnknownVerbAnswer(String verb) {
+        ExecuteAnswer executeAnswer = new ExecuteAnswer();
+        executeAnswer.listEvents.add(new BEvent(eventUnknownVerb, "Verb[" + verb + "] Known verbs " + getListVerbs()));
+        return executeAnswer;
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Handler */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static class BindingException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+        private final BEvent event;
+
+        BindingException(BEvent event) {
+            super(event.getParameters());
+            this.event = event;
+        }
+    }
+
+    private interface Binder {
+
+        Object bind(ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor, APIAccessor apiAccessor) throws BindingException;
+    }
+
+    public static class VerbHandler {
+
+        private final Verb verb;
+        private final String methodName;
+        private final boolean builtIn;
+        /**
+         * (Object command, Object[] parameters) -> Object
+         */
+        private final MethodHandle methodHandle;
+        private final Binder[] binders;
+        private final List<String> listParametersName = new ArrayList<>();
+
+        private VerbHandler(Verb verb, Method method, MethodHandle methodHandle, boolean builtIn) {
+            this.verb = verb;
+            this.methodName = method.getName();
+            this.builtIn = builtIn;
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            this.methodHandle = methodHandle.asType(methodHandle.type().generic()).asSpreader(Object[].class, parameterTypes.length);
+            this.binders = new Binder[parameterTypes.length];
+            Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+            for (int i = 0; i < parameterTypes.length; i++) {
+                Verb.Param param = null;
+                for (Annotation annotation : parameterAnnotations[i])
+                    if (annotation instanceof Verb.Param)
+                        param = (Verb.Param) annotation;
+                binders[i] = getBinder(method, parameterTypes[i], param);
+                if (param != null)
+                    listParametersName.add(param.value() + (param.mandatory() ? "*" : ""));
+            }
+        }
+
+        public String getName() {
+            return verb.value();
+        }
+
+        public Verb getVerb() {
+            return verb;
+        }
+
+        /**
+         * a built-in verb is declared by BonitaCommand, and executed directly by the command, never in a BonitaCommandApiAccessor thread
+         */
+        public boolean isBuiltIn() {
+            return builtIn;
+        }
+
+        public String getHelp() {
+            return verb.help() + (listParametersName.isEmpty() ? "" : " Parameters " + listParametersName);
+        }
+
+        /**
+         * call the handler
+         *
+         * @param apiAccessor null, if the command is not a BonitaCommandApiAccessor
+         * @throws Exception the exception thrown by the handler
+         */
+        @SuppressWarnings("unchecked")
+        public ExecuteAnswer invoke(BonitaCommand command, ExecuteParameters executeParameters, TenantServiceAccessor serviceAccessor, APIAccessor apiAccessor) throws Exception {
+            Object[] parameters = new Object[binders.length];
+            try {
+                for (int i = 0; i < binders.length; i++)
+                    parameters[i] = binders[i].bind(executeParameters, serviceAccessor, apiAccessor);
+            } catch (BindingException e) {
+                ExecuteAnswer executeAnswer = new ExecuteAnswer();
+                executeAnswer.listEvents.add(e.event);
+                return executeAnswer;
+            }
+            Object result;
+            try {
+                result = (Object) methodHandle.invokeExact((Object) command, parameters);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new Exception(t);
+            }
+            if (result instanceof ExecuteAnswer)
+                return (ExecuteAnswer) result;
+            ExecuteAnswer executeAnswer = new ExecuteAnswer();
+            if (result == null) {
+                executeAnswer.result.put(BonitaCommand.CSTANSWER_STATUS, BonitaCommand.CSTANSWER_STATUS_V_OK);
+            } else if (result instanceof Map) {
+                executeAnswer.result.putAll((Map<String, Object>) result);
+            } else {
+                executeAnswer.result.put("result", result);
+            }
+            return executeAnswer;
+        }
+
+        private Binder getBinder(Method method, Class<?> type, Verb.Param param) {
+            if (param == null) {
+                if (type == ExecuteParameters.class)
+                    return (executeParameters, serviceAccessor, apiAccessor) -> executeParameters;
+                if (type == TenantServiceAccessor.class)
+                    return (executeParameters, serviceAccessor, apiAccessor) -> serviceAccessor;
+                if (type == APIAccessor.class)
+                    return (executeParameters, serviceAccessor, apiAccessor) -> apiAccessor;
+                if (type == BonitaCommandContext.class)
+                    return (executeParameters, serviceAccessor, apiAccessor) -> BonitaCommandContext.getCurrent();
+                if (type == Map.class)
+                    return (executeParameters, serviceAccessor, apiAccessor) -> executeParameters.parametersCommand;
+                throw new IllegalArgumentException("Parameter type[" + type.getName() + "] in method[" + method.getName() + "] is not bindable: add a @Verb.Param");
+            }
+            final String name = param.value();
+            final boolean mandatory = param.mandatory() || type.isPrimitive();
+            return (executeParameters, serviceAccessor, apiAccessor) -> {
+                Object value = executeParameters.parametersCommand == null ? null : executeParameters.parametersCommand.get(name);
+                if (value == null) {
+                    if (mandatory)
+                        throw new BindingException(new BEvent(eventMissingParameter, "Verb[" + verb.value() + "] Parameter[" + name + "]"));
+                    return null;
+                }
+                Object converted = convert(value, type);
+                if (converted == null)
+                    throw new BindingException(new BEvent(eventBadParameter, "Verb[" + verb.value() + "] Parameter[" + name + "] expected[" + type.getSimpleName() + "] received[" + value.getClass().getSimpleName() + "]"));
+                return converted;
+            };
+        }
+    }
+
+    /**
+     * convert a parameter to the expected type, same policy as ExecuteParameters.getParametersLong(): a String "12" is accepted for a Long.
+     * A number is never truncated: 1.5, or a Long out of the int range for an Integer, is refused. A String parameter accepts a String or a
+     * Number only.
+     *
+     * @return null if the conversion is not possible
+     */
+    static Object convert(Object value, Class<?> type) {
+        if (type == String.class)
+            return value instanceof String || value instanceof Number ? value.toString() : null;
+        if (type == Long.class || type == long.class) {
+            if (value instanceof Number)
+                return toIntegral((Number) value, Long.MIN_VALUE, Long.MAX_VALUE);
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (type == Integer.class || type == int.class) {
+            if (value instanceof Number) {
+                Long longValue = toIntegral((Number) value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                return longValue == null ? null : longValue.intValue();
+            }
+            try {
+                return Integer.parseInt(value.toString());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (type == Boolean.class || type == boolean.class) {
+            if (value instanceof Boolean)
+                return value;
+            if ("true".equalsIgnoreCase(value.toString()))
+                return Boolean.TRUE;
+            if ("false".equalsIgnoreCase(value.toString()))
+                return Boolean.FALSE;
+            return null;
+        }
+        if (type == Double.class || type == double.class) {
+            if (value instanceof Number)
+                return ((Number) value).doubleValue();
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (type.isInstance(value))
+            return value;
+        if (type == Serializable.class || type == Object.class)
+            return value;
+        return null;
+    }
+
+    /**
+     * @return the value as a long, null if it is not integral or out of [min, max]
+     */
+    private static Long toIntegral(Number value, long min, long max) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            long longValue = value.longValue();
+            return longValue < min || longValue > max ? null : longValue;
+        }
+        if (value instanceof BigInteger) {
+            BigInteger bigValue = (BigInteger) value;
+            return bigValue.compareTo(BigInteger.valueOf(min)) < 0 || bigValue.compareTo(BigInteger.valueOf(max)) > 0 ? null : bigValue.longValue();
+        }
+        if (value instanceof BigDecimal) {
+            try {
+                return toIntegral(((BigDecimal) value).toBigIntegerExact(), min, max);
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+        double doubleValue = value.doubleValue();
+        // (double) Long.MAX_VALUE is 2^63, out of the range
+        if (Double.isNaN(doubleValue) || doubleValue != Math.rint(doubleValue) || doubleValue < min || doubleValue >= (double) max + 1)
+            return null;
+        return (long) doubleValue;
+    }
+}
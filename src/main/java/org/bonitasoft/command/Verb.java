@@ -0,0 +1,102 @@
+package org.bonitasoft.command;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declare a method of a BonitaCommand as the handler of a verb. Instead of a long if/else on executeParameters.verb in executeCommand(), write:
+ * 
+ * <pre>
+ * &#64;Verb(value = "GETSTATISTICS", help = "return the statistics of a process")
+ * public ExecuteAnswer getStatistics(ExecuteParameters executeParameters, APIAccessor apiAccessor, &#64;Verb.Param("processId") Long processId) {
+ * </pre>
+ * 
+ * Handlers are resolved one time per class (see BonitaCommandVerbs). Each parameter of the method is bound according its type:
+ * ExecuteParameters, TenantServiceAccessor, APIAccessor (only for a BonitaCommandApiAccessor), or a parameter of the command when it is annotated with
+ * &#64;Verb.Param (String, Long, Integer, Boolean, Map, or any Serializable).
+ * The method may return an ExecuteAnswer, a Map (copied in the result), any other object (saved in the result under "result"), or nothing.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Verb {
+
+    /**
+     * name of the verb
+     */
+    String value();
+
+    /**
+     * explanation, returned by the HELP verb
+     */
+    String help() default "";
+
+    /**
+     * if true, the command checks the afterRestart() was executed before calling the verb
+     */
+    boolean initialization() default true;
+
+    /**
+     * maximum number of calls of this verb running in parallel. 0 means no limit. See BonitaCommandBulkhead
+     */
+    int maxConcurrent() default 0;
+
+    /**
+     * when maxConcurrent is reached, number of calls which can wait a slot. Others are rejected immediately
+     */
+    int maxQueue() default 0;
+
+    /**
+     * maximum time a call waits for a slot, in ms
+     */
+    long queueTimeoutMs() default 0;
+
+    /**
+     * if not 0, the answer is kept in the server cache during this time, and the same call (same verb, tenant and parameters) gets it directly.
+     * See BonitaCommandCache
+     */
+    long cacheTtlMs() default 0;
+
+    /**
+     * if true, identical calls (same verb, tenant and parameters) running at the same time share one execution. See BonitaCommandSingleFlight
+     */
+    boolean coalesce() default false;
+
+    /**
+     * if not 0, the verb is executed every scheduleMs on each tenant where the command is used, without parameters. See BonitaCommandScheduler
+     * The run is outside any engine call and transaction: allowed only on a BonitaCommandApiAccessor or a command with useManagedInstance(),
+     * else the verb is not scheduled and the first call on the tenant returns an error event.
+     */
+    long scheduleMs() default 0;
+
+    /**
+     * BonitaCommandApiAccessor: maximum time the caller waits for the verb, in ms. When it expires, the work is cancelled (the thread is interrupted),
+     * and the caller gets a timeout event. 0 means the default of the command (BonitaCommandApiAccessor.getCallTimeoutMs())
+     */
+    long timeoutMs() default 0;
+
+    /**
+     * BonitaCommandApiAccessor: lane of the verb, BonitaCommandExecutor.CST_LANE_INTERACTIVE (default) or CST_LANE_BACKGROUND.
+     * Each lane has its own pool: a batch verb never delays the verbs a user is waiting for
+     */
+    String lane() default BonitaCommandExecutor.CST_LANE_INTERACTIVE;
+
+    /**
+     * Bind a method parameter to a parameter of the command (executeParameters.parametersCommand)
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Param {
+
+        /**
+         * name of the parameter in the parametersCommand
+         */
+        String value();
+
+        /**
+         * if true and the parameter is not given, the verb is not called
+         */
+        boolean mandatory() default false;
+    }
+}
@@ -0,0 +1,83 @@
+package org.bonitasoft.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * BonitaCommandCache.getKey(): two calls get the same key only if they have the same verb, tenant and parameters
+ */
+public class BonitaCommandCacheTest {
+
+    @Test
+    public void sameParametersInAnotherOrderGiveTheSameKey() {
+        Map<String, Serializable> parameters1 = new LinkedHashMap<>();
+        parameters1.put("a", 1);
+        parameters1.put("b", "x");
+        Map<String, Serializable> parameters2 = new LinkedHashMap<>();
+        parameters2.put("b", "x");
+        parameters2.put("a", 1);
+        assertEquals(BonitaCommandCache.getKey("VERB", 1, parameters1), BonitaCommandCache.getKey("VERB", 1, parameters2));
+    }
+
+    @Test
+    public void separatorsInValuesDoNotCollide() {
+        // {a="1,b=2"} against {a="1", b="2"}
+        Map<String, Serializable> parameters1 = new HashMap<>();
+        parameters1.put("a", "1,b=2");
+        Map<String, Serializable> parameters2 = new HashMap<>();
+        parameters2.put("a", "1");
+        parameters2.put("b", "2");
+        assertNotEquals(BonitaCommandCache.getKey("VERB", 1, parameters1), BonitaCommandCache.getKey("VERB", 1, parameters2));
+
+        // a list of two values against one value containing the separator
+        Map<String, Serializable> parameters3 = new HashMap<>();
+        parameters3.put("a", new ArrayList<>(Arrays.asList("x", "y")));
+        Map<String, Serializable> parameters4 = new HashMap<>();
+        parameters4.put("a", new ArrayList<>(Arrays.asList("x,y")));
+        assertNotEquals(BonitaCommandCache.getKey("VERB", 1, parameters3), BonitaCommandCache.getKey("VERB", 1, parameters4));
+    }
+
+    @Test
+    public void separatorsInVerbDoNotCollide() {
+        Map<String, Serializable> parameters = new HashMap<>();
+        assertNotEquals(BonitaCommandCache.getKey("VERB~1", 2, parameters), BonitaCommandCache.getKey("VERB", 12, parameters));
+    }
+
+    @Test
+    public void typeIsPartOfTheKey() {
+        Map<String, Serializable> parameters1 = new HashMap<>();
+        parameters1.put("a", "1");
+        Map<String, Serializable> parameters2 = new HashMap<>();
+        parameters2.put("a", 1);
+        assertNotEquals(BonitaCommandCache.getKey("VERB", 1, parameters1), BonitaCommandCache.getKey("VERB", 1, parameters2));
+    }
+
+    @Test
+    public void mapWithMixedKeys() {
+        // a map of a parameter may have keys of different types: the key must not compare them
+        HashMap<Object, Object> mixed = new HashMap<>();
+        mixed.put("1", "string");
+        mixed.put(1, "number");
+        mixed.put(null, "null");
+        Map<String, Serializable> parameters = new HashMap<>();
+        parameters.put("map", mixed);
+
+        HashMap<Object, Object> mixedOtherOrder = new LinkedHashMap<>();
+        mixedOtherOrder.put(null, "null");
+        mixedOtherOrder.put(1, "number");
+        mixedOtherOrder.put("1", "string");
+        Map<String, Serializable> parametersOtherOrder = new HashMap<>();
+        parametersOtherOrder.put("map", mixedOtherOrder);
+
+        assertEquals(BonitaCommandCache.getKey("VERB", 1, parameters), BonitaCommandCache.getKey("VERB", 1, parametersOtherOrder));
+    }
+}
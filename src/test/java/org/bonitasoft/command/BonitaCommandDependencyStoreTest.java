@@ -0,0 +1,158 @@
+package org.bonitasoft.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.bonitasoft.command.BonitaCommandDependencyStore.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * reference counting of the content addressed dependencies, on H2 in memory. The "dependency" table has the columns of the Bonita schema used by
+ * the store, as the EmbeddedDatabase of the benchmark module.
+ */
+public class BonitaCommandDependencyStoreTest {
+
+    private final static long CST_TENANT = 1;
+    private final static long CST_OTHERTENANT = 2;
+
+    private static int nbDatabases = 0;
+
+    private Connection con;
+    private BonitaCommandDependencyStore dependencyStore;
+
+    @Before
+    public void setUp() throws SQLException {
+        // one database per test
+        con = DriverManager.getConnection("jdbc:h2:mem:dependencystore" + (nbDatabases++));
+        Statement statement = con.createStatement();
+        try {
+            statement.execute("create table dependency ("
+                    + "tenantid bigint not null, "
+                    + "id bigint auto_increment primary key, "
+                    + "name varchar(150) not null, "
+                    + "filename varchar(255) not null, "
+                    + "value_ blob not null, "
+                    + "constraint uk_dependency unique (tenantid, name))");
+        } finally {
+            statement.close();
+        }
+        dependencyStore = new BonitaCommandDependencyStore(con);
+        dependencyStore.checkTable();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        con.close();
+    }
+
+    @Test
+    public void dependencyNameIsTheHashOfTheContent() throws Exception {
+        String name = BonitaCommandDependencyStore.getDependencyName("content".getBytes(StandardCharsets.UTF_8));
+        assertTrue(name.startsWith(BonitaCommandDependencyStore.CST_PREFIX));
+        assertEquals(BonitaCommandDependencyStore.CST_PREFIX.length() + 64, name.length());
+        assertEquals(name, BonitaCommandDependencyStore.getDependencyName("content".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(name.equals(BonitaCommandDependencyStore.getDependencyName("content2".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void checkTableTwice() throws SQLException {
+        dependencyStore.checkTable();
+        assertEquals(0, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+    }
+
+    @Test
+    public void countReferences() throws SQLException {
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.setReference(CST_TENANT, new Reference("command1", "lib", "1.0", "cas-1", 100));
+        dependencyStore.setReference(CST_TENANT, new Reference("command2", "lib", "1.0", "cas-1", 100));
+        dependencyStore.setReference(CST_TENANT, new Reference("command2", "other", "2.0", "cas-2", 200));
+        dependencyStore.commit();
+        assertEquals(2, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+        assertEquals(1, dependencyStore.countReferences(CST_TENANT, "cas-2"));
+        assertEquals(2, dependencyStore.getReferencesByCommand(CST_TENANT, "command2").size());
+        assertEquals(2, dependencyStore.getReferencesByJarName(CST_TENANT, "lib").size());
+
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.removeReference(CST_TENANT, "command1", "lib");
+        dependencyStore.commit();
+        assertEquals(1, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.removeReference(CST_TENANT, "command2", "lib");
+        dependencyStore.commit();
+        assertEquals(0, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+        assertEquals(1, dependencyStore.countReferences(CST_TENANT, "cas-2"));
+    }
+
+    @Test
+    public void setReferenceReplacesTheReferenceOfTheCommand() throws SQLException {
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.setReference(CST_TENANT, new Reference("command1", "lib", "1.0", "cas-1", 100));
+        dependencyStore.setReference(CST_TENANT, new Reference("command1", "lib", "1.1", "cas-2", 110));
+        dependencyStore.commit();
+        assertEquals(0, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+        assertEquals(1, dependencyStore.countReferences(CST_TENANT, "cas-2"));
+        Reference reference = dependencyStore.getReferencesByCommand(CST_TENANT, "command1").get(0);
+        assertEquals("1.1", reference.version);
+        assertEquals(110, reference.contentSize);
+    }
+
+    @Test
+    public void rollbackRestoresTheReferences() throws SQLException {
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.setReference(CST_TENANT, new Reference("command1", "lib", "1.0", "cas-1", 100));
+        dependencyStore.commit();
+        assertTrue(con.getAutoCommit());
+
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.removeReference(CST_TENANT, "command1", "lib");
+        dependencyStore.setReference(CST_TENANT, new Reference("command2", "lib", "1.0", "cas-2", 100));
+        dependencyStore.rollback();
+        assertTrue(con.getAutoCommit());
+        assertEquals(1, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+        assertEquals(0, dependencyStore.countReferences(CST_TENANT, "cas-2"));
+    }
+
+    @Test
+    public void tenantsAreIndependent() throws SQLException {
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.setReference(CST_TENANT, new Reference("command1", "lib", "1.0", "cas-1", 100));
+        dependencyStore.commit();
+        dependencyStore.lock(CST_OTHERTENANT);
+        dependencyStore.setReference(CST_OTHERTENANT, new Reference("command1", "lib", "1.0", "cas-1", 100));
+        dependencyStore.commit();
+
+        dependencyStore.lock(CST_TENANT);
+        dependencyStore.removeReference(CST_TENANT, "command1", "lib");
+        dependencyStore.commit();
+        assertEquals(0, dependencyStore.countReferences(CST_TENANT, "cas-1"));
+        assertEquals(1, dependencyStore.countReferences(CST_OTHERTENANT, "cas-1"));
+    }
+
+    @Test
+    public void existsInEngine() throws SQLException {
+        PreparedStatement pstmt = con.prepareStatement("insert into dependency (tenantid, name, filename, value_) values (?,?,?,?)");
+        try {
+            pstmt.setLong(1, CST_TENANT);
+            pstmt.setString(2, "cas-1");
+            pstmt.setString(3, "cas-1.jar");
+            pstmt.setBytes(4, new byte[] { 1, 2, 3 });
+            pstmt.executeUpdate();
+        } finally {
+            pstmt.close();
+        }
+        assertTrue(dependencyStore.existsInEngine(CST_TENANT, "cas-1"));
+        assertFalse(dependencyStore.existsInEngine(CST_OTHERTENANT, "cas-1"));
+        assertFalse(dependencyStore.existsInEngine(CST_TENANT, "cas-2"));
+    }
+}
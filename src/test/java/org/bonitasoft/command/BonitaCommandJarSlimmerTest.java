@@ -0,0 +1,178 @@
+package org.bonitasoft.command;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BonitaCommandJarSlimmerTest {
+
+    private File previousCacheDirectory;
+    private File cacheDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        previousCacheDirectory = BonitaCommandJarSlimmer.getCacheDirectory();
+        // the slimmer creates the directory, readable by its owner only
+        cacheDirectory = new File(Files.createTempDirectory("slimmertest").toFile(), "cache");
+        BonitaCommandJarSlimmer.setCacheDirectory(cacheDirectory);
+    }
+
+    @After
+    public void tearDown() {
+        BonitaCommandJarSlimmer.setCacheDirectory(previousCacheDirectory);
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        cacheDirectory.delete();
+        cacheDirectory.getParentFile().delete();
+    }
+
+    @Test
+    public void excludedEntriesAreRemoved() throws IOException {
+        byte[] jar = createJar("org/Main.class", "org/Main.java", "META-INF/maven/org/pom.xml", "META-INF/MANIFEST.MF");
+        byte[] slimJar = BonitaCommandJarSlimmer.slim(jar, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES);
+        assertTrue(slimJar.length < jar.length);
+        assertEquals(listOf("org/Main.class", "META-INF/MANIFEST.MF"), listEntries(slimJar));
+    }
+
+    @Test
+    public void duplicateEntriesAreRemoved() throws IOException {
+        // ZipOutputStream refuses a duplicate: rename the second entry in the bytes, names have the same length
+        byte[] jar = createJar("org/Main.class", "org/Mbin.class");
+        replace(jar, "org/Mbin.class", "org/Main.class");
+        assertEquals(listOf("org/Main.class", "org/Main.class"), listEntries(jar));
+
+        byte[] slimJar = BonitaCommandJarSlimmer.slim(jar, new String[0]);
+        assertEquals(listOf("org/Main.class"), listEntries(slimJar));
+    }
+
+    @Test
+    public void notAZipIsRefused() {
+        byte[] content = "#!/bin/sh\nnot a zip".getBytes(StandardCharsets.UTF_8);
+        try {
+            BonitaCommandJarSlimmer.slim(content, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES);
+            fail("a content which is not a zip can't be slimmed");
+        } catch (IOException e) {
+            // expected: the caller keeps the original content
+        }
+    }
+
+    @Test
+    public void jarAfterAStubIsRefused() throws IOException {
+        byte[] jar = createJar("org/Main.class", "org/Main.java");
+        byte[] stub = "#!/bin/sh\nexec java -jar \"$0\" \"$@\"\n".getBytes(StandardCharsets.UTF_8);
+        byte[] content = new byte[stub.length + jar.length];
+        System.arraycopy(stub, 0, content, 0, stub.length);
+        System.arraycopy(jar, 0, content, stub.length, jar.length);
+        try {
+            BonitaCommandJarSlimmer.slim(content, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES);
+            fail("ZipInputStream reads no entry after a stub");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void slimmedJarIsCachedAndChecked() throws IOException {
+        byte[] jar = createJar("org/Main.class", "org/Main.java");
+        byte[] slimJar = BonitaCommandJarSlimmer.slim(jar, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES);
+        File cacheFile = null;
+        for (File file : cacheDirectory.listFiles()) {
+            if (file.getName().endsWith(".jar"))
+                cacheFile = file;
+        }
+        assertTrue(cacheFile != null);
+        assertArrayEquals(slimJar, Files.readAllBytes(cacheFile.toPath()));
+        assertArrayEquals(slimJar, BonitaCommandJarSlimmer.slim(jar, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES));
+
+        // a cached JAR which does not match its digest is not used
+        Files.write(cacheFile.toPath(), createJar("org/Other.class"));
+        assertArrayEquals(slimJar, BonitaCommandJarSlimmer.slim(jar, BonitaCommandJarSlimmer.CST_DEFAULT_EXCLUDES));
+    }
+
+    @Test
+    public void excludes() {
+        String[] excludes = { "META-INF/maven/", "*.java", "module-info.class" };
+        assertTrue(BonitaCommandJarSlimmer.isExcluded("META-INF/maven/org/pom.xml", excludes));
+        assertTrue(BonitaCommandJarSlimmer.isExcluded("org/Main.java", excludes));
+        assertTrue(BonitaCommandJarSlimmer.isExcluded("module-info.class", excludes));
+        assertFalse(BonitaCommandJarSlimmer.isExcluded("org/Main.class", excludes));
+        assertFalse(BonitaCommandJarSlimmer.isExcluded("META-INF/MANIFEST.MF", excludes));
+    }
+
+    /* ******************************************************************************** */
+    /*                                                                                  */
+    /* Toolbox */
+    /*                                                                                  */
+    /* ******************************************************************************** */
+
+    private static byte[] createJar(String... entryNames) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ZipOutputStream output = new ZipOutputStream(content);
+        try {
+            // not compressed: the slimmed JAR is smaller. The content does not contain the names, see replace()
+            output.setLevel(0);
+            for (String entryName : entryNames) {
+                output.putNextEntry(new ZipEntry(entryName));
+                for (int i = 0; i < 200; i++)
+                    output.write("class content\n".getBytes(StandardCharsets.UTF_8));
+                output.closeEntry();
+            }
+        } finally {
+            output.close();
+        }
+        return content.toByteArray();
+    }
+
+    private static List<String> listEntries(byte[] jar) throws IOException {
+        List<String> entryNames = new ArrayList<>();
+        ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(jar));
+        try {
+            ZipEntry entry;
+            while ((entry = input.getNextEntry()) != null)
+                entryNames.add(entry.getName());
+        } finally {
+            input.close();
+        }
+        return entryNames;
+    }
+
+    private static List<String> listOf(String... values) {
+        List<String> list = new ArrayList<>();
+        for (String value : values)
+            list.add(value);
+        return list;
+    }
+
+    private static void replace(byte[] content, String search, String replacement) {
+        byte[] searchBytes = search.getBytes(StandardCharsets.UTF_8);
+        byte[] replacementBytes = replacement.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i + searchBytes.length <= content.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < searchBytes.length && found; j++)
+                found = content[i + j] == searchBytes[j];
+            if (found)
+                System.arraycopy(replacementBytes, 0, content, i, replacementBytes.length);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.bonitasoft.command;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.bonitasoft.command.BonitaCommandMetrics.Histogram;
+import org.junit.Test;
+
+/**
+ * bucket bounds of the Histogram: each value is in a bucket whose upper bound is at most 1/16 above it, and the buckets follow each other
+ */
+public class BonitaCommandMetricsTest {
+
+    private final static long CST_MAXVALUE = (1L << 40) - 1;
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (long value = 0; value < 16; value++) {
+            assertEquals(value, Histogram.getBucketIndex(value));
+            assertEquals(value, Histogram.getBucketUpperBound((int) value));
+        }
+    }
+
+    @Test
+    public void valueIsUnderTheUpperBoundOfItsBucket() {
+        for (int exponent = 4; exponent < 40; exponent++) {
+            long power = 1L << exponent;
+            for (long value : new long[] { power - 1, power, power + 1, power + power / 2, 2 * power - 1 }) {
+                long upperBound = Histogram.getBucketUpperBound(Histogram.getBucketIndex(value));
+                assertTrue("value " + value + " upper bound " + upperBound, upperBound >= value);
+                assertTrue("value " + value + " upper bound " + upperBound, upperBound - value <= value / 16);
+            }
+        }
+    }
+
+    @Test
+    public void nextValueAfterAnUpperBoundIsInTheNextBucket() {
+        int lastIndex = Histogram.getBucketIndex(CST_MAXVALUE);
+        for (int index = 0; index < lastIndex; index++) {
+            long upperBound = Histogram.getBucketUpperBound(index);
+            assertEquals(index, Histogram.getBucketIndex(upperBound));
+            assertEquals(index + 1, Histogram.getBucketIndex(upperBound + 1));
+        }
+        assertEquals(CST_MAXVALUE, Histogram.getBucketUpperBound(lastIndex));
+    }
+
+    @Test
+    public void valuesOutOfRangeAreCapped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5, false);
+        histogram.record(Long.MAX_VALUE, true);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(CST_MAXVALUE, histogram.getPercentile(1));
+    }
+}